@@ -14,6 +14,7 @@ import java.util.Comparator;
 import io.crums.io.buffer.Block;
 import io.crums.io.buffer.BufferUtils;
 import io.crums.io.store.Sorted;
+import io.crums.io.store.table.order.RowOrder;
 
 /**
  * Marker for a sorted <code>Block</code>. There's no real guarantee that a given instance's
@@ -98,7 +99,7 @@ public class SortedBlock extends Block implements Sorted {
    * @see BufferUtils#binarySearch(ByteBuffer[], ByteBuffer, Comparator)
    */
   public int binarySearch(ByteBuffer key) {
-    return Arrays.binarySearch(cells, key, order);
+    return binarySearch(key, 0, cells.length);
   }
   
   
@@ -109,6 +110,10 @@ public class SortedBlock extends Block implements Sorted {
         return Arrays.binarySearch(cells, fromIndex, toIndex, key, order);
       }
    * </code></pre>
+   * <p>
+   * If the order is a {@linkplain RowOrder} with a {@linkplain RowOrder#hasPrefixKey() prefix
+   * key}, then the search mostly compares <code>long</code>s instead.
+   * </p>
    * 
    * @param fromIndex
    *        the first cell index searched (inclusive)
@@ -119,6 +124,8 @@ public class SortedBlock extends Block implements Sorted {
    *        <code>key</code> is not found
    */
   public int binarySearch(ByteBuffer key, int fromIndex, int toIndex) {
+    if (order instanceof RowOrder)
+      return ((RowOrder) order).binarySearch(cells, fromIndex, toIndex, key);
     return Arrays.binarySearch(cells, fromIndex, toIndex, key, order);
   }
   
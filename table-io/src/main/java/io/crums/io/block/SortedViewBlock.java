@@ -11,13 +11,24 @@ import java.util.Comparator;
 
 import io.crums.io.buffer.BufferUtils;
 import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.order.RowOrder;
 
 /**
  * This class takes presents a sorted view of of an unsorted block.
+ * <p>
+ * If the order is a {@linkplain RowOrder} with a {@linkplain RowOrder#hasPrefixKey() prefix
+ * key} (which covers the fixed-offset integer orders and the natural, lexical order), then
+ * the cells are {@linkplain #sortCellsRadix() radix sorted} on their prefix keys.
+ * </p>
  * 
  * @author Babak
  */
 public class SortedViewBlock extends SortedBlock {
+  
+  /**
+   * Blocks with fewer cells than this are always comparison sorted.
+   */
+  private final static int MIN_RADIX_CELLS = 64;
 
 
   public SortedViewBlock(ByteBuffer block, int cellByteWidth, Comparator<ByteBuffer> order) {
@@ -30,10 +41,156 @@ public class SortedViewBlock extends SortedBlock {
     super(block, cellByteWidth, order, readOnlyCells);
     sortCells();
   }
+
+
+  /**
+   * Creates an instance with the option to sort the cells in parallel.
+   * 
+   * @param parallel if <code>true</code>, then the cells are sorted concurrently
+   *                 using the common fork/join pool. The <code>order</code> must then
+   *                 be thread-safe.
+   *                 
+   * @see #sortCellsParallel()
+   */
+  public SortedViewBlock(
+      ByteBuffer block, int cellByteWidth, Comparator<ByteBuffer> order,
+      boolean readOnlyCells, boolean parallel) {
+    this(block, cellByteWidth, order, readOnlyCells, parallel, true);
+  }
+
+
+  /**
+   * Creates an instance with the option to sort the cells in parallel, or by radix.
+   * 
+   * @param parallel if <code>true</code>, then cells that are not radix sorted are sorted
+   *                 concurrently using the common fork/join pool. The <code>order</code>
+   *                 must then be thread-safe.
+   * @param radix    if <code>true</code>, and the order {@linkplain #isRadixSortable(Comparator)
+   *                 is radix sortable}, then the cells are radix sorted
+   *                 
+   * @see #sortCellsParallel()
+   * @see #sortCellsRadix()
+   */
+  public SortedViewBlock(
+      ByteBuffer block, int cellByteWidth, Comparator<ByteBuffer> order,
+      boolean readOnlyCells, boolean parallel, boolean radix) {
+    super(block, cellByteWidth, order, readOnlyCells);
+    if (radix && useRadix())
+      sortCellsRadix();
+    else if (parallel)
+      sortCellsParallel();
+    else
+      Arrays.sort(this.cells, this.order());
+  }
   
   
+  /**
+   * Determines whether cells in the given order can be {@linkplain #sortCellsRadix()
+   * radix sorted}: i.e. if it's a {@linkplain RowOrder} with a {@linkplain
+   * RowOrder#hasPrefixKey() prefix key}.
+   */
+  public static boolean isRadixSortable(Comparator<ByteBuffer> order) {
+    return order instanceof RowOrder && ((RowOrder) order).hasPrefixKey();
+  }
+  
+  
+  private boolean useRadix() {
+    return cells.length >= MIN_RADIX_CELLS && isRadixSortable(order());
+  }
+  
+  
+  /**
+   * Sorts the cells, by {@linkplain #sortCellsRadix() radix}, if the order supports it
+   * (and the block isn't tiny); by comparison, otherwise.
+   */
   public void sortCells() {
-    Arrays.sort(this.cells, this.order());
+    if (useRadix())
+      sortCellsRadix();
+    else
+      Arrays.sort(this.cells, this.order());
+  }
+  
+  
+  /**
+   * Sorts the cells with an LSD radix sort on their 64-bit {@linkplain RowOrder#prefixKey(ByteBuffer)
+   * prefix keys}, one byte per pass. Passes over bytes that are the same in every key are
+   * skipped (so, for example, non-negative <code>int</code> keys take at most 4 passes). If the
+   * prefix key is not {@linkplain RowOrder#isPrefixKeyExact() exact}, then runs of cells with
+   * equal prefix keys are then comparison sorted. Like the comparison sorts, this sort is stable.
+   * <p>
+   * Cells are not compared as objects. Other than primitive key and index arrays (about 24
+   * bytes per cell) and a copy of the cell array, nothing is allocated.
+   * </p>
+   * 
+   * @throws UnsupportedOperationException
+   *         if the order is not {@linkplain #isRadixSortable(Comparator) radix sortable}
+   */
+  public void sortCellsRadix() {
+    if (!isRadixSortable(order()))
+      throw new UnsupportedOperationException("order not radix sortable: " + order());
+    final RowOrder order = (RowOrder) order();
+    final int n = cells.length;
+
+    // keys are biased so that unsigned byte order matches signed long order
+    long[] keys = new long[n];
+    int[] perm = new int[n];
+    int[][] counts = new int[8][256];
+    for (int i = 0; i < n; ++i) {
+      long key = order.prefixKey(cells[i]) ^ Long.MIN_VALUE;
+      keys[i] = key;
+      perm[i] = i;
+      for (int b = 0; b < 8; ++b)
+        ++counts[b][(int) (key >>> (8 * b)) & 0xff];
+    }
+
+    long[] keysOut = new long[n];
+    int[] permOut = new int[n];
+    for (int b = 0; b < 8; ++b) {
+      final int shift = 8 * b;
+      final int[] count = counts[b];
+      if (count[(int) (keys[0] >>> shift) & 0xff] == n)
+        continue;   // every key has the same byte here
+
+      // counts -> starting offsets
+      for (int d = 0, offset = 0; d < 256; ++d) {
+        int c = count[d];
+        count[d] = offset;
+        offset += c;
+      }
+      for (int i = 0; i < n; ++i) {
+        int dest = count[(int) (keys[i] >>> shift) & 0xff]++;
+        keysOut[dest] = keys[i];
+        permOut[dest] = perm[i];
+      }
+      long[] k = keys; keys = keysOut; keysOut = k;
+      int[] p = perm; perm = permOut; permOut = p;
+    }
+
+    ByteBuffer[] sorted = new ByteBuffer[n];
+    for (int i = 0; i < n; ++i)
+      sorted[i] = cells[perm[i]];
+    System.arraycopy(sorted, 0, cells, 0, n);
+
+    if (!order.isPrefixKeyExact()) {
+      for (int i = 0; i < n; ) {
+        int j = i + 1;
+        while (j < n && keys[j] == keys[i])
+          ++j;
+        if (j - i > 1)
+          Arrays.sort(cells, i, j, order);
+        i = j;
+      }
+    }
+  }
+  
+  
+  /**
+   * Sorts the cells concurrently. The cell array is split into segments that are
+   * sorted in parallel on the common fork/join pool, and then merged. (Small blocks are
+   * sorted sequentially.) The cells themselves are not moved; only their views are.
+   */
+  public void sortCellsParallel() {
+    Arrays.parallelSort(this.cells, this.order());
   }
   
   
@@ -5,6 +5,7 @@ package io.crums.io.store.ks;
 
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import io.crums.io.IoStateException;
 
@@ -69,6 +70,12 @@ public class CachingKeystone extends Keystone {
   }
 
 
+  @Override
+  public boolean isWrittenTo(FileChannel file) {
+    return base.isWrittenTo(file);
+  }
+
+
   @Override
   public boolean isOpen() {
     return base.isOpen();
@@ -177,6 +177,16 @@ public abstract class Keystone implements Channel {
   public abstract void commit() throws IOException;
 
 
+  /**
+   * Determines whether this keystone is written to the given <code>file</code>. If so, a
+   * force on the keystone also forces any other writes to the file. The base implementation
+   * returns <code>false</code>.
+   */
+  public boolean isWrittenTo(FileChannel file) {
+    return false;
+  }
+
+
 
   @Override
   public boolean isOpen() {
@@ -189,6 +189,12 @@ public class KeystoneImpl extends Keystone {
   }
 
 
+  @Override
+  public boolean isWrittenTo(FileChannel file) {
+    return this.file == file;
+  }
+
+
   @Override
   public boolean isOpen() {
     return file.isOpen();
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import io.crums.io.store.ks.Keystone;
+
+/**
+ * Asynchronous I/O front end to a {@linkplain Table}. Rows are read and written thru an
+ * {@linkplain AsynchronousFileChannel} on the table's file, and each operation returns a
+ * {@linkplain CompletableFuture} instead of blocking. So many row reads can be in flight
+ * without a thread per request.
+ * <p>
+ * The number of operations in flight is bounded: once the bound is reached, new requests
+ * block the calling thread until an in-flight one completes (back pressure).
+ * </p>
+ * <h2>Appends</h2>
+ * <p>
+ * Appends don't serialize on the file position. Instead, each append reserves its row
+ * range up front, and so concurrent appends are written concurrently. The table's row
+ * count, however, is only advanced over contiguous completed writes (in row order); an
+ * append's future completes once its rows are thus published.
+ * </p><p>
+ * If an append's write fails, its reserved range is never completed, so nothing past it can
+ * be published: the instance then fails the appends awaiting publication, and all further
+ * appends.
+ * </p>
+ * <h2>Ownership</h2>
+ * <p>
+ * While an instance is in use, the table should not be written to directly. Closing the
+ * instance also closes the table. Writes made thru the instance invalidate the table's
+ * {@linkplain Table#setBlockCache(BlockCache) block cache}, if any, so reads thru the
+ * {@linkplain #table()} stay consistent.
+ * </p>
+ */
+public class AsyncTable implements Channel {
+
+  /**
+   * Default maximum number of in-flight operations.
+   */
+  public final static int DEFAULT_MAX_IN_FLIGHT = 256;
+
+
+  private final Table table;
+  private final AsynchronousFileChannel channel;
+  private final Semaphore inFlight;
+  private final int rowWidth;
+  private final boolean readOnly;
+
+  private final Object countLock = new Object();
+
+  /**
+   * Next row number to reserve for appending. Guarded by <code>countLock</code>.
+   */
+  private long reservedCount;
+
+  /**
+   * Completed appends not yet published, keyed by first row number. Guarded by
+   * <code>countLock</code>.
+   */
+  private final TreeMap<Long, CompletedAppend> completed = new TreeMap<>();
+
+  /**
+   * The failure that left a gap in the reserved rows, if any. Guarded by
+   * <code>countLock</code>.
+   */
+  private Throwable failure;
+
+
+  /**
+   * An append whose rows have been written, but whose row count is not yet published.
+   */
+  private static class CompletedAppend {
+    final long endRow;
+    final CompletableFuture<Long> future;
+
+    CompletedAppend(long endRow, CompletableFuture<Long> future) {
+      this.endRow = endRow;
+      this.future = future;
+    }
+  }
+
+
+  /**
+   * Opens the table at the given path (creating it, if it doesn't exist) with an asynchronous
+   * channel and the {@linkplain #DEFAULT_MAX_IN_FLIGHT default} in-flight bound.
+   *
+   * @see Table#createInstance(File, int)
+   */
+  public static AsyncTable open(File file, int rowWidth) throws IOException {
+    return open(file, rowWidth, false, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+
+  /**
+   * Opens the table at the given path (creating it, if it doesn't exist) with an asynchronous
+   * channel.
+   *
+   * @param readOnly    if <code>true</code>, then the table must already exist
+   * @param maxInFlight the maximum number of in-flight operations (&ge; 1)
+   *
+   * @see Table#createInstance(File, int, boolean)
+   */
+  public static AsyncTable open(File file, int rowWidth, boolean readOnly, int maxInFlight)
+      throws IOException {
+    Table table = Table.createInstance(file, rowWidth, readOnly);
+    try {
+      AsynchronousFileChannel channel = readOnly ?
+          AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ) :
+          AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      return new AsyncTable(table, channel, maxInFlight, readOnly);
+    } catch (IOException | RuntimeException x) {
+      table.close();
+      throw x;
+    }
+  }
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param table       the table (owned by this instance)
+   * @param channel     an asynchronous channel on the table's file (owned by this instance)
+   * @param maxInFlight the maximum number of in-flight operations (&ge; 1)
+   */
+  public AsyncTable(Table table, AsynchronousFileChannel channel, int maxInFlight)
+      throws IOException {
+    this(table, channel, maxInFlight, false);
+  }
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param table       the table (owned by this instance)
+   * @param channel     an asynchronous channel on the table's file (owned by this instance)
+   * @param maxInFlight the maximum number of in-flight operations (&ge; 1)
+   * @param readOnly    if <code>true</code>, then writes are rejected
+   */
+  public AsyncTable(
+      Table table, AsynchronousFileChannel channel, int maxInFlight, boolean readOnly)
+          throws IOException {
+    if (table == null)
+      throw new IllegalArgumentException("null table");
+    if (channel == null)
+      throw new IllegalArgumentException("null channel");
+    if (maxInFlight < 1)
+      throw new IllegalArgumentException("maxInFlight: " + maxInFlight);
+    this.table = table;
+    this.channel = channel;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.rowWidth = table.getRowWidth();
+    this.readOnly = readOnly;
+    this.reservedCount = table.getRowCount();
+  }
+
+
+  /**
+   * Returns the underlying table. Use it for reads only.
+   */
+  public final Table table() {
+    return table;
+  }
+
+
+  public final int getRowWidth() {
+    return rowWidth;
+  }
+
+
+  /**
+   * Returns the (published) row count.
+   */
+  public long getRowCount() throws IOException {
+    return table.getRowCount();
+  }
+
+
+  /**
+   * Reads one or more rows starting at the given <code>row</code> number into the
+   * given buffer.
+   *
+   * @param rowData its remaining bytes must be a nonzero multiple of the row width
+   * @return a future completed with <code>rowData</code> (its position advanced by the
+   *         number of bytes read)
+   */
+  public CompletableFuture<ByteBuffer> read(long row, ByteBuffer rowData) {
+    CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+    try {
+      if (row < 0)
+        throw new IllegalArgumentException("row: " + row);
+      int rows = numRows(rowData);
+      long rowCount = table.getRowCount();
+      if (row + rows > rowCount)
+        throw new IllegalArgumentException(
+            "Overflow: read request beyond end of table. Row number is " + row +
+            "; number of rows to read is " + rows + "; current row count is " + rowCount);
+      checkOpen();
+      acquire();
+    } catch (IOException | RuntimeException x) {
+      future.completeExceptionally(x);
+      return future;
+    }
+    readFully(rowData, table.rowOffset(row), future);
+    return future;
+  }
+
+
+  /**
+   * Sets the data for one or more rows starting at the given <code>row</code>.
+   * If the rows extend beyond the row count, the row count is advanced on completion
+   * (in which case, no appends may be in flight).
+   *
+   * @param row     the row number (between zero and the row count, inclusive)
+   * @param rowData its remaining bytes must be a nonzero multiple of the row width
+   */
+  public CompletableFuture<Void> set(long row, ByteBuffer rowData) {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    final long endRow;
+    final boolean extending;
+    boolean acquired = false;
+    try {
+      if (row < 0)
+        throw new IllegalArgumentException("row: " + row);
+      endRow = row + numRows(rowData);
+      checkWritable();
+      acquire();
+      acquired = true;
+      synchronized (countLock) {
+        checkFailure();
+        long rowCount = table.getRowCount();
+        if (row > rowCount)
+          throw new IllegalArgumentException(
+              "row (" + row + ") is greater than current row count (" + rowCount + ")");
+        extending = endRow > rowCount;
+        if (extending) {
+          if (reservedCount != rowCount)
+            throw new IllegalStateException(
+                "attempt to set rows [" + row + ", " + endRow + ") beyond row count (" +
+                rowCount + ") while appends are in flight");
+          reservedCount = endRow;
+        }
+      }
+    } catch (IOException | RuntimeException x) {
+      if (acquired)
+        inFlight.release();
+      future.completeExceptionally(x);
+      return future.thenApply(firstRow -> null);
+    }
+    final long rows = endRow - row;
+    CompletableFuture<Void> write = new CompletableFuture<>();
+    writeFully(rowData, table.rowOffset(row), write);
+    write.whenComplete((v, error) -> {
+      // (even if failed, the rows may be partially written)
+      table.invalidateCachedRows(row, rows);
+      if (error != null) {
+        if (extending)
+          fail(error);
+        future.completeExceptionally(error);
+      } else if (extending)
+        publish(row, endRow, future);
+      else
+        future.complete(row);
+    });
+    return future.thenApply(firstRow -> null);
+  }
+
+
+  /**
+   * Appends one or more rows. Concurrent appends are written concurrently.
+   *
+   * @param rowData its remaining bytes must be a nonzero multiple of the row width
+   * @return a future completed with the row number of the first row appended, once
+   *         the rows are published (i.e. once all preceding appends have also completed)
+   */
+  public CompletableFuture<Long> append(ByteBuffer rowData) {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    final long firstRow;
+    final long endRow;
+    boolean acquired = false;
+    try {
+      int rows = numRows(rowData);
+      checkWritable();
+      acquire();
+      acquired = true;
+      synchronized (countLock) {
+        checkFailure();
+        firstRow = reservedCount;
+        endRow = reservedCount += rows;
+      }
+    } catch (IOException | RuntimeException x) {
+      if (acquired)
+        inFlight.release();
+      future.completeExceptionally(x);
+      return future;
+    }
+    CompletableFuture<Void> write = new CompletableFuture<>();
+    writeFully(rowData, table.rowOffset(firstRow), write);
+    write.whenComplete((v, error) -> {
+      if (error != null) {
+        // rows following this range can never be published
+        fail(error);
+        future.completeExceptionally(error);
+      } else
+        publish(firstRow, endRow, future);
+    });
+    return future;
+  }
+
+
+  /**
+   * Records the completed append (or extending set), and advances the published row
+   * count over any contiguous completed appends.
+   */
+  private void publish(long firstRow, long endRow, CompletableFuture<Long> future) {
+    TreeMap<Long, CompletableFuture<Long>> published = new TreeMap<>();
+    try {
+      synchronized (countLock) {
+        checkFailure();
+        completed.put(firstRow, new CompletedAppend(endRow, future));
+        Keystone count = table.rowCountKeystone();
+        long rowCount = count.get();
+        long newCount = rowCount;
+        Map.Entry<Long, CompletedAppend> head;
+        while ((head = completed.firstEntry()) != null && head.getKey() <= newCount) {
+          completed.pollFirstEntry();
+          newCount = Math.max(newCount, head.getValue().endRow);
+          published.put(head.getKey(), head.getValue().future);
+        }
+        if (newCount != rowCount)
+          count.set(newCount);
+      }
+    } catch (IOException | RuntimeException x) {
+      fail(x);
+      future.completeExceptionally(x);
+      return;
+    }
+    for (Map.Entry<Long, CompletableFuture<Long>> entry : published.entrySet())
+      entry.getValue().complete(entry.getKey());
+  }
+
+
+  /**
+   * Marks the instance failed (if not already), and fails the appends awaiting publication.
+   */
+  private void fail(Throwable error) {
+    CompletedAppend[] orphans;
+    synchronized (countLock) {
+      if (failure == null)
+        failure = error;
+      orphans = completed.values().toArray(new CompletedAppend[completed.size()]);
+      completed.clear();
+    }
+    IOException x = failedException();
+    for (CompletedAppend orphan : orphans)
+      orphan.future.completeExceptionally(x);
+  }
+
+
+  /**
+   * Invoked under <code>countLock</code>.
+   */
+  private void checkFailure() throws IOException {
+    if (failure != null)
+      throw failedException();
+  }
+
+
+  private IOException failedException() {
+    return new IOException("failed on an earlier write: " + failure.getMessage(), failure);
+  }
+
+
+  private void checkWritable() throws ClosedChannelException {
+    if (readOnly)
+      throw new NonWritableChannelException();
+    checkOpen();
+  }
+
+
+  private int numRows(ByteBuffer rowData) {
+    if (rowData == null)
+      throw new IllegalArgumentException("null buffer");
+    int size = rowData.remaining();
+    if (size == 0 || size % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "remaining bytes (" + size + ") not a nonzero multiple of row width (" + rowWidth +
+          "): " + rowData);
+    return size / rowWidth;
+  }
+
+
+  private void acquire() throws InterruptedIOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted awaiting in-flight permit");
+    }
+  }
+
+
+  private void readFully(ByteBuffer buffer, long position, CompletableFuture<ByteBuffer> future) {
+    CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+      long pos = position;
+      @Override
+      public void completed(Integer bytes, Void attachment) {
+        if (bytes < 0)
+          failed(new EOFException("at file offset " + pos), null);
+        else if (buffer.hasRemaining()) {
+          pos += bytes;
+          try {
+            channel.read(buffer, pos, null, this);
+          } catch (RuntimeException rx) {
+            failed(rx, null);
+          }
+        } else {
+          inFlight.release();
+          future.complete(buffer);
+        }
+      }
+      @Override
+      public void failed(Throwable error, Void attachment) {
+        inFlight.release();
+        future.completeExceptionally(error);
+      }
+    };
+    try {
+      channel.read(buffer, position, null, handler);
+    } catch (RuntimeException rx) {
+      handler.failed(rx, null);
+    }
+  }
+
+
+  private void writeFully(ByteBuffer buffer, long position, CompletableFuture<Void> future) {
+    CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+      long pos = position;
+      @Override
+      public void completed(Integer bytes, Void attachment) {
+        if (buffer.hasRemaining()) {
+          pos += bytes;
+          try {
+            channel.write(buffer, pos, null, this);
+          } catch (RuntimeException rx) {
+            failed(rx, null);
+          }
+        } else {
+          inFlight.release();
+          future.complete(null);
+        }
+      }
+      @Override
+      public void failed(Throwable error, Void attachment) {
+        inFlight.release();
+        future.completeExceptionally(error);
+      }
+    };
+    try {
+      channel.write(buffer, position, null, handler);
+    } catch (RuntimeException rx) {
+      handler.failed(rx, null);
+    }
+  }
+
+
+  /**
+   * Forces written rows to storage. (The row count is committed by the table's keystone.)
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    channel.force(false);
+  }
+
+
+  private void checkOpen() throws ClosedChannelException {
+    if (!channel.isOpen())
+      throw new ClosedChannelException();
+  }
+
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+
+  /**
+   * Closes the asynchronous channel and the table. In-flight operations may fail.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      table.close();
+    }
+  }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.crums.io.channels.ChannelUtils;
+
+/**
+ * A bounded cache of fixed-size blocks of table files, stored off-heap. Blocks are keyed by
+ * (table, block number), where a table's block number <em>n</em> covers the bytes of its rows
+ * from offset <em>n</em> &times; {@linkplain #getBlockSize() block size}. An instance may be
+ * shared by any number of tables (see {@linkplain Table#setBlockCache(BlockCache)}): every
+ * {@linkplain Table#read(long, ByteBuffer) read} on such a table, including those made by its
+ * {@linkplain SortedTable.Searcher searcher}s and iterators, goes thru the cache. So hot rows
+ * cost a memory copy, instead of a syscall.
+ * <p>
+ * Eviction is by the CLOCK algorithm (an approximation of LRU that costs little on a hit). A
+ * block is pinned while it's being copied from, and pinned blocks are never evicted; if every
+ * block is pinned, the read bypasses the cache. Hot blocks may also be pinned by the user
+ * (see {@linkplain Table#pinRows(long, long)}): such blocks are loaded on first read, as
+ * usual, but are then never evicted until unpinned. Concurrent misses on the same block may load it
+ * twice (the I/O is not done under the cache's lock); only one copy is kept.
+ * </p>
+ * <p>
+ * Only blocks lying wholly below the table's end (its row count, at the time of the read) are
+ * cached, so appends never stale a cached block. {@linkplain Table#set(long, ByteBuffer) Set}s,
+ * truncations, and closing the table invalidate the affected blocks.
+ * </p>
+ * <p>
+ * A table's blocks are keyed by the ID it registers with. When the table's file is closed, or
+ * the table switches to another cache, its blocks are invalidated and its ID is recycled.
+ * </p>
+ *
+ * @see #getShared()
+ */
+public class BlockCache {
+
+  /**
+   * Default block size: 4 KiB.
+   */
+  public final static int DEFAULT_BLOCK_SIZE = 4096;
+
+  /**
+   * Default number of blocks in the {@linkplain #getShared() shared} instance (32 MiB).
+   */
+  public final static int DEFAULT_BLOCK_COUNT = 8192;
+
+  /**
+   * Block numbers are packed in the low bits of a slot's key; the table ID in the
+   * high bits.
+   */
+  private final static int BLOCK_BITS = 40;
+
+  private final static long NO_KEY = -1;
+
+  private final static int MAX_TABLE_IDS = 1 << (63 - BLOCK_BITS);
+
+
+  /**
+   * A table's registration with a cache. Reads and invalidations made with a
+   * released registration bypass the cache.
+   */
+  static final class Registration {
+    final BlockCache cache;
+    final int tableId;
+
+    private Registration(BlockCache cache, int tableId) {
+      this.cache = cache;
+      this.tableId = tableId;
+    }
+  }
+
+
+  private static BlockCache shared;
+
+  /**
+   * Returns the process-wide instance, created on first access with the
+   * {@linkplain #DEFAULT_BLOCK_SIZE default block size} and {@linkplain #DEFAULT_BLOCK_COUNT
+   * block count}.
+   */
+  public static synchronized BlockCache getShared() {
+    if (shared == null)
+      shared = new BlockCache(DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+    return shared;
+  }
+
+
+  private final int blockSize;
+  private final ByteBuffer arena;
+
+  // the following are guarded by this instance's lock
+
+  private final Map<Long, Integer> slots;
+  private final long[] keys;
+  private final int[] pins;
+  private final boolean[] referenced;
+  private int hand;
+  /**
+   * Registrations, indexed by table ID; released ones are <code>null</code>.
+   */
+  private final List<Registration> registrations = new ArrayList<>();
+  private final ArrayDeque<Integer> freeTableIds = new ArrayDeque<>();
+  /**
+   * User-pinned block keys, and their pin counts.
+   */
+  private final Map<Long, Integer> pinnedKeys = new HashMap<>();
+  /**
+   * Incremented on every invalidation, so that a block loaded concurrently with
+   * an invalidation is not published.
+   */
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param blockSize   the number of bytes in a block (&ge; 64)
+   * @param blockCount  the maximum number of blocks cached (&ge; 1). The
+   *                    product with <code>blockSize</code> must fit in an <code>int</code>
+   */
+  public BlockCache(int blockSize, int blockCount) {
+    if (blockSize < 64)
+      throw new IllegalArgumentException("blockSize: " + blockSize);
+    if (blockCount < 1)
+      throw new IllegalArgumentException("blockCount: " + blockCount);
+    if (((long) blockSize) * blockCount > Integer.MAX_VALUE)
+      throw new IllegalArgumentException(
+          "blockSize * blockCount too large: " + blockSize + " * " + blockCount);
+    this.blockSize = blockSize;
+    this.arena = ByteBuffer.allocateDirect(blockSize * blockCount);
+    this.slots = new HashMap<>(blockCount * 2);
+    this.keys = new long[blockCount];
+    this.pins = new int[blockCount];
+    this.referenced = new boolean[blockCount];
+    Arrays.fill(keys, NO_KEY);
+  }
+
+
+  public final int getBlockSize() {
+    return blockSize;
+  }
+
+
+  public final int getBlockCount() {
+    return keys.length;
+  }
+
+
+  /**
+   * Returns the number of block lookups that were served from the cache.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+
+  /**
+   * Returns the number of block lookups that were read from the file.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+
+  /**
+   * Returns the number of blocks evicted to make room for others.
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+
+  /**
+   * Returns the number of blocks currently cached.
+   */
+  public synchronized int getCachedBlockCount() {
+    return slots.size();
+  }
+
+
+  /**
+   * Returns the number of blocks pinned by the user (whether cached, or not).
+   *
+   * @see Table#pinRows(long, long)
+   */
+  public synchronized int getPinnedBlockCount() {
+    return pinnedKeys.size();
+  }
+
+
+  /**
+   * Zeroes the hit, miss and eviction counts.
+   */
+  public synchronized void clearStats() {
+    hits = misses = evictions = 0;
+  }
+
+
+  @Override
+  public String toString() {
+    synchronized (this) {
+      return "BlockCache[blockSize=" + blockSize + ", blocks=" + slots.size() + "/" +
+          keys.length + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+  }
+
+
+  /**
+   * Registers a table (and its copies) with a new or recycled table ID.
+   */
+  synchronized Registration register() {
+    final int tableId;
+    if (!freeTableIds.isEmpty())
+      tableId = freeTableIds.pop();
+    else if (registrations.size() == MAX_TABLE_IDS)
+      throw new IllegalStateException("table IDs exhausted: " + this);
+    else {
+      tableId = registrations.size();
+      registrations.add(null);
+    }
+    Registration reg = new Registration(this, tableId);
+    registrations.set(tableId, reg);
+    return reg;
+  }
+
+
+  /**
+   * Invalidates the registered table's blocks, and recycles its ID. Idempotent.
+   */
+  synchronized void release(Registration reg) {
+    if (!isRegistered(reg))
+      return;
+    invalidate(reg);
+    if (!pinnedKeys.isEmpty())
+      pinnedKeys.keySet().removeIf(key -> key >>> BLOCK_BITS == reg.tableId);
+    registrations.set(reg.tableId, null);
+    freeTableIds.push(reg.tableId);
+  }
+
+
+  /**
+   * Guarded.
+   */
+  private boolean isRegistered(Registration reg) {
+    return reg.cache == this && registrations.get(reg.tableId) == reg;
+  }
+
+
+  /**
+   * Reads the bytes at <code>offset</code> (relative to the table's first row) into
+   * <code>out</code>.
+   *
+   * @param reg         the table's registration
+   * @param file        the table's file
+   * @param zeroOffset  the file offset of the table's first row
+   * @param offset      the byte offset (relative to the table's first row)
+   * @param end         the table's byte length (the bytes past which are never cached)
+   * @param out         the remaining bytes are filled
+   */
+  void read(Registration reg, FileChannel file, long zeroOffset, long offset, long end, ByteBuffer out)
+      throws IOException {
+    final long cachedEnd = end - end % blockSize;
+    while (out.hasRemaining()) {
+      if (offset >= cachedEnd) {
+        ChannelUtils.readRemaining(file, zeroOffset + offset, out);
+        return;
+      }
+      long blockNo = offset / blockSize;
+      int offsetInBlock = (int) (offset % blockSize);
+      int len = Math.min(blockSize - offsetInBlock, out.remaining());
+      int slot = pin(reg, blockNo, file, zeroOffset);
+      if (slot == -1) {
+        int limit = out.limit();
+        out.limit(out.position() + len);
+        ChannelUtils.readRemaining(file, zeroOffset + offset, out);
+        out.limit(limit);
+      } else {
+        try {
+          int pos = out.position();
+          out.put(pos, arena, slot * blockSize + offsetInBlock, len).position(pos + len);
+        } finally {
+          unpin(slot);
+        }
+      }
+      offset += len;
+    }
+  }
+
+
+  /**
+   * Returns the pinned slot holding the given block, loading it if necessary; -1, if
+   * every slot is pinned (or if the registration was released).
+   */
+  private int pin(Registration reg, long blockNo, FileChannel file, long zeroOffset)
+      throws IOException {
+    final long key = key(reg.tableId, blockNo);
+    int slot;
+    long gen;
+    synchronized (this) {
+      if (!isRegistered(reg))
+        return -1;
+      Integer cached = slots.get(key);
+      if (cached != null) {
+        slot = cached;
+        ++pins[slot];
+        referenced[slot] = true;
+        ++hits;
+        return slot;
+      }
+      ++misses;
+      slot = evict();
+      if (slot == -1)
+        return -1;
+      pins[slot] = 1;
+      gen = generation;
+    }
+
+    // load it outside the lock
+    try {
+      ByteBuffer block = arena.slice(slot * blockSize, blockSize);
+      ChannelUtils.readRemaining(file, zeroOffset + blockNo * blockSize, block);
+    } catch (IOException | RuntimeException x) {
+      unpin(slot);
+      throw x;
+    }
+
+    synchronized (this) {
+      // (if another thread loaded it meanwhile, or if blocks were invalidated while
+      // loading, then this slot is not published, and is recycled once unpinned)
+      if (gen == generation && !slots.containsKey(key)) {
+        slots.put(key, slot);
+        keys[slot] = key;
+        referenced[slot] = true;
+      }
+    }
+    return slot;
+  }
+
+
+  private synchronized void unpin(int slot) {
+    --pins[slot];
+  }
+
+
+  /**
+   * Returns an empty, unpinned slot (evicting its block, if any), or -1 if all are pinned.
+   * Guarded.
+   */
+  private int evict() {
+    final int count = keys.length;
+    // 2 sweeps: the first may only be clearing reference bits
+    for (int sweep = 0; sweep < 2 * count; ++sweep) {
+      int slot = hand;
+      hand = (hand + 1) % count;
+      if (pins[slot] != 0 || keys[slot] != NO_KEY && pinnedKeys.containsKey(keys[slot]))
+        continue;
+      if (referenced[slot]) {
+        referenced[slot] = false;
+        continue;
+      }
+      if (keys[slot] != NO_KEY) {
+        slots.remove(keys[slot]);
+        keys[slot] = NO_KEY;
+        ++evictions;
+      }
+      return slot;
+    }
+    return -1;
+  }
+
+
+  /**
+   * Pins (or unpins) the given table's blocks overlapping the given byte range
+   * (relative to the table's first row). Pins are counted.
+   *
+   * @param pin  <code>true</code> to pin; <code>false</code>, to unpin
+   */
+  synchronized void pin(Registration reg, long offset, long length, boolean pin) {
+    if (length <= 0 || !isRegistered(reg))
+      return;
+    final long lastBlock = (offset + length - 1) / blockSize;
+    for (long b = offset / blockSize; b <= lastBlock; ++b) {
+      if (pin)
+        pinnedKeys.merge(key(reg.tableId, b), 1, Integer::sum);
+      else
+        pinnedKeys.computeIfPresent(key(reg.tableId, b), (k, count) -> count == 1 ? null : count - 1);
+    }
+  }
+
+
+  /**
+   * Invalidates the given table's cached blocks overlapping the given byte range
+   * (relative to the table's first row).
+   *
+   * @param offset  the starting byte offset
+   * @param length  the number of bytes; {@linkplain Long#MAX_VALUE} for all the
+   *                bytes from <code>offset</code>
+   */
+  synchronized void invalidate(Registration reg, long offset, long length) {
+    if (length <= 0 || !isRegistered(reg))
+      return;
+    final int tableId = reg.tableId;
+    ++generation;
+    if (slots.isEmpty())
+      return;
+    final long firstBlock = offset / blockSize;
+    final long lastBlock = length == Long.MAX_VALUE ?
+        (1L << BLOCK_BITS) - 1 : (offset + length - 1) / blockSize;
+    if (lastBlock - firstBlock < 64) {
+      for (long b = firstBlock; b <= lastBlock; ++b)
+        free(slots.get(key(tableId, b)));
+    } else {
+      final long lo = key(tableId, firstBlock);
+      final long hi = key(tableId, lastBlock);
+      for (int slot = 0; slot < keys.length; ++slot)
+        if (keys[slot] >= lo && keys[slot] <= hi)
+          free(slot);
+    }
+  }
+
+
+  /**
+   * Invalidates all the given table's cached blocks.
+   */
+  void invalidate(Registration reg) {
+    invalidate(reg, 0, Long.MAX_VALUE);
+  }
+
+
+  /**
+   * Removes the block in the given slot from the index. (If it's pinned, it's
+   * recycled once unpinned.) Guarded.
+   */
+  private void free(Integer slot) {
+    if (slot == null)
+      return;
+    slots.remove(keys[slot]);
+    keys[slot] = NO_KEY;
+    referenced[slot] = false;
+  }
+
+
+  private static long key(int tableId, long blockNo) {
+    if (blockNo >>> BLOCK_BITS != 0)
+      throw new IllegalArgumentException("block number too large: " + blockNo);
+    return ((long) tableId) << BLOCK_BITS | blockNo;
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import io.crums.io.IoStateException;
+
+/**
+ * Compresses and decompresses the blocks of rows in a {@linkplain BlockSortedTable}.
+ * Blocks are whole numbers of rows; a block's decoded length is known to the reader
+ * (it's recorded in the table's header), so it needn't be encoded.
+ * <p>
+ * Implementations must be stateless (thread-safe). Each has a unique, persistent
+ * {@linkplain #id() ID}, recorded in the table file, and must be registered in
+ * {@linkplain #forId(int)}.
+ * </p>
+ */
+public interface BlockCodec {
+
+
+  /**
+   * Returns the codec with the given ID.
+   *
+   * @throws IoStateException if the ID is unknown
+   */
+  static BlockCodec forId(int id) throws IoStateException {
+    switch (id) {
+    case LzBlockCodec.ID:       return LzBlockCodec.INSTANCE;
+    case PrefixBlockCodec.ID:   return PrefixBlockCodec.INSTANCE;
+    default:
+      throw new IoStateException("unknown block codec ID: " + id);
+    }
+  }
+
+
+  /**
+   * Returns the codec's persistent ID.
+   */
+  int id();
+
+
+  /**
+   * Returns the maximum number of bytes the given number of bytes may encode to.
+   */
+  int maxEncodedLength(int length);
+
+
+  /**
+   * Encodes the given block.
+   *
+   * @param src       the block (contains whole rows)
+   * @param length    the number of bytes in <code>src</code> to encode
+   * @param rowWidth  the row width (some codecs exploit the row structure)
+   * @param out       the output array, at least {@linkplain #maxEncodedLength(int)
+   *                  maxEncodedLength(length)} bytes long
+   * @return the number of bytes written to <code>out</code>
+   */
+  int encode(byte[] src, int length, int rowWidth, byte[] out);
+
+
+  /**
+   * Decodes a block.
+   *
+   * @param src       the encoded block
+   * @param length    the number of bytes in <code>src</code> to decode
+   * @param rowWidth  the row width
+   * @param out       the output array. It's filled exactly (its length is the block's
+   *                  decoded length)
+   * @throws IoStateException if the encoded block is corrupt
+   */
+  void decode(byte[] src, int length, int rowWidth, byte[] out) throws IoStateException;
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.crums.io.IoStateException;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.ks.VolatileKeystone;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * A read-only {@linkplain SortedTable} stored in compressed blocks. The rows are split into
+ * fixed-row-count blocks, each compressed with a {@linkplain BlockCodec}. The first row of
+ * every block is kept (uncompressed) in a block index, which is loaded into memory as the
+ * table's {@linkplain FenceIndex fence index}. So a search first brackets the key between 2
+ * blocks' first rows, and then decompresses (at most) one block. Decompressed blocks are kept
+ * in a small LRU cache.
+ * <p>
+ * If the codec is a {@linkplain RandomAccessBlockCodec} (e.g. {@linkplain PrefixBlockCodec}),
+ * blocks are cached in their encoded form instead, rows are decoded individually, and
+ * {@linkplain #search(ByteBuffer)} searches the encoded block directly.
+ * </p>
+ * <p>
+ * Since the rows are still presented through {@linkplain #read(long, ByteBuffer)}, instances
+ * work wherever a <code>SortedTable</code> is read: {@linkplain SortedTable.Searcher searcher}s,
+ * merges, and {@linkplain TableSet} iterators. The write methods throw
+ * <code>UnsupportedOperationException</code>; instances are created from existing tables
+ * with {@linkplain #write(Table, File, BlockCodec, int)}, or by a {@linkplain
+ * BlockSortedTableWriter} (which may be the target of a merge).
+ * </p>
+ * <h2>File Format</h2>
+ * <p>
+ * A 32 byte header: magic (int), codec {@linkplain BlockCodec#id() ID} (int), row width (int),
+ * rows per block (int), row count (long), and block index offset (long). The compressed blocks
+ * follow; then the block index: the file offsets of each block, plus the end offset of the
+ * last (longs), followed by the first row of each block.
+ * </p>
+ */
+public class BlockSortedTable extends SortedTable {
+
+  /**
+   * Default (uncompressed) block size: 16kB, rounded down to a whole number of rows.
+   */
+  public final static int DEFAULT_BLOCK_BYTES = 16 * 1024;
+
+  /**
+   * Default number of decompressed blocks cached.
+   */
+  public final static int DEFAULT_CACHED_BLOCKS = 64;
+
+  final static int MAGIC = 0x42535431;   // "BST1"
+  final static int HEADER_SIZE = 32;
+
+
+  /**
+   * State shared by an instance and its copies.
+   */
+  private static class Blocks {
+    final FileChannel file;
+    final BlockCodec codec;
+    final int rowWidth;
+    final int rowsPerBlock;
+    final long rowCount;
+    final long[] offsets;
+    final Map<Integer, byte[]> cache;
+
+    Blocks(FileChannel file, BlockCodec codec, int rowWidth, int rowsPerBlock,
+        long rowCount, long[] offsets, int cachedBlocks) {
+      this.file = file;
+      this.codec = codec;
+      this.rowWidth = rowWidth;
+      this.rowsPerBlock = rowsPerBlock;
+      this.rowCount = rowCount;
+      this.offsets = offsets;
+      this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+          return size() > cachedBlocks;
+        }
+      };
+    }
+
+    int blockCount() {
+      return offsets.length - 1;
+    }
+
+    /**
+     * Returns the given block, decompressed; or if the codec is a {@linkplain
+     * RandomAccessBlockCodec}, as encoded.
+     */
+    byte[] block(int index) throws IOException {
+      synchronized (cache) {
+        byte[] rows = cache.get(index);
+        if (rows != null)
+          return rows;
+      }
+      int encodedLength = (int) (offsets[index + 1] - offsets[index]);
+      ByteBuffer encoded = ByteBuffer.allocate(encodedLength);
+      ChannelUtils.readRemaining(file, offsets[index], encoded);
+      if (codec instanceof RandomAccessBlockCodec) {
+        synchronized (cache) {
+          cache.put(index, encoded.array());
+        }
+        return encoded.array();
+      }
+      long firstRow = ((long) index) * rowsPerBlock;
+      byte[] rows = new byte[(int) Math.min(rowsPerBlock, rowCount - firstRow) * rowWidth];
+      codec.decode(encoded.array(), encodedLength, rowWidth, rows);
+      synchronized (cache) {
+        cache.put(index, rows);
+      }
+      return rows;
+    }
+
+    /**
+     * Puts <code>count</code> rows of the given block, starting from <code>rowInBlock</code>,
+     * into the <code>out</code> buffer.
+     */
+    void copyRows(int index, int rowInBlock, int count, ByteBuffer out) throws IOException {
+      byte[] block = block(index);
+      if (codec instanceof RandomAccessBlockCodec)
+        ((RandomAccessBlockCodec) codec).decodeRows(
+            block, block.length, rowWidth, rowInBlock, count, out);
+      else
+        out.put(block, rowInBlock * rowWidth, count * rowWidth);
+    }
+  }
+
+
+  private final Blocks blocks;
+
+
+  private BlockSortedTable(Blocks blocks, RowOrder order, ByteBuffer fences) throws IOException {
+    super(blocks.file, new VolatileKeystone(blocks.rowCount), blocks.rowWidth, order);
+    this.blocks = blocks;
+    if (blocks.blockCount() > 1)
+      setFenceIndex(FenceIndex.of(fences, blocks.rowsPerBlock, blocks.rowWidth, blocks.rowCount));
+  }
+
+
+  /**
+   * Copy constructor. The copy shares the block cache.
+   */
+  public BlockSortedTable(BlockSortedTable copy) {
+    super(copy);
+    this.blocks = copy.blocks;
+  }
+
+
+  @Override
+  public BlockSortedTable clone() {
+    return new BlockSortedTable(this);
+  }
+
+
+  /**
+   * Opens a previously {@linkplain #write(Table, File, BlockCodec, int) written} instance,
+   * with the {@linkplain #DEFAULT_CACHED_BLOCKS default} cache size.
+   */
+  public static BlockSortedTable open(File file, RowOrder order) throws IOException {
+    return open(file, order, DEFAULT_CACHED_BLOCKS);
+  }
+
+
+  /**
+   * Opens a previously {@linkplain #write(Table, File, BlockCodec, int) written} instance.
+   *
+   * @param order         the row order (must be the order the rows were sorted in)
+   * @param cachedBlocks  the maximum number of decompressed blocks cached (&ge; 1)
+   */
+  public static BlockSortedTable open(File file, RowOrder order, int cachedBlocks)
+      throws IOException {
+    if (cachedBlocks < 1)
+      throw new IllegalArgumentException("cachedBlocks: " + cachedBlocks);
+    @SuppressWarnings("resource")
+    FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      ChannelUtils.readRemaining(ch, 0, header).flip();
+      if (header.getInt() != MAGIC)
+        throw new IoStateException("not a block sorted table: " + file);
+      BlockCodec codec = BlockCodec.forId(header.getInt());
+      int rowWidth = header.getInt();
+      int rowsPerBlock = header.getInt();
+      long rowCount = header.getLong();
+      long indexOffset = header.getLong();
+      if (rowWidth < 1 || rowsPerBlock < 2 || rowCount < 0)
+        throw new IoStateException(
+            "corrupt header in " + file + ": rowWidth=" + rowWidth + ", rowsPerBlock=" +
+            rowsPerBlock + ", rowCount=" + rowCount);
+      long blockCount = (rowCount + rowsPerBlock - 1) / rowsPerBlock;
+      long indexSize = (blockCount + 1) * 8 + blockCount * rowWidth;
+      if (indexOffset < HEADER_SIZE || indexOffset + indexSize != ch.size())
+        throw new IoStateException(
+            "corrupt block index in " + file + ": offset " + indexOffset + ", size " + ch.size());
+
+      ByteBuffer index = ByteBuffer.allocate((int) ((blockCount + 1) * 8));
+      ChannelUtils.readRemaining(ch, indexOffset, index).flip();
+      long[] offsets = new long[(int) blockCount + 1];
+      for (int b = 0; b < offsets.length; ++b) {
+        offsets[b] = index.getLong();
+        if (b != 0 && offsets[b] < offsets[b - 1])
+          throw new IoStateException("corrupt block offsets in " + file + " at block " + b);
+      }
+      ByteBuffer fences = ByteBuffer.allocateDirect((int) blockCount * rowWidth);
+      ChannelUtils.readRemaining(ch, indexOffset + index.capacity(), fences).flip();
+
+      Blocks blocks =
+          new Blocks(ch, codec, rowWidth, rowsPerBlock, rowCount, offsets, cachedBlocks);
+      return new BlockSortedTable(blocks, order, fences);
+    } catch (IOException | RuntimeException x) {
+      ch.close();
+      throw x;
+    }
+  }
+
+
+  /**
+   * Writes the rows of the given <code>source</code> table (assumed sorted) to a new
+   * block sorted table file.
+   *
+   * @param source        the source table
+   * @param file          the path to the new file (must not exist)
+   * @param codec         the block compression codec
+   * @param rowsPerBlock  the number of rows per block (&ge; 2). See also {@linkplain
+   *                      #DEFAULT_BLOCK_BYTES}
+   * @return the file's size in bytes
+   * 
+   * @see BlockSortedTableWriter
+   */
+  public static long write(Table source, File file, BlockCodec codec, int rowsPerBlock)
+      throws IOException {
+    if (source == null)
+      throw new IllegalArgumentException("null source");
+    try (BlockSortedTableWriter writer = BlockSortedTableWriter.create(
+        file, source.getRowWidth(), null, codec, rowsPerBlock)) {
+      writer.appendRows(source, 0, source.getRowCount());
+      return writer.finish();
+    }
+  }
+
+
+  /**
+   * Returns the number of rows per block.
+   */
+  public final int getRowsPerBlock() {
+    return blocks.rowsPerBlock;
+  }
+
+
+  public final int getBlockCount() {
+    return blocks.blockCount();
+  }
+
+
+  public final BlockCodec getCodec() {
+    return blocks.codec;
+  }
+
+
+  @Override
+  public void read(long row, ByteBuffer rowData) throws IOException {
+    if (row < 0)
+      throw new IllegalArgumentException("row: " + row);
+    if (rowData == null)
+      throw new IllegalArgumentException("null rowData");
+    final int rowWidth = blocks.rowWidth;
+    final int size = rowData.remaining();
+    if (size == 0 || size % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "buffer size (" + size + " bytes) not a multiple of row size (" + rowWidth + " bytes)");
+    final long rows = size / rowWidth;
+    if (row + rows > blocks.rowCount)
+      throw new IllegalArgumentException(
+          "Overflow: read request beyond end of table. Row number is " + row +
+          "; number of rows to copy into rawData buffer is " + rows +
+          "; row count is " + blocks.rowCount);
+    checkOpen();
+
+    final int rowsPerBlock = blocks.rowsPerBlock;
+    for (long end = row + rows; row < end; ) {
+      int b = (int) (row / rowsPerBlock);
+      int rowInBlock = (int) (row % rowsPerBlock);
+      int count = (int) Math.min(rowsPerBlock - rowInBlock, end - row);
+      blocks.copyRows(b, rowInBlock, count, rowData);
+      row += count;
+    }
+  }
+
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If the codec is a {@linkplain RandomAccessBlockCodec}, the key is bracketed to a block
+   * with the fence index, and the (encoded) block is then searched by the codec.
+   * </p>
+   */
+  @Override
+  public ByteBuffer search(ByteBuffer key) throws IOException {
+    if (!(blocks.codec instanceof RandomAccessBlockCodec))
+      return super.search(key);
+    if (blocks.rowCount == 0 || !mayContain(key))
+      return null;
+    checkOpen();
+    FenceIndex fences = getFenceIndex();
+    int b = fences == null ? 0 : fences.floorFence(key, order());
+    if (b == -1)
+      return null;
+    byte[] block = blocks.block(b);
+    ByteBuffer row = ByteBuffer.allocate(blocks.rowWidth);
+    int index = ((RandomAccessBlockCodec) blocks.codec).search(
+        block, block.length, blocks.rowWidth, key, order(), row);
+    return index < 0 ? null : row.flip();
+  }
+
+
+  @Override
+  public ByteBuffer readView(long row, int count) throws IOException {
+    if (count < 1)
+      throw new IllegalArgumentException("count: " + count);
+    ByteBuffer rows = ByteBuffer.allocate(count * blocks.rowWidth);
+    read(row, rows);
+    return rows.flip().asReadOnlyBuffer();
+  }
+
+
+  /**
+   * Writes the (decompressed) rows to the given <code>target</code>.
+   */
+  @Override
+  public void transferRows(long row, long count, WritableByteChannel target) throws IOException {
+    if (count <= 0) {
+      if (count == 0)
+        return;
+      throw new IllegalArgumentException("count: " + count);
+    }
+    if (target == null)
+      throw new IllegalArgumentException("null target");
+    if (row < 0 || row + count > blocks.rowCount)
+      throw new IllegalArgumentException(
+          "row / count: " + row + " / " + count + "; row count is " + blocks.rowCount);
+    checkOpen();
+
+    final int rowWidth = blocks.rowWidth;
+    final int rowsPerBlock = blocks.rowsPerBlock;
+    for (long end = row + count; row < end; ) {
+      int b = (int) (row / rowsPerBlock);
+      int rowInBlock = (int) (row % rowsPerBlock);
+      int rows = (int) Math.min(rowsPerBlock - rowInBlock, end - row);
+      if (blocks.codec instanceof RandomAccessBlockCodec) {
+        ByteBuffer buffer = ByteBuffer.allocate(rows * rowWidth);
+        blocks.copyRows(b, rowInBlock, rows, buffer);
+        ChannelUtils.writeRemaining(target, buffer.flip());
+      } else
+        ChannelUtils.writeRemaining(
+            target, ByteBuffer.wrap(blocks.block(b), rowInBlock * rowWidth, rows * rowWidth));
+      row += rows;
+    }
+  }
+
+
+  /**
+   * Unsupported: the table is compressed. (Decompressed blocks are cached, instead.)
+   */
+  @Override
+  public void mapMemory(int maxSegmentSize) {
+    throw new UnsupportedOperationException("block sorted tables are not memory mapped");
+  }
+
+
+  /**
+   * Unsupported: the table caches its own (decoded) blocks.
+   * 
+   * @see #open(File, RowOrder, int)
+   */
+  @Override
+  public void setBlockCache(BlockCache cache) {
+    throw new UnsupportedOperationException("block sorted tables cache their own blocks");
+  }
+
+
+  @Override
+  public void set(long row, ByteBuffer rowData) {
+    throw readOnly();
+  }
+
+
+  @Override
+  public long append(ByteBuffer rowData) {
+    throw readOnly();
+  }
+
+
+  @Override
+  public long append(ByteBuffer[] rows) {
+    throw readOnly();
+  }
+
+
+  @Override
+  public long appendAndCommit(ByteBuffer[] rows) {
+    throw readOnly();
+  }
+
+
+  @Override
+  public void appendRows(Table source, long row, long count) {
+    throw readOnly();
+  }
+
+
+  @Override
+  public long trimToSize() {
+    throw readOnly();
+  }
+
+
+  @Override
+  public void truncate(long newRowCount) {
+    throw readOnly();
+  }
+
+
+  private UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("read-only: " + this);
+  }
+
+}
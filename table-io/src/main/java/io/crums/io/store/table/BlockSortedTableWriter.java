@@ -0,0 +1,302 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import io.crums.io.FileUtils;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.ks.VolatileKeystone;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Writes a {@linkplain BlockSortedTable} file, one block at a time, as rows are appended in
+ * sorted order. Since it's a {@linkplain SortedTable}, an instance can be the target of a
+ * merge (e.g. a {@linkplain io.crums.io.store.table.merge.SetMergeSort SetMergeSort}): rows
+ * appended from source tables are buffered into the current block, which is encoded and
+ * written once full.
+ * <p>
+ * The table is write-only: its rows cannot be read back (so a merge to it cannot build a
+ * Bloom filter; build one on the opened table, instead). The file is complete once the
+ * instance is {@linkplain #close() close}d, and may then be {@linkplain
+ * BlockSortedTable#open(File, RowOrder) open}ed.
+ * </p>
+ */
+public class BlockSortedTableWriter extends SortedTable {
+
+  private final FileChannel file;
+  private final BlockCodec codec;
+  private final int rowsPerBlock;
+  private final int rowWidth;
+
+  private final byte[] block;
+  private final ByteBuffer blockBuffer;
+  private final byte[] encoded;
+
+  private long[] offsets = new long[64];
+  private int blockCount;
+  private ByteBuffer fences;
+  private long offset = BlockSortedTable.HEADER_SIZE;
+  private long rowCount;
+
+  private boolean finished;
+
+
+  /**
+   * Creates a new instance writing to the given file path.
+   *
+   * @param file          the path to the new file (must not exist)
+   * @param rowWidth      the row width
+   * @param order         the order rows are appended in (may be <code>null</code>; the
+   *                      writer doesn't compare rows)
+   * @param codec         the block compression codec
+   * @param rowsPerBlock  the number of rows per block (&ge; 2). See also {@linkplain
+   *                      BlockSortedTable#DEFAULT_BLOCK_BYTES}
+   */
+  public static BlockSortedTableWriter create(
+      File file, int rowWidth, RowOrder order, BlockCodec codec, int rowsPerBlock)
+          throws IOException {
+    if (codec == null)
+      throw new IllegalArgumentException("null codec");
+    if (rowsPerBlock < 2)
+      throw new IllegalArgumentException("rowsPerBlock: " + rowsPerBlock);
+    if (rowWidth < 1)
+      throw new IllegalArgumentException("rowWidth: " + rowWidth);
+    if (((long) rowsPerBlock) * rowWidth > Integer.MAX_VALUE / 4)
+      throw new IllegalArgumentException(
+          "rowsPerBlock " + rowsPerBlock + " too large for row width " + rowWidth);
+    FileUtils.assertDoesntExist(file);
+    @SuppressWarnings("resource")
+    FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+    return new BlockSortedTableWriter(ch, rowWidth, order, codec, rowsPerBlock);
+  }
+
+
+  private BlockSortedTableWriter(
+      FileChannel file, int rowWidth, RowOrder order, BlockCodec codec, int rowsPerBlock)
+          throws IOException {
+    super(file, new VolatileKeystone(0), rowWidth, order);
+    this.file = file;
+    this.codec = codec;
+    this.rowsPerBlock = rowsPerBlock;
+    this.rowWidth = rowWidth;
+    this.block = new byte[rowsPerBlock * rowWidth];
+    this.blockBuffer = ByteBuffer.wrap(block);
+    this.encoded = new byte[codec.maxEncodedLength(block.length)];
+    this.fences = ByteBuffer.allocate(64 * rowWidth);
+  }
+
+
+  public final BlockCodec getCodec() {
+    return codec;
+  }
+
+
+  public final int getRowsPerBlock() {
+    return rowsPerBlock;
+  }
+
+
+  /**
+   * Returns the number of rows appended.
+   */
+  @Override
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  @Override
+  public long append(ByteBuffer rowData) throws IOException {
+    checkWritable();
+    if (rowData == null || !rowData.hasRemaining() || rowData.remaining() % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "remaining bytes not a nonzero multiple of row width (" + rowWidth + "): " + rowData);
+    final long firstRow = rowCount;
+    while (rowData.hasRemaining()) {
+      int bytes = Math.min(rowData.remaining(), blockBuffer.remaining());
+      int limit = rowData.limit();
+      rowData.limit(rowData.position() + bytes);
+      blockBuffer.put(rowData);
+      rowData.limit(limit);
+      rowCount += bytes / rowWidth;
+      if (!blockBuffer.hasRemaining())
+        writeBlock();
+    }
+    return firstRow;
+  }
+
+
+  @Override
+  public long append(ByteBuffer[] rows) throws IOException {
+    final long firstRow = rowCount;
+    for (ByteBuffer buffer : rows)
+      if (buffer.hasRemaining())
+        append(buffer);
+    return firstRow;
+  }
+
+
+  /**
+   * Appends rows from the <code>source</code> table, one block's worth at a time.
+   */
+  @Override
+  public void appendRows(Table source, long row, long count) throws IOException {
+    checkWritable();
+    if (source == null)
+      throw new IllegalArgumentException("null source");
+    if (source.getRowWidth() != rowWidth)
+      throw new IllegalArgumentException(
+          "row width mismatch. Expected " + rowWidth + "; actual was " + source.getRowWidth());
+    if (count < 0)
+      throw new IllegalArgumentException("count: " + count);
+    for (long end = row + count; row < end; ) {
+      int rows = (int) Math.min(blockBuffer.remaining() / rowWidth, end - row);
+      blockBuffer.limit(blockBuffer.position() + rows * rowWidth);
+      source.read(row, blockBuffer);
+      blockBuffer.limit(blockBuffer.capacity());
+      row += rows;
+      rowCount += rows;
+      if (!blockBuffer.hasRemaining())
+        writeBlock();
+    }
+  }
+
+
+  private void writeBlock() throws IOException {
+    final int length = blockBuffer.position();
+    if (length == 0)
+      return;
+    if (blockCount + 1 >= offsets.length)
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+    if (fences.remaining() < rowWidth) {
+      ByteBuffer larger = ByteBuffer.allocate(2 * fences.capacity());
+      fences = larger.put(fences.flip());
+    }
+    fences.put(block, 0, rowWidth);
+
+    int encodedLength = codec.encode(block, length, rowWidth, encoded);
+    offsets[blockCount++] = offset;
+    ChannelUtils.writeRemaining(file, offset, ByteBuffer.wrap(encoded, 0, encodedLength));
+    offset += encodedLength;
+    blockBuffer.clear();
+  }
+
+
+  /**
+   * Writes the last (partial) block, the block index and the header. Invoked on
+   * {@linkplain #close()}; idempotent.
+   *
+   * @return the file size in bytes
+   */
+  public long finish() throws IOException {
+    if (finished)
+      return offset;
+    checkOpen();
+    writeBlock();
+    offsets[blockCount] = offset;
+
+    final long indexOffset = offset;
+    ByteBuffer index = ByteBuffer.allocate((blockCount + 1) * 8);
+    for (int b = 0; b <= blockCount; ++b)
+      index.putLong(offsets[b]);
+    ChannelUtils.writeRemaining(file, indexOffset, index.flip());
+    ChannelUtils.writeRemaining(file, indexOffset + index.capacity(), fences.flip());
+    offset = indexOffset + index.capacity() + fences.limit();
+
+    ByteBuffer header = ByteBuffer.allocate(BlockSortedTable.HEADER_SIZE);
+    header.putInt(BlockSortedTable.MAGIC).putInt(codec.id()).putInt(rowWidth)
+        .putInt(rowsPerBlock).putLong(rowCount).putLong(indexOffset).flip();
+    ChannelUtils.writeRemaining(file, 0, header);
+    file.force(false);
+    finished = true;
+    return offset;
+  }
+
+
+  /**
+   * {@linkplain #finish() Finish}es writing the file, and closes it.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (isOpen())
+        finish();
+    } finally {
+      super.close();
+    }
+  }
+
+
+  private void checkWritable() throws IOException {
+    checkOpen();
+    if (finished)
+      throw new IllegalStateException("already finished: " + this);
+  }
+
+
+  @Override
+  public void read(long row, ByteBuffer rowData) {
+    throw writeOnly();
+  }
+
+
+  @Override
+  public ByteBuffer readView(long row, int count) {
+    throw writeOnly();
+  }
+
+
+  @Override
+  public void transferRows(long row, long count, WritableByteChannel target) {
+    throw writeOnly();
+  }
+
+
+  @Override
+  public void mapMemory(int maxSegmentSize) {
+    throw writeOnly();
+  }
+
+
+  @Override
+  public void set(long row, ByteBuffer rowData) {
+    throw new UnsupportedOperationException("append-only: " + this);
+  }
+
+
+  /**
+   * Unsupported: rows are buffered into blocks, and are only durable once
+   * {@linkplain #finish() finish}ed.
+   */
+  @Override
+  public long appendAndCommit(ByteBuffer[] rows) {
+    throw new UnsupportedOperationException("no durable appends (see finish()): " + this);
+  }
+
+
+  @Override
+  public long trimToSize() {
+    throw writeOnly();
+  }
+
+
+  @Override
+  public void truncate(long newRowCount) {
+    throw writeOnly();
+  }
+
+
+  private UnsupportedOperationException writeOnly() {
+    return new UnsupportedOperationException("write-only: " + this);
+  }
+
+}
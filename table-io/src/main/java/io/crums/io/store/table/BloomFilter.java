@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.crums.io.FileUtils;
+import io.crums.io.IoStateException;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.order.KeyHasher;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Bloom filter over the keys of a {@linkplain SortedTable}'s rows. A negative
+ * {@linkplain #mayContain(ByteBuffer)} answer means the key is definitely not in the table,
+ * so a {@linkplain TableSet} lookup can skip the table without searching it.
+ * <p>
+ * Keys are hashed with the table order's {@linkplain RowOrder#keyHasher() key hasher}.
+ * Instances are built as rows are added (e.g. on
+ * {@linkplain SortedTableBuilder#flush(java.nio.channels.GatheringByteChannel, boolean, double)
+ * flush}), or by {@linkplain #build(SortedTable, double) scanning} an existing table.
+ * Instances record the number of rows added: a table ignores its filter once its row count
+ * no longer matches (e.g. after an append).
+ * </p>
+ * <p>
+ * Adding rows is not thread-safe; querying a fully built instance is.
+ * </p>
+ * <h2>Sidecar File Format</h2>
+ * <p>
+ * A header (bit count as a long, hash count as an int, row count as a long, key region count
+ * as an int, followed by each region's offset and width as ints), followed by the bit set
+ * as longs.
+ * </p>
+ *
+ * @see SortedTable#setBloomFilter(BloomFilter)
+ */
+public final class BloomFilter {
+
+  /**
+   * Default false positive probability.
+   */
+  public final static double DEFAULT_FPP = 0.01;
+
+  private final static int MAX_HASH_COUNT = 16;
+
+  /**
+   * Rows read per chunk when building from a table.
+   */
+  private final static int SCAN_BUFFER_SIZE = 64 * 1024;
+
+  private final KeyHasher hasher;
+  private final long[] words;
+  private final long bitCount;
+  private final int hashCount;
+  private long rowCount;
+
+
+  private BloomFilter(KeyHasher hasher, long[] words, int hashCount, long rowCount) {
+    this.hasher = hasher;
+    this.words = words;
+    this.bitCount = ((long) words.length) << 6;
+    this.hashCount = hashCount;
+    this.rowCount = rowCount;
+  }
+
+
+  /**
+   * Creates a new, empty instance sized for the given number of rows.
+   *
+   * @param order         the table order (must have a {@linkplain RowOrder#keyHasher() key hasher})
+   * @param expectedRows  the expected number of rows
+   * @param fpp           the target false positive probability (between 0 and 1, exclusive)
+   */
+  public static BloomFilter newInstance(RowOrder order, long expectedRows, double fpp) {
+    KeyHasher hasher = order.keyHasher();
+    if (hasher == null)
+      throw new IllegalArgumentException("order has no key hasher: " + order);
+    return newInstance(hasher, expectedRows, fpp);
+  }
+
+
+  /**
+   * Creates a new, empty instance sized for the given number of rows.
+   *
+   * @param hasher        the key hasher
+   * @param expectedRows  the expected number of rows
+   * @param fpp           the target false positive probability (between 0 and 1, exclusive)
+   */
+  public static BloomFilter newInstance(KeyHasher hasher, long expectedRows, double fpp) {
+    if (hasher == null)
+      throw new IllegalArgumentException("null hasher");
+    if (expectedRows < 0)
+      throw new IllegalArgumentException("expectedRows: " + expectedRows);
+    if (!(fpp > 0 && fpp < 1))
+      throw new IllegalArgumentException("fpp: " + fpp);
+
+    long n = Math.max(1, expectedRows);
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+    long wordCount = Math.max(1, (bits + 63) >>> 6);
+    if (wordCount > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException(
+          "too many rows (" + expectedRows + ") for fpp " + fpp);
+    int hashCount = (int) Math.round((wordCount << 6) * ln2 / n);
+    hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, hashCount));
+    return new BloomFilter(hasher, new long[(int) wordCount], hashCount, 0);
+  }
+
+
+  /**
+   * Builds and returns a new instance by scanning the rows of the given <code>table</code>.
+   * Used for tables written by merges.
+   *
+   * @param fpp  the target false positive probability (between 0 and 1, exclusive)
+   */
+  public static BloomFilter build(SortedTable table, double fpp) throws IOException {
+    final long rows = table.getRowCount();
+    final int rowWidth = table.getRowWidth();
+    BloomFilter filter = newInstance(table.order(), rows, fpp);
+
+    int rowsPerRead = Math.max(1, SCAN_BUFFER_SIZE / rowWidth);
+    ByteBuffer buffer = ByteBuffer.allocate(rowsPerRead * rowWidth);
+    for (long row = 0; row < rows; ) {
+      int count = (int) Math.min(rowsPerRead, rows - row);
+      buffer.clear().limit(count * rowWidth);
+      table.read(row, buffer);
+      for (int index = 0; index < count; ++index)
+        filter.add(buffer.slice(index * rowWidth, rowWidth));
+      row += count;
+    }
+    return filter;
+  }
+
+
+  /**
+   * Loads and returns an instance previously {@linkplain #save(File) saved}. The loaded
+   * filter's hasher is checked against the table's order when it's
+   * {@linkplain SortedTable#setBloomFilter(BloomFilter) set}.
+   */
+  public static BloomFilter load(File file) throws IOException {
+    try (FileChannel ch = new FileInputStream(file).getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(24);
+      ChannelUtils.readRemaining(ch, header).flip();
+      long bitCount = header.getLong();
+      int hashCount = header.getInt();
+      long rowCount = header.getLong();
+      int regionCount = header.getInt();
+      if (bitCount <= 0 || (bitCount & 63) != 0 || (bitCount >>> 6) > Integer.MAX_VALUE ||
+          hashCount < 1 || hashCount > MAX_HASH_COUNT || rowCount < 0 ||
+          regionCount < 0 || regionCount > 1024)
+        throw new IoStateException("corrupt Bloom filter header in " + file);
+
+      ByteBuffer regions = ByteBuffer.allocate(regionCount * 8);
+      ChannelUtils.readRemaining(ch, regions).flip();
+      int[] offsets = new int[regionCount];
+      int[] widths = new int[regionCount];
+      for (int index = 0; index < regionCount; ++index) {
+        offsets[index] = regions.getInt();
+        widths[index] = regions.getInt();
+      }
+
+      long[] words = new long[(int) (bitCount >>> 6)];
+      if (ch.size() != ch.position() + words.length * 8L)
+        throw new IoStateException(
+            "Bloom filter " + file + " has unexpected size " + ch.size() + " bytes");
+      ByteBuffer wordBuffer = ByteBuffer.allocate(words.length * 8);
+      ChannelUtils.readRemaining(ch, wordBuffer).flip();
+      wordBuffer.asLongBuffer().get(words);
+
+      return new BloomFilter(
+          KeyHasher.forRegions(offsets, widths), words, hashCount, rowCount);
+    }
+  }
+
+
+  /**
+   * Saves this instance to the given sidecar <code>file</code>.
+   *
+   * @param file path to a file that does not exist
+   */
+  public void save(File file) throws IOException {
+    FileUtils.assertDoesntExist(file);
+    final int regionCount = hasher.regionCount();
+    ByteBuffer buffer = ByteBuffer.allocate(24 + regionCount * 8 + words.length * 8);
+    buffer.putLong(bitCount).putInt(hashCount).putLong(rowCount).putInt(regionCount);
+    for (int index = 0; index < regionCount; ++index)
+      buffer.putInt(hasher.regionOffset(index)).putInt(hasher.regionWidth(index));
+    buffer.asLongBuffer().put(words);
+    buffer.clear();
+    try (FileChannel ch = new FileOutputStream(file).getChannel()) {
+      ChannelUtils.writeRemaining(ch, buffer);
+    }
+  }
+
+
+  /**
+   * Adds the given row's key. The state of the argument is not modified.
+   */
+  public void add(ByteBuffer row) {
+    long hash = hasher.hash(row);
+    long h1 = hash & 0xffffffffL;
+    long h2 = hash >>> 32;
+    for (int i = 0; i < hashCount; ++i) {
+      long bit = (h1 + i * h2) % bitCount;
+      words[(int) (bit >>> 6)] |= 1L << bit;
+    }
+    ++rowCount;
+  }
+
+
+  /**
+   * Determines whether the given key <em>may</em> be present. If <code>false</code> is
+   * returned, then the key is definitely not present.
+   */
+  public boolean mayContain(ByteBuffer key) {
+    long hash = hasher.hash(key);
+    long h1 = hash & 0xffffffffL;
+    long h2 = hash >>> 32;
+    for (int i = 0; i < hashCount; ++i) {
+      long bit = (h1 + i * h2) % bitCount;
+      if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+
+  /**
+   * Returns the number of rows added.
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Returns the size of the bit set.
+   */
+  public long getBitCount() {
+    return bitCount;
+  }
+
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+
+  public KeyHasher getHasher() {
+    return hasher;
+  }
+
+
+  @Override
+  public String toString() {
+    return
+        "[BloomFilter: rows=" + rowCount + ", bits=" + bitCount + ", hashes=" + hashCount +
+        ", " + hasher + "]";
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.crums.io.store.ks.Keystone;
+
+/**
+ * Appends from many threads without serializing the writes. Each append atomically
+ * <em>reserves</em> a row range on an in-memory counter, then writes its rows at their
+ * positions in the file, in parallel with other appenders. The table's row count is
+ * <em>published</em> (advanced in the keystone) only over the contiguous prefix of
+ * completed reservations: rows whose predecessors are still being written are not yet
+ * visible.
+ * <p>
+ * No lock is held during a write. Publishing is done by whichever appender finds the next
+ * range complete and wins a (non-blocking) try-lock; the others just leave, since the
+ * winner re-checks for newly completed ranges after it releases the lock.
+ * </p>
+ * <p>
+ * While an instance is in use, the table should not be appended to directly. If a write
+ * fails, its reserved range is never completed, so nothing past it can be published: the
+ * instance then fails all further appends.
+ * </p>
+ */
+public class ConcurrentAppender {
+
+  private final Table table;
+  private final Keystone rowCount;
+  private final AtomicLong reserved;
+  /**
+   * Completed, unpublished ranges: first row &rarr; end row (exclusive).
+   */
+  private final ConcurrentSkipListMap<Long, Long> completed = new ConcurrentSkipListMap<>();
+  private final ReentrantLock publishLock = new ReentrantLock();
+
+  private volatile long published;
+  private volatile IOException failure;
+
+
+  /**
+   * Creates an instance appending to the given table.
+   */
+  public ConcurrentAppender(Table table) throws IOException {
+    if (table == null)
+      throw new IllegalArgumentException("null table");
+    this.table = table;
+    this.rowCount = table.rowCountKeystone();
+    this.published = rowCount.get();
+    this.reserved = new AtomicLong(published);
+  }
+
+
+  public final Table getTable() {
+    return table;
+  }
+
+
+  /**
+   * Appends one or more rows. On return the rows are written, but they are only visible
+   * (counted) once all rows reserved before them are also written; see
+   * {@linkplain #getPublishedCount()}.
+   *
+   * @param rows the remaining bytes must be a nonzero multiple of the row width
+   * @return the row number of the first row appended
+   */
+  public long append(ByteBuffer rows) throws IOException {
+    if (rows == null)
+      throw new IllegalArgumentException("null rows");
+    final int rowWidth = table.getRowWidth();
+    if (!rows.hasRemaining() || rows.remaining() % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "remaining bytes not a nonzero multiple of row width (" + rowWidth + "): " + rows);
+    checkFailure();
+
+    final long count = rows.remaining() / rowWidth;
+    final long first = reserved.getAndAdd(count);
+    try {
+      table.writeRows(first, rows);
+    } catch (IOException iox) {
+      failure = iox;
+      throw iox;
+    }
+    completed.put(first, first + count);
+    publish();
+    return first;
+  }
+
+
+  /**
+   * Advances the published row count over completed reservations. If the lock is taken,
+   * its holder will see our range when it re-checks after unlocking.
+   */
+  private void publish() throws IOException {
+    while (completed.containsKey(published) && publishLock.tryLock()) {
+      try {
+        long count = published;
+        for (Long end; (end = completed.remove(count)) != null; )
+          count = end;
+        if (count != published) {
+          rowCount.set(count);
+          published = count;
+        }
+      } catch (IOException iox) {
+        failure = iox;
+        throw iox;
+      } finally {
+        publishLock.unlock();
+      }
+    }
+  }
+
+
+  private void checkFailure() throws IOException {
+    IOException x = failure;
+    if (x != null)
+      throw new IOException("appender failed on an earlier write: " + x.getMessage(), x);
+  }
+
+
+  /**
+   * Returns the number of rows published: the table's row count.
+   */
+  public long getPublishedCount() {
+    return published;
+  }
+
+
+  /**
+   * Returns the number of rows reserved (published, or being written).
+   */
+  public long getReservedCount() {
+    return reserved.get();
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.crums.io.FileUtils;
+import io.crums.io.IoStateException;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Sparse, in-memory index of a {@linkplain SortedTable}: every <em>stride</em>-th row
+ * (the fence row) is copied into a compact, off-heap buffer. A search first brackets the
+ * key between 2 adjacent fences (in memory), and then searches only the rows in between
+ * on disk. So if the {@linkplain SortedTable.Searcher searcher}'s buffer holds at least
+ * <em>stride</em> rows, a lookup costs at most one read.
+ * <p>
+ * Instances are immutable and safe to share across threads. An instance indexes a
+ * snapshot of the table's rows: rows appended later are still searched (on disk), but if
+ * rows are modified in place, or if the table is truncated below the snapshot, the index
+ * must be rebuilt.
+ * </p>
+ * <h2>Sidecar File Format</h2>
+ * <p>
+ * An instance may be {@linkplain #save(File) saved} to, and {@linkplain #load(File, SortedTable)
+ * loaded} from a sidecar file: a 16 byte header (row count snapshot as a long, row width as an
+ * int, stride as an int), followed by the fence rows.
+ * </p>
+ *
+ * @see SortedTable#setFenceIndex(FenceIndex)
+ */
+public final class FenceIndex {
+
+  /**
+   * Sidecar file header size.
+   */
+  private final static int HEADER_SIZE = 16;
+
+  private final ByteBuffer fences;
+  private final int fenceCount;
+  private final int stride;
+  private final int rowWidth;
+  private final long rowCount;
+
+
+  private FenceIndex(ByteBuffer fences, int stride, int rowWidth, long rowCount) {
+    this.fences = fences;
+    this.stride = stride;
+    this.rowWidth = rowWidth;
+    this.rowCount = rowCount;
+    this.fenceCount = fences.capacity() / rowWidth;
+  }
+
+
+  /**
+   * Builds and returns a new instance for the given table. Each fence row is read
+   * individually, so this involves about <code>table.getRowCount() / stride</code> reads.
+   *
+   * @param table   the source table (must be sorted)
+   * @param stride  the number of rows per fence (&ge; 2)
+   */
+  public static FenceIndex build(SortedTable table, int stride) throws IOException {
+    if (stride < 2)
+      throw new IllegalArgumentException("stride: " + stride);
+    final int rowWidth = table.getRowWidth();
+    final long rowCount = table.getRowCount();
+    final long fenceCount = (rowCount + stride - 1) / stride;
+    if (fenceCount * rowWidth > Integer.MAX_VALUE)
+      throw new IllegalArgumentException(
+          "stride " + stride + " too small for " + rowCount + " rows of width " + rowWidth);
+
+    ByteBuffer fences = ByteBuffer.allocateDirect((int) (fenceCount * rowWidth));
+    for (long fence = 0; fence < fenceCount; ++fence) {
+      fences.limit(fences.position() + rowWidth);
+      table.read(fence * stride, fences);
+    }
+    return new FenceIndex(fences.clear(), stride, rowWidth, rowCount);
+  }
+
+
+  /**
+   * Returns an instance over the given fence rows, already in memory.
+   * Package-private, for {@linkplain BlockSortedTable}.
+   *
+   * @param fences  the fence rows (remaining bytes); not copied
+   */
+  static FenceIndex of(ByteBuffer fences, int stride, int rowWidth, long rowCount) {
+    if (stride < 2)
+      throw new IllegalArgumentException("stride: " + stride);
+    return new FenceIndex(fences.slice(), stride, rowWidth, rowCount);
+  }
+
+
+  /**
+   * Loads and returns an instance previously {@linkplain #save(File) saved} for the
+   * given <code>table</code>.
+   *
+   * @throws IoStateException
+   *         if the sidecar file doesn't match the table (wrong row width, or the table is
+   *         shorter than the row count snapshot), or is too large to load
+   */
+  public static FenceIndex load(File file, SortedTable table) throws IOException {
+    try (FileChannel ch = new FileInputStream(file).getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      ChannelUtils.readRemaining(ch, header).flip();
+      long rowCount = header.getLong();
+      int rowWidth = header.getInt();
+      int stride = header.getInt();
+      if (rowWidth != table.getRowWidth() || stride < 2 || rowCount < 0)
+        throw new IoStateException(
+            "fence index " + file + " (rowWidth=" + rowWidth + ", stride=" + stride +
+            ") does not match table " + table);
+      if (rowCount > table.getRowCount())
+        throw new IoStateException(
+            "stale fence index " + file + ": indexes " + rowCount + " rows; table has " +
+            table.getRowCount());
+      long fenceCount = (rowCount + stride - 1) / stride;
+      if (ch.size() != HEADER_SIZE + fenceCount * rowWidth)
+        throw new IoStateException(
+            "fence index " + file + " has unexpected size " + ch.size() + " bytes");
+      if (fenceCount * rowWidth > Integer.MAX_VALUE)
+        throw new IoStateException(
+            "fence index " + file + " too large: " + fenceCount + " fences of width " + rowWidth);
+
+      ByteBuffer fences = ByteBuffer.allocateDirect((int) (fenceCount * rowWidth));
+      ChannelUtils.readRemaining(ch, fences);
+      return new FenceIndex(fences.clear(), stride, rowWidth, rowCount);
+    }
+  }
+
+
+  /**
+   * Saves this instance to the given sidecar <code>file</code>.
+   *
+   * @param file path to a file that does not exist
+   */
+  public void save(File file) throws IOException {
+    FileUtils.assertDoesntExist(file);
+    try (FileChannel ch = new FileOutputStream(file).getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putLong(rowCount).putInt(rowWidth).putInt(stride).flip();
+      ChannelUtils.writeRemaining(ch, header);
+      ChannelUtils.writeRemaining(ch, fences.duplicate().clear());
+    }
+  }
+
+
+  /**
+   * Returns the number of rows per fence.
+   */
+  public int getStride() {
+    return stride;
+  }
+
+
+  /**
+   * Returns the number of rows indexed.
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Returns the number of fence rows.
+   */
+  public int getFenceCount() {
+    return fenceCount;
+  }
+
+
+  public int getRowWidth() {
+    return rowWidth;
+  }
+
+
+  /**
+   * Returns a read-only view of the given fence's row. Its row number in the table is
+   * <code>fence * getStride()</code>.
+   */
+  public ByteBuffer getFence(int fence) {
+    return fences.slice(fence * rowWidth, rowWidth).asReadOnlyBuffer();
+  }
+
+
+  /**
+   * Brackets the given <code>key</code> among the fence rows.
+   *
+   * @return the index of the last fence that is less than or equal to the key, or -1 if
+   *         the key is less than the first fence
+   */
+  public int floorFence(ByteBuffer key, RowOrder order) {
+    int lo = 0;
+    int hi = fenceCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int comp = order.compare(fences.slice(mid * rowWidth, rowWidth), key);
+      if (comp < 0)
+        lo = mid + 1;
+      else if (comp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return hi;
+  }
+
+
+  /**
+   * Copies the given fence's row into the <code>out</code> buffer.
+   */
+  void copyFence(int fence, ByteBuffer out) {
+    out.put(fences.slice(fence * rowWidth, rowWidth));
+  }
+
+
+  @Override
+  public String toString() {
+    return
+        "[FenceIndex: rows=" + rowCount + ", stride=" + stride + ", fences=" + fenceCount + "]";
+  }
+
+}
@@ -93,6 +93,23 @@ public class FilebackedList extends AbstractList<ByteBuffer> implements Channel,
     }
     return out.flip();
   }
+  
+  
+  /**
+   * Returns a read-only view of the element at the given <code>index</code>. If the
+   * backing table is {@linkplain Table#isMemoryMapped() memory mapped}, this is
+   * a zero-copy operation.
+   * 
+   * @see Table#readView(long, int)
+   */
+  public ByteBuffer getView(int index) {
+    Objects.checkIndex(index, size());
+    try {
+      return table.readView(index, 1);
+    } catch (IOException iox) {
+      throw new UncheckedIOException("failed to read index " + index + " from table " + table, iox);
+    }
+  }
 
   @Override
   public int size() {
@@ -146,6 +163,24 @@ public class FilebackedList extends AbstractList<ByteBuffer> implements Channel,
     return createInstanceImpl(file, rowSize, true, false);
   }
   
+  
+  /**
+   * Creates and returns a read-only instance, optionally with a memory mapped backing table.
+   * 
+   * @param file          file path to the backing table
+   * @param rowSize       bytes per row
+   * @param memoryMapped  if <code>true</code>, then reads are served from a memory map
+   * 
+   * @see Table#mapMemory()
+   * @see #getView(int)
+   */
+  public static FilebackedList createReadOnlyInstance(File file, int rowSize, boolean memoryMapped) throws IOException {
+    FilebackedList list = createInstanceImpl(file, rowSize, true, false);
+    if (memoryMapped)
+      list.table.mapMemory();
+    return list;
+  }
+  
 
   /**
    * Creates and returns an instance in read-write mode; if it doesn't exist on the file system, creates it.
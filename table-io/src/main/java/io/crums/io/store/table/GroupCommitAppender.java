@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Durable appends from many threads, committed in groups. Appends arriving while a commit
+ * is in progress are queued; the next commit gathers them all into a single write and a
+ * single keystone commit (usually 2 syncs, see {@linkplain Table#appendAndCommit(ByteBuffer[])}).
+ * So the cost of syncing is amortized over the group.
+ * <p>
+ * There is no background thread: the first appending thread to find no commit in progress
+ * becomes the <em>leader</em> and commits groups (its own, and any queued since) until the
+ * queue is empty. The other threads just await their futures.
+ * </p>
+ * <p>
+ * While an instance is in use, the table should not be appended to directly.
+ * </p>
+ */
+public class GroupCommitAppender {
+
+  /**
+   * Default maximum number of bytes in a group commit: 4MB.
+   */
+  public final static int DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+
+  private static class Pending {
+    final ByteBuffer rows;
+    final int rowCount;
+    final CompletableFuture<Long> future = new CompletableFuture<>();
+
+    Pending(ByteBuffer rows, int rowCount) {
+      this.rows = rows;
+      this.rowCount = rowCount;
+    }
+  }
+
+
+  private final Object lock = new Object();
+
+  private final Table table;
+  private final int maxBatchBytes;
+
+  private ArrayList<Pending> queue = new ArrayList<>();
+  private boolean committing;
+  private boolean closed;
+
+  private long commitCount;
+  private long appendCount;
+
+
+  /**
+   * Creates an instance with the {@linkplain #DEFAULT_MAX_BATCH_BYTES default} batch size.
+   */
+  public GroupCommitAppender(Table table) {
+    this(table, DEFAULT_MAX_BATCH_BYTES);
+  }
+
+
+  /**
+   * @param table         the table appended to
+   * @param maxBatchBytes the maximum number of bytes in a group (a single append
+   *                      may exceed it)
+   */
+  public GroupCommitAppender(Table table, int maxBatchBytes) {
+    if (table == null)
+      throw new IllegalArgumentException("null table");
+    if (maxBatchBytes < table.getRowWidth())
+      throw new IllegalArgumentException(
+          "maxBatchBytes (" + maxBatchBytes + ") < rowWidth (" + table.getRowWidth() + ")");
+    this.table = table;
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+
+  public final Table getTable() {
+    return table;
+  }
+
+
+  /**
+   * Appends one or more rows durably. The given buffer's remaining bytes are handed
+   * off: they must not be modified until the returned future completes.
+   *
+   * @param rows the remaining bytes must be a nonzero multiple of the row width
+   * @return a future completed with the row number of the first row appended, once
+   *         the rows and the row count are committed. If the calling thread becomes
+   *         the leader, the future is already completed on return
+   */
+  public CompletableFuture<Long> append(ByteBuffer rows) {
+    if (rows == null)
+      throw new IllegalArgumentException("null rows");
+    final int rowWidth = table.getRowWidth();
+    if (!rows.hasRemaining() || rows.remaining() % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "remaining bytes not a nonzero multiple of row width (" + rowWidth + "): " + rows);
+
+    Pending pending = new Pending(rows, rows.remaining() / rowWidth);
+    boolean lead;
+    synchronized (lock) {
+      if (closed) {
+        pending.future.completeExceptionally(new ClosedChannelException());
+        return pending.future;
+      }
+      queue.add(pending);
+      lead = !committing;
+      committing = true;
+    }
+    if (lead)
+      commitLoop();
+    return pending.future;
+  }
+
+
+  /**
+   * Commits queued groups until the queue is empty.
+   */
+  private void commitLoop() {
+    while (true) {
+      List<Pending> group;
+      synchronized (lock) {
+        if (queue.isEmpty()) {
+          committing = false;
+          return;
+        }
+        group = takeGroup();
+      }
+      commit(group);
+    }
+  }
+
+
+  /**
+   * Removes and returns the next group from the head of the queue. Invoked under lock.
+   */
+  private List<Pending> takeGroup() {
+    int bytes = 0;
+    int count = 0;
+    while (count < queue.size()) {
+      int next = queue.get(count).rows.remaining();
+      if (count != 0 && bytes + next > maxBatchBytes)
+        break;
+      bytes += next;
+      ++count;
+    }
+    if (count == queue.size()) {
+      List<Pending> group = queue;
+      queue = new ArrayList<>();
+      return group;
+    }
+    List<Pending> group = new ArrayList<>(queue.subList(0, count));
+    queue.subList(0, count).clear();
+    return group;
+  }
+
+
+  private void commit(List<Pending> group) {
+    ByteBuffer[] buffers = new ByteBuffer[group.size()];
+    for (int index = 0; index < buffers.length; ++index)
+      buffers[index] = group.get(index).rows;
+    long[] firstRows = new long[buffers.length];
+    try {
+      long row = table.appendAndCommit(buffers);
+      for (int index = 0; index < buffers.length; ++index) {
+        firstRows[index] = row;
+        row += group.get(index).rowCount;
+      }
+      synchronized (lock) {
+        ++commitCount;
+        appendCount += group.size();
+      }
+    } catch (IOException | RuntimeException x) {
+      for (Pending pending : group)
+        pending.future.completeExceptionally(x);
+      return;
+    }
+    for (int index = 0; index < buffers.length; ++index)
+      group.get(index).future.complete(firstRows[index]);
+  }
+
+
+  /**
+   * Returns the number of group commits.
+   */
+  public long getCommitCount() {
+    synchronized (lock) {
+      return commitCount;
+    }
+  }
+
+
+  /**
+   * Returns the number of appends committed.
+   */
+  public long getAppendCount() {
+    synchronized (lock) {
+      return appendCount;
+    }
+  }
+
+
+  /**
+   * Fails subsequent appends. Appends already queued are still committed.
+   * The table is <em>not</em> closed.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+    }
+  }
+
+}
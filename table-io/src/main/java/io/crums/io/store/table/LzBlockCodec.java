@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import io.crums.io.IoStateException;
+
+/**
+ * Pure-Java LZ77 block codec in the style of LZ4. A block is encoded as a sequence of
+ * <em>(literals, match)</em> pairs:
+ * <ol>
+ * <li>a token byte: the high nibble is the literal count; the low nibble, the match length
+ * less 4 (either nibble, if 15, is continued in the bytes that follow: each 255 byte adds
+ * 255, and the first non-255 byte ends the count);</li>
+ * <li>the literal bytes;</li>
+ * <li>the match's 2-byte (little endian) back offset, followed by its length continuation
+ * bytes, if any.</li>
+ * </ol>
+ * The last sequence may have literals but no match. Matches are found with a single-probe
+ * hash table of 4-byte sequences, so encoding is fast and decoding faster still. Repeated
+ * key prefixes, timestamps' high bytes and zero padding in rows are what it catches.
+ */
+public final class LzBlockCodec implements BlockCodec {
+
+  public final static int ID = 1;
+
+  public final static LzBlockCodec INSTANCE = new LzBlockCodec();
+
+  private final static int MIN_MATCH = 4;
+  private final static int MAX_OFFSET = 0xffff;
+  private final static int HASH_BITS = 12;
+
+
+  private LzBlockCodec() {  }
+
+
+  @Override
+  public int id() {
+    return ID;
+  }
+
+
+  @Override
+  public int maxEncodedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+
+  @Override
+  public int encode(byte[] src, int length, int rowWidth, byte[] out) {
+    // positions + 1 (zero means empty)
+    final int[] table = new int[1 << HASH_BITS];
+    final int lastMatchStart = length - MIN_MATCH;
+    int anchor = 0;
+    int pos = 0;
+    int o = 0;
+    while (pos <= lastMatchStart) {
+      final int seq = getInt(src, pos);
+      final int h = (seq * 0x9e3779b1) >>> (32 - HASH_BITS);
+      final int candidate = table[h] - 1;
+      table[h] = pos + 1;
+      if (candidate < 0 || pos - candidate > MAX_OFFSET || getInt(src, candidate) != seq) {
+        ++pos;
+        continue;
+      }
+      int matchLen = MIN_MATCH;
+      while (pos + matchLen < length && src[candidate + matchLen] == src[pos + matchLen])
+        ++matchLen;
+
+      final int literals = pos - anchor;
+      final int matchCode = matchLen - MIN_MATCH;
+      out[o++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+      o = putLiterals(src, anchor, literals, out, o);
+      out[o++] = (byte) (pos - candidate);
+      out[o++] = (byte) ((pos - candidate) >>> 8);
+      if (matchCode >= 15)
+        o = putCount(matchCode - 15, out, o);
+
+      pos += matchLen;
+      anchor = pos;
+    }
+    if (anchor < length) {
+      final int literals = length - anchor;
+      out[o++] = (byte) (Math.min(literals, 15) << 4);
+      o = putLiterals(src, anchor, literals, out, o);
+    }
+    return o;
+  }
+
+
+  private static int putLiterals(byte[] src, int from, int count, byte[] out, int o) {
+    if (count >= 15)
+      o = putCount(count - 15, out, o);
+    System.arraycopy(src, from, out, o, count);
+    return o + count;
+  }
+
+
+  private static int putCount(int count, byte[] out, int o) {
+    for (; count >= 255; count -= 255)
+      out[o++] = (byte) 255;
+    out[o++] = (byte) count;
+    return o;
+  }
+
+
+  private static int getInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+  }
+
+
+  @Override
+  public void decode(byte[] src, int length, int rowWidth, byte[] out) throws IoStateException {
+    final int outLen = out.length;
+    int i = 0;
+    int o = 0;
+    try {
+      while (o < outLen) {
+        final int token = src[i++] & 0xff;
+
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            b = src[i++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+        if (i + literals > length || o + literals > outLen)
+          throw new IoStateException("literals overrun at offset " + i);
+        System.arraycopy(src, i, out, o, literals);
+        i += literals;
+        o += literals;
+        if (o == outLen)
+          break;
+
+        final int offset = (src[i] & 0xff) | (src[i + 1] & 0xff) << 8;
+        i += 2;
+        int matchLen = token & 0xf;
+        if (matchLen == 15) {
+          int b;
+          do {
+            b = src[i++] & 0xff;
+            matchLen += b;
+          } while (b == 255);
+        }
+        matchLen += MIN_MATCH;
+        if (offset == 0 || offset > o || o + matchLen > outLen)
+          throw new IoStateException("bad match (offset " + offset + ") at offset " + i);
+        // (byte by byte: the match may overlap its own output)
+        for (int from = o - offset, end = o + matchLen; o < end; )
+          out[o++] = out[from++];
+      }
+    } catch (ArrayIndexOutOfBoundsException x) {
+      throw new IoStateException("truncated block (" + length + " bytes)", x);
+    }
+    if (i != length)
+      throw new IoStateException("trailing bytes in block: " + (length - i));
+  }
+
+}
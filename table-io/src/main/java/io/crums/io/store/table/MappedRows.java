@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only, segmented memory map over the rows of a {@linkplain Table}. Each
+ * segment holds a whole number of rows, so that a single row never straddles 2 segments.
+ * Segments are mapped lazily, and the tail segment is remapped as the file grows.
+ * <p>
+ * Segments are never mapped past the end of the file: mapping a read-only region beyond
+ * the end of a file opened in read-write mode would otherwise grow the file.
+ * </p>
+ *
+ * @see Table#mapMemory(int)
+ */
+final class MappedRows {
+
+  private final static MappedByteBuffer[] EMPTY = { };
+
+  private final FileChannel file;
+  private final long zeroRowFileOffset;
+  private final int rowSize;
+  private final int rowsPerSegment;
+
+  /**
+   * Copy-on-write array of segments. Unmapped (or not yet mapped) slots are <code>null</code>.
+   */
+  private volatile MappedByteBuffer[] segments = EMPTY;
+
+
+  MappedRows(FileChannel file, long zeroRowFileOffset, int rowSize, int maxSegmentSize) {
+    this.file = file;
+    this.zeroRowFileOffset = zeroRowFileOffset;
+    this.rowSize = rowSize;
+    this.rowsPerSegment = maxSegmentSize / rowSize;
+    if (rowsPerSegment < 1)
+      throw new IllegalArgumentException(
+          "maxSegmentSize (" + maxSegmentSize + ") < row size (" + rowSize + ")");
+  }
+
+
+  /**
+   * Returns the maximum number of rows in a segment.
+   */
+  int rowsPerSegment() {
+    return rowsPerSegment;
+  }
+
+
+  /**
+   * Copies the rows starting at the given <code>row</code> number into
+   * the <code>out</code> buffer. Arguments are not checked: the remaining bytes
+   * in <code>out</code> is assumed to be a multiple of the row size.
+   */
+  void read(long row, ByteBuffer out) throws IOException {
+    while (out.hasRemaining()) {
+      int segIndex = (int) (row / rowsPerSegment);
+      int rowInSeg = (int) (row % rowsPerSegment);
+      int rows = Math.min(rowsPerSegment - rowInSeg, out.remaining() / rowSize);
+      int segOffset = rowInSeg * rowSize;
+      int len = rows * rowSize;
+      ByteBuffer segment = segment(segIndex, segOffset + len);
+      int pos = out.position();
+      out.put(pos, segment, segOffset, len).position(pos + len);
+      row += rows;
+    }
+  }
+
+
+  /**
+   * Returns a read-only view of the given rows directly from the memory map, or
+   * <code>null</code> if the rows straddle more than one segment.
+   */
+  ByteBuffer view(long row, int count) throws IOException {
+    int segIndex = (int) (row / rowsPerSegment);
+    int rowInSeg = (int) (row % rowsPerSegment);
+    if (rowInSeg + count > rowsPerSegment)
+      return null;
+    int segOffset = rowInSeg * rowSize;
+    int len = count * rowSize;
+    return segment(segIndex, segOffset + len).slice(segOffset, len);
+  }
+
+
+  /**
+   * Drops all mapped segments. Invoked before the file is truncated.
+   */
+  synchronized void clear() {
+    segments = EMPTY;
+  }
+
+
+  private MappedByteBuffer segment(int index, int minBytes) throws IOException {
+    MappedByteBuffer[] segs = segments;
+    if (index < segs.length) {
+      MappedByteBuffer segment = segs[index];
+      if (segment != null && segment.capacity() >= minBytes)
+        return segment;
+    }
+    return remap(index, minBytes);
+  }
+
+
+  private synchronized MappedByteBuffer remap(int index, int minBytes) throws IOException {
+    MappedByteBuffer[] segs = segments;
+    if (index < segs.length && segs[index] != null && segs[index].capacity() >= minBytes)
+      return segs[index];
+
+    long segmentSize = ((long) rowsPerSegment) * rowSize;
+    long start = zeroRowFileOffset + index * segmentSize;
+    long size = Math.min(segmentSize, file.size() - start);
+    if (size < minBytes)
+      throw new EOFException(
+          "attempt to map " + minBytes + " bytes starting from position " + start +
+          "; file size is " + file.size() + " bytes");
+
+    MappedByteBuffer segment = file.map(MapMode.READ_ONLY, start, size);
+
+    MappedByteBuffer[] copy = new MappedByteBuffer[Math.max(index + 1, segs.length)];
+    System.arraycopy(segs, 0, copy, 0, segs.length);
+    copy[index] = segment;
+    segments = copy;
+    return segment;
+  }
+
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Builds sorted tables, like {@linkplain SortedTableBuilder}, but without allocating an object
+ * per row. Rows are copied contiguously into large direct (off-heap) pages, and are tracked by a
+ * primitive <code>int</code> index of slot numbers. The index is sorted lazily: only when the
+ * contents are read ({@linkplain #getRow(ByteBuffer)}, {@linkplain #getRowCount()}, {@linkplain
+ * #flush(GatheringByteChannel, boolean) flush}, ..). At that point only the rows put since the
+ * last sort are sorted, into a new <em>run</em>. Runs are kept in order of decreasing size (each
+ * more than twice the size of the next), by merging the newest run into the one before it when
+ * it grows too large; rows with equal keys are collapsed, the last one put winning. So
+ * interleaving puts and lookups costs amortized logarithmic time per row, and a lookup searches
+ * at most a logarithmic number of runs. The runs are merged into one when the row count is
+ * needed, or when the contents are flushed. Heap overhead is about 4 bytes per row (8,
+ * transiently, while sorting).
+ * <p>
+ * Rows are compared in place, by copying them into 2 scratch buffers. So the row order need not
+ * be thread-safe, but the instance itself is not safe under concurrent access. The slots of
+ * overwritten rows are reclaimed (by moving live rows down) once they outnumber the live ones.
+ * </p><p>
+ * If the order has a {@linkplain RowOrder#hasPrefixKey() prefix key}, then each slot's prefix
+ * key is also kept on the heap (another 8 bytes per row), and rows are only copied and compared
+ * when their prefix keys tie.
+ * </p>
+ */
+public class OffHeapTableBuilder {
+
+  /**
+   * Default page size: 8MB (rounded down to a multiple of the row width).
+   */
+  public final static int DEFAULT_PAGE_BYTES = 8 * 1024 * 1024;
+
+  private final static int INIT_INDEX_SIZE = 1024;
+
+  /**
+   * Minimum number of dead (overwritten) slots before they're reclaimed.
+   */
+  private final static int MIN_RECLAIM = 1024;
+
+  /**
+   * Size of the buffer rows are copied into when flushed.
+   */
+  private final static int FLUSH_BUFFER_BYTES = 1024 * 1024;
+
+  private final int rowWidth;
+  private final RowOrder order;
+  private final int rowsPerPage;
+
+  private ByteBuffer[] pages = new ByteBuffer[0];
+
+  /**
+   * Number of slots used (including overwritten ones).
+   */
+  private int slotCount;
+
+  /**
+   * Slot numbers. The first <code>sortedCount</code> are in sorted runs (each run
+   * distinct); the rest, up to <code>indexCount</code>, are in put order.
+   */
+  private int[] index = new int[INIT_INDEX_SIZE];
+  private int indexCount;
+  private int sortedCount;
+
+  /**
+   * End offsets (exclusive) of the sorted runs in the index, oldest (largest) first.
+   * Each run is more than twice the size of the next, so there are at most 32.
+   */
+  private final int[] runEnds = new int[Integer.SIZE + 1];
+  private int runCount;
+
+  /**
+   * Scratch space for sorting and merging the index. Reused.
+   */
+  private int[] work = new int[0];
+
+  /**
+   * Prefix keys, by slot number; <code>null</code> if the order has none.
+   */
+  private long[] prefixes;
+  private final boolean exactPrefixes;
+
+  private final ByteBuffer scratchA;
+  private final ByteBuffer scratchB;
+
+
+  /**
+   * Creates an instance with the {@linkplain #DEFAULT_PAGE_BYTES default} page size.
+   */
+  public OffHeapTableBuilder(int rowWidth, RowOrder order) {
+    this(rowWidth, order, DEFAULT_PAGE_BYTES);
+  }
+
+
+  /**
+   * @param pageBytes the (maximum) size of the direct buffers rows are stored in.
+   *                  Must be at least <code>rowWidth</code>
+   */
+  public OffHeapTableBuilder(int rowWidth, RowOrder order, int pageBytes) {
+    if (rowWidth < 1)
+      throw new IllegalArgumentException("rowWidth: " + rowWidth);
+    if (order == null)
+      throw new IllegalArgumentException("null row order");
+    if (pageBytes < rowWidth)
+      throw new IllegalArgumentException("pageBytes (" + pageBytes + ") < rowWidth (" + rowWidth + ")");
+
+    this.rowWidth = rowWidth;
+    this.order = order;
+    this.rowsPerPage = pageBytes / rowWidth;
+    this.scratchA = ByteBuffer.allocate(rowWidth);
+    this.scratchB = ByteBuffer.allocate(rowWidth);
+    if (order.hasPrefixKey()) {
+      this.prefixes = new long[INIT_INDEX_SIZE];
+      this.exactPrefixes = order.isPrefixKeyExact();
+    } else
+      this.exactPrefixes = false;
+  }
+
+
+  public final int getRowWidth() {
+    return rowWidth;
+  }
+
+
+  public final RowOrder order() {
+    return order;
+  }
+
+
+  /**
+   * Puts (copies) the given row. If a row with the same key was previously put, it is
+   * overwritten.
+   *
+   * @param row the row's remaining bytes (not modified)
+   */
+  public void putRow(ByteBuffer row) {
+    if (row == null)
+      throw new IllegalArgumentException("null row");
+    if (row.remaining() != rowWidth)
+      throw new IllegalArgumentException(
+          "row does not contain required remaining bytes (rowWidth=" + rowWidth +
+          "): " + row);
+    putImpl(row, row.position());
+  }
+
+
+  /**
+   * Puts (copies) the given rows, in order.
+   *
+   * @param rows a nonzero multiple of <code>rowWidth</code> remaining bytes (not modified)
+   * @return the number of rows put
+   */
+  public int putRows(ByteBuffer rows) {
+    if (rows == null)
+      throw new IllegalArgumentException("null rows");
+    int count = rows.remaining() / rowWidth;
+    if (count == 0 || count * rowWidth != rows.remaining())
+      throw new IllegalArgumentException(
+          "rows must contain a nonzero mulitiple of rowWidth (" + rowWidth +
+          ") remaining bytes: " + rows);
+    for (int i = 0, pos = rows.position(); i < count; ++i, pos += rowWidth)
+      putImpl(rows, pos);
+    return count;
+  }
+
+
+  private void putImpl(ByteBuffer src, int pos) {
+    final int slot = slotCount;
+    if (slot == Integer.MAX_VALUE)
+      throw new IllegalStateException("max slots reached: " + slot);
+    final int pageIndex = slot / rowsPerPage;
+    if (pageIndex == pages.length) {
+      pages = Arrays.copyOf(pages, pageIndex + 1);
+      pages[pageIndex] = ByteBuffer.allocateDirect(rowsPerPage * rowWidth);
+    }
+    pages[pageIndex].put((slot % rowsPerPage) * rowWidth, src, pos, rowWidth);
+
+    if (prefixes != null) {
+      if (slot == prefixes.length)
+        prefixes = Arrays.copyOf(prefixes, (int) Math.min(Integer.MAX_VALUE - 8, 2L * slot));
+      // the row order sees absolute offsets: present it a zero-based view
+      prefixes[slot] = order.prefixKey(src.slice(pos, rowWidth));
+    }
+
+    if (indexCount == index.length)
+      index = Arrays.copyOf(index, (int) Math.min(Integer.MAX_VALUE - 8, 2L * index.length));
+    index[indexCount++] = slot;
+    ++slotCount;
+  }
+
+
+  /**
+   * Returns the number of distinct rows.
+   */
+  public int getRowCount() {
+    compact();
+    return sortedCount;
+  }
+
+
+  public boolean isEmpty() {
+    return indexCount == 0;
+  }
+
+
+  /**
+   * Returns the number of bytes the {@linkplain #flush(GatheringByteChannel, boolean) flush}ed
+   * table will take.
+   */
+  public long byteSize() {
+    return getRowCount() * (long) rowWidth;
+  }
+
+
+  /**
+   * Clears the contents. The direct pages are retained for reuse.
+   */
+  public void clear() {
+    slotCount = indexCount = sortedCount = runCount = 0;
+    if (index.length > INIT_INDEX_SIZE)
+      index = new int[INIT_INDEX_SIZE];
+    work = new int[0];
+    if (prefixes != null && prefixes.length > INIT_INDEX_SIZE)
+      prefixes = new long[INIT_INDEX_SIZE];
+  }
+
+
+  /**
+   * Returns a copy of the row with the given key, if any; <code>null</code>, otherwise.
+   */
+  public ByteBuffer getRow(ByteBuffer rowKey) {
+    int i = indexOf(rowKey);
+    if (i < 0)
+      return null;
+    ByteBuffer out = ByteBuffer.allocate(rowWidth);
+    load(index[i], out);
+    return out;
+  }
+
+
+  /**
+   * Reads the row with the given key into the <code>out</code> buffer.
+   *
+   * @return <code>true</code> iff found
+   */
+  public boolean readRow(ByteBuffer rowKey, ByteBuffer out) {
+    if (out == null || out.remaining() < rowWidth)
+      throw new IllegalArgumentException("out buffer underflow: " + out);
+    int i = indexOf(rowKey);
+    if (i < 0)
+      return false;
+    copyRow(index[i], out);
+    return true;
+  }
+
+
+  private int indexOf(ByteBuffer rowKey) {
+    if (rowKey == null)
+      throw new IllegalArgumentException("null rowKey");
+    sort();
+    final long keyPrefix = prefixes == null ? 0 : order.prefixKey(rowKey);
+    // newest run first: it shadows the older ones
+    for (int r = runCount; r-- > 0; ) {
+      int i = search(rowKey, keyPrefix, r == 0 ? 0 : runEnds[r - 1], runEnds[r]);
+      if (i >= 0)
+        return i;
+    }
+    return -1;
+  }
+
+
+  /**
+   * Binary searches the sorted run <code>index[from, to)</code> for the given key.
+   */
+  private int search(ByteBuffer rowKey, long keyPrefix, int from, int to) {
+    int lo = from, hi = to - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int comp;
+      if (prefixes != null && prefixes[index[mid]] != keyPrefix)
+        comp = prefixes[index[mid]] < keyPrefix ? -1 : 1;
+      else if (exactPrefixes)
+        comp = 0;
+      else {
+        load(index[mid], scratchA);
+        comp = order.compare(scratchA, rowKey);
+      }
+      if (comp < 0)
+        lo = mid + 1;
+      else if (comp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+
+  /**
+   * Flushes the sorted contents to the given <code>file</code>.
+   *
+   * @param clear if <code>true</code>, then the contents are {@linkplain #clear() clear}ed
+   *              on return
+   */
+  public void flush(GatheringByteChannel file, boolean clear) throws IOException {
+    if (file == null)
+      throw new IllegalArgumentException("null file");
+    compact();
+    if (sortedCount != 0) {
+      final int bufferRows = Math.max(1, Math.min(sortedCount, FLUSH_BUFFER_BYTES / rowWidth));
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bufferRows * rowWidth);
+      for (int i = 0; i < sortedCount; ) {
+        buffer.clear();
+        for (int end = Math.min(sortedCount, i + bufferRows); i < end; ++i) {
+          copyRow(index[i], buffer);
+        }
+        buffer.flip();
+        ChannelUtils.writeRemaining(file, buffer);
+      }
+    }
+    if (clear)
+      clear();
+  }
+
+
+  /**
+   * Flushes the sorted contents to the given <code>file</code>, and returns a
+   * Bloom filter of the flushed rows' keys.
+   *
+   * @see SortedTableBuilder#flush(GatheringByteChannel, boolean, double)
+   */
+  public BloomFilter flush(GatheringByteChannel file, boolean clear, double fpp)
+      throws IOException {
+    compact();
+    BloomFilter filter = BloomFilter.newInstance(order, sortedCount, fpp);
+    for (int i = 0; i < sortedCount; ++i) {
+      load(index[i], scratchA);
+      filter.add(scratchA);
+    }
+    flush(file, clear);
+    return filter;
+  }
+
+
+  /**
+   * Relative put of the row at the given slot into <code>out</code>.
+   */
+  private void copyRow(int slot, ByteBuffer out) {
+    final int pos = out.position();
+    out.put(pos, pages[slot / rowsPerPage], (slot % rowsPerPage) * rowWidth, rowWidth);
+    out.position(pos + rowWidth);
+  }
+
+
+  private void load(int slot, ByteBuffer scratch) {
+    scratch.clear();
+    scratch.put(0, pages[slot / rowsPerPage], (slot % rowsPerPage) * rowWidth, rowWidth);
+  }
+
+
+  /**
+   * Compares the rows at the given slots; ties are broken by slot number,
+   * so that the last row put sorts last among equals.
+   */
+  private int compareSlots(int slotA, int slotB) {
+    int comp = compareRows(slotA, slotB);
+    return comp == 0 ? Integer.compare(slotA, slotB) : comp;
+  }
+
+
+  /**
+   * Compares the rows at the given slots, by prefix key first, if any.
+   */
+  private int compareRows(int slotA, int slotB) {
+    if (prefixes != null) {
+      long a = prefixes[slotA];
+      long b = prefixes[slotB];
+      if (a != b)
+        return a < b ? -1 : 1;
+      if (exactPrefixes)
+        return 0;
+    }
+    load(slotA, scratchA);
+    load(slotB, scratchB);
+    return order.compare(scratchA, scratchB);
+  }
+
+
+  /**
+   * Sorts the unsorted tail of the index into a new run, collapsing equal rows, and
+   * merges runs that are no longer more than twice the size of the next.
+   */
+  private void sort() {
+    if (sortedCount == indexCount)
+      return;
+
+    if (work.length < indexCount - sortedCount)
+      work = new int[Math.max(indexCount - sortedCount, Math.min(index.length, 2 * work.length))];
+    mergeSort(index, work, sortedCount, indexCount);
+
+    // collapse runs of equal rows, keeping the last (highest slot)
+    int out = sortedCount;
+    for (int i = sortedCount; i < indexCount; ++i) {
+      if (out != sortedCount && compareRows(index[out - 1], index[i]) == 0)
+        index[out - 1] = index[i];
+      else
+        index[out++] = index[i];
+    }
+    indexCount = sortedCount = out;
+    runEnds[runCount++] = out;
+
+    while (runCount > 1 && runSize(runCount - 2) <= 2 * runSize(runCount - 1))
+      mergeLastRuns();
+
+    if (slotCount - indexCount >= Math.max(MIN_RECLAIM, indexCount))
+      reclaim();
+  }
+
+
+  /**
+   * Sorts and merges everything into a single run.
+   */
+  private void compact() {
+    sort();
+    while (runCount > 1)
+      mergeLastRuns();
+  }
+
+
+  private int runSize(int r) {
+    return runEnds[r] - (r == 0 ? 0 : runEnds[r - 1]);
+  }
+
+
+  /**
+   * Merges the last 2 runs (which end the index) into one. Of equal rows, the one
+   * in the newer (last) run wins.
+   */
+  private void mergeLastRuns() {
+    final int from = runCount == 2 ? 0 : runEnds[runCount - 3];
+    final int mid = runEnds[runCount - 2];
+    final int to = runEnds[runCount - 1];
+    final int olderCount = mid - from;
+    // copy the older run out, then merge back into place
+    if (work.length < olderCount)
+      work = new int[Math.max(olderCount, Math.min(index.length, 2 * work.length))];
+    System.arraycopy(index, from, work, 0, olderCount);
+
+    int i = 0, j = mid, k = from;
+    while (i < olderCount && j < to) {
+      int comp = compareRows(work[i], index[j]);
+      if (comp < 0)
+        index[k++] = work[i++];
+      else {
+        if (comp == 0)
+          ++i;
+        index[k++] = index[j++];
+      }
+    }
+    while (i < olderCount)
+      index[k++] = work[i++];
+    while (j < to)
+      index[k++] = index[j++];
+
+    --runCount;
+    runEnds[runCount - 1] = k;
+    indexCount = sortedCount = k;
+  }
+
+
+  /**
+   * Moves the rows in use down into the lowest slots, and renumbers the index.
+   * The relative order of slots (the put order) is preserved.
+   */
+  private void reclaim() {
+    final int live = indexCount;
+    if (work.length < live)
+      work = new int[live];
+    System.arraycopy(index, 0, work, 0, live);
+    Arrays.sort(work, 0, live);
+    // ascending: a row is never moved onto one not yet moved
+    for (int k = 0; k < live; ++k) {
+      final int slot = work[k];
+      if (slot == k)
+        continue;
+      pages[k / rowsPerPage].put(
+          (k % rowsPerPage) * rowWidth, pages[slot / rowsPerPage], (slot % rowsPerPage) * rowWidth, rowWidth);
+      if (prefixes != null)
+        prefixes[k] = prefixes[slot];
+    }
+    for (int i = 0; i < live; ++i)
+      index[i] = Arrays.binarySearch(work, 0, live, index[i]);
+    slotCount = live;
+  }
+
+
+  /**
+   * Sorts <code>a[from, to)</code> in place, using <code>work</code> as scratch.
+   */
+  private void mergeSort(int[] a, int[] work, int from, int to) {
+    final int len = to - from;
+    if (len < 16) {
+      // insertion sort
+      for (int i = from + 1; i < to; ++i) {
+        int slot = a[i];
+        int j = i;
+        for (; j > from && compareSlots(a[j - 1], slot) > 0; --j)
+          a[j] = a[j - 1];
+        a[j] = slot;
+      }
+      return;
+    }
+    final int mid = (from + to) >>> 1;
+    mergeSort(a, work, from, mid);
+    mergeSort(a, work, mid, to);
+    if (compareSlots(a[mid - 1], a[mid]) <= 0)
+      return;
+    merge(a, work, from, mid, to);
+    System.arraycopy(work, 0, a, from, len);
+  }
+
+
+  /**
+   * Merges sorted <code>a[from, mid)</code> and <code>a[mid, to)</code> into
+   * <code>work[0, to - from)</code>.
+   */
+  private void merge(int[] a, int[] work, int from, int mid, int to) {
+    int i = from, j = mid, k = 0;
+    while (i < mid && j < to)
+      work[k++] = compareSlots(a[i], a[j]) <= 0 ? a[i++] : a[j++];
+    while (i < mid)
+      work[k++] = a[i++];
+    while (j < to)
+      work[k++] = a[j++];
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the pivot rows in the top levels of a {@linkplain SortedTable.Searcher Searcher}'s
+ * binary search tree. The tree is implicit (breadth-first): the root (node 0) is the first
+ * pivot; node <em>i</em>'s children are nodes 2<em>i</em> + 1 (left) and 2<em>i</em> + 2 (right).
+ * Since the pivots depend only on the row count, an instance is only valid for the row count
+ * it was created with.
+ * <p>
+ * Slots are filled lazily, as searches read them. Safe for concurrent use.
+ * </p>
+ *
+ * @see SortedTable#setPivotCacheLevels(int)
+ */
+final class PivotCache {
+
+  private final long rowCount;
+  private final AtomicReferenceArray<ByteBuffer> rows;
+
+
+  PivotCache(long rowCount, int levels) {
+    this.rowCount = rowCount;
+    this.rows = new AtomicReferenceArray<>((1 << levels) - 1);
+  }
+
+
+  long rowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Returns the number of nodes (slots) in the cache.
+   */
+  int size() {
+    return rows.length();
+  }
+
+
+  /**
+   * Returns the cached pivot row at the given node, or <code>null</code> if not (yet) cached.
+   * The returned buffer is shared: it must not be modified.
+   */
+  ByteBuffer get(int node) {
+    return rows.get(node);
+  }
+
+
+  /**
+   * Caches a copy of the remaining bytes of the given <code>row</code> at the given node.
+   * The state of the argument is not modified.
+   */
+  void put(int node, ByteBuffer row) {
+    ByteBuffer copy = ByteBuffer.allocate(row.remaining());
+    copy.put(row.duplicate()).flip();
+    rows.compareAndSet(node, null, copy);
+  }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.nio.ByteBuffer;
+
+import io.crums.io.IoStateException;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Prefix (front) coding of sorted rows, with restart points. Adjacent rows in a sorted block
+ * usually share a long prefix (their keys' high bytes): each row is stored as the length of
+ * the prefix it shares with the previous row (a varint), followed by the rest of the row.
+ * Every {@linkplain #getRestartInterval() restart interval}-th row (a <em>restart point</em>)
+ * is stored in full.
+ * <p>
+ * The block ends with a trailer: the byte offset of each restart point (ints), the number of
+ * rows in the block (int), and the restart interval (int). So an encoded block is searched by
+ * binary searching its restart points (which are whole rows), and then scanning (decoding)
+ * forward from the nearest one; likewise, a row is read by decoding from its restart point.
+ * See {@linkplain RandomAccessBlockCodec}.
+ * </p>
+ * <p>
+ * Since the trailer records the restart interval, blocks written with any interval are decoded
+ * by the {@linkplain #INSTANCE default instance}.
+ * </p>
+ */
+public final class PrefixBlockCodec implements RandomAccessBlockCodec {
+
+  public final static int ID = 2;
+
+  /**
+   * Default number of rows between restart points.
+   */
+  public final static int DEFAULT_RESTART_INTERVAL = 16;
+
+  /**
+   * Instance with the {@linkplain #DEFAULT_RESTART_INTERVAL default} restart interval.
+   */
+  public final static PrefixBlockCodec INSTANCE = new PrefixBlockCodec(DEFAULT_RESTART_INTERVAL);
+
+
+  private final int restartInterval;
+
+
+  /**
+   * @param restartInterval the number of rows between restart points (&ge; 1). Smaller
+   *                        intervals make for faster searches; larger, smaller blocks
+   */
+  public PrefixBlockCodec(int restartInterval) {
+    if (restartInterval < 1)
+      throw new IllegalArgumentException("restartInterval: " + restartInterval);
+    this.restartInterval = restartInterval;
+  }
+
+
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+
+  @Override
+  public int id() {
+    return ID;
+  }
+
+
+  @Override
+  public int maxEncodedLength(int length) {
+    // worst case: 1-byte rows with a 1-byte varint each
+    return 2 * length + 4 * (length / restartInterval + 1) + 8;
+  }
+
+
+  @Override
+  public int encode(byte[] src, int length, int rowWidth, byte[] out) {
+    final int rows = length / rowWidth;
+    final int restarts = (rows + restartInterval - 1) / restartInterval;
+    final int[] restartOffsets = new int[restarts];
+    int o = 0;
+    for (int r = 0, off = 0; r < rows; ++r, off += rowWidth) {
+      if (r % restartInterval == 0) {
+        restartOffsets[r / restartInterval] = o;
+        System.arraycopy(src, off, out, o, rowWidth);
+        o += rowWidth;
+        continue;
+      }
+      int shared = 0;
+      for (int prev = off - rowWidth; shared < rowWidth && src[prev + shared] == src[off + shared]; )
+        ++shared;
+      o = putVarint(shared, out, o);
+      System.arraycopy(src, off + shared, out, o, rowWidth - shared);
+      o += rowWidth - shared;
+    }
+    for (int offset : restartOffsets)
+      o = putInt(offset, out, o);
+    o = putInt(rows, out, o);
+    return putInt(restartInterval, out, o);
+  }
+
+
+  @Override
+  public void decode(byte[] src, int length, int rowWidth, byte[] out) throws IoStateException {
+    Trailer trailer = new Trailer(src, length, rowWidth);
+    if (trailer.rows * rowWidth != out.length)
+      throw new IoStateException(
+          "block has " + trailer.rows + " rows; expected " + out.length / rowWidth);
+    decodeRows(trailer, rowWidth, 0, trailer.rows, ByteBuffer.wrap(out));
+  }
+
+
+  @Override
+  public void decodeRows(
+      byte[] src, int length, int rowWidth, int firstRow, int count, ByteBuffer out)
+          throws IoStateException {
+    Trailer trailer = new Trailer(src, length, rowWidth);
+    if (firstRow < 0 || count < 0 || firstRow + count > trailer.rows)
+      throw new IndexOutOfBoundsException(
+          "firstRow / count: " + firstRow + " / " + count + "; rows in block " + trailer.rows);
+    decodeRows(trailer, rowWidth, firstRow, count, out);
+  }
+
+
+  private void decodeRows(Trailer trailer, int rowWidth, int firstRow, int count, ByteBuffer out)
+      throws IoStateException {
+    final byte[] src = trailer.src;
+    byte[] row = new byte[rowWidth];
+    final int restart = firstRow / trailer.interval;
+    int pos = trailer.restartOffset(restart);
+    for (int r = restart * trailer.interval, end = firstRow + count; r < end; ++r) {
+      pos = decodeRow(src, pos, trailer, r, row);
+      if (r >= firstRow)
+        out.put(row);
+    }
+  }
+
+
+  @Override
+  public int search(
+      byte[] src, int length, int rowWidth, ByteBuffer key, RowOrder order, ByteBuffer out)
+          throws IoStateException {
+    Trailer trailer = new Trailer(src, length, rowWidth);
+
+    // find the last restart point at or before the key
+    int lo = 0;
+    int hi = trailer.restarts - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      ByteBuffer restartRow = ByteBuffer.wrap(src, trailer.restartOffset(mid), rowWidth).slice();
+      int comp = order.compareRows(restartRow, key);
+      if (comp < 0)
+        lo = mid + 1;
+      else if (comp > 0)
+        hi = mid - 1;
+      else {
+        if (out != null)
+          out.put(restartRow);
+        return mid * trailer.interval;
+      }
+    }
+    if (hi < 0)
+      return -1;
+
+    // scan forward from it
+    byte[] row = new byte[rowWidth];
+    ByteBuffer rowView = ByteBuffer.wrap(row);
+    final int first = hi * trailer.interval;
+    final int end = Math.min(trailer.rows, first + trailer.interval);
+    int pos = trailer.restartOffset(hi);
+    for (int r = first; r < end; ++r) {
+      pos = decodeRow(src, pos, trailer, r, row);
+      if (r == first)
+        continue;   // (already known to be less than the key)
+      int comp = order.compareRows(rowView, key);
+      if (comp == 0) {
+        if (out != null)
+          out.put(rowView);
+        return r;
+      }
+      if (comp > 0)
+        return -r - 1;
+    }
+    return -end - 1;
+  }
+
+
+  /**
+   * Decodes row number <code>r</code> at <code>pos</code> into <code>row</code>
+   * (which holds the previous row), and returns the position of the next row.
+   */
+  private int decodeRow(byte[] src, int pos, Trailer trailer, int r, byte[] row)
+      throws IoStateException {
+    final int rowWidth = row.length;
+    int shared = 0;
+    if (r % trailer.interval != 0) {
+      int shift = 0;
+      for (int b; ; shift += 7) {
+        if (pos >= trailer.dataEnd || shift > 28)
+          throw new IoStateException("corrupt varint at offset " + pos);
+        b = src[pos++];
+        shared |= (b & 0x7f) << shift;
+        if (b >= 0)
+          break;
+      }
+      if (shared > rowWidth)
+        throw new IoStateException("shared prefix " + shared + " > row width " + rowWidth);
+    }
+    int suffix = rowWidth - shared;
+    if (pos + suffix > trailer.dataEnd)
+      throw new IoStateException("row " + r + " overruns block data");
+    System.arraycopy(src, pos, row, shared, suffix);
+    return pos + suffix;
+  }
+
+
+  /**
+   * The parsed block trailer.
+   */
+  private static class Trailer {
+    final byte[] src;
+    final int rows;
+    final int interval;
+    final int restarts;
+    final int dataEnd;
+
+    Trailer(byte[] src, int length, int rowWidth) throws IoStateException {
+      if (length < 8)
+        throw new IoStateException("block too short: " + length);
+      this.src = src;
+      this.interval = getInt(src, length - 4);
+      this.rows = getInt(src, length - 8);
+      if (interval < 1 || rows < 0)
+        throw new IoStateException("corrupt block trailer: interval " + interval + ", rows " + rows);
+      this.restarts = (int) ((rows + (long) interval - 1) / interval);
+      this.dataEnd = length - 8 - 4 * restarts;
+      if (dataEnd < 0)
+        throw new IoStateException("corrupt block trailer: " + restarts + " restarts, " + length + " bytes");
+    }
+
+    int restartOffset(int restart) throws IoStateException {
+      int offset = getInt(src, dataEnd + 4 * restart);
+      if (offset < 0 || offset > dataEnd)
+        throw new IoStateException("corrupt restart offset " + offset + " (restart " + restart + ")");
+      return offset;
+    }
+  }
+
+
+  private static int putVarint(int value, byte[] out, int o) {
+    for (; (value & ~0x7f) != 0; value >>>= 7)
+      out[o++] = (byte) ((value & 0x7f) | 0x80);
+    out[o++] = (byte) value;
+    return o;
+  }
+
+
+  private static int putInt(int value, byte[] out, int o) {
+    out[o] = (byte) (value >>> 24);
+    out[o + 1] = (byte) (value >>> 16);
+    out[o + 2] = (byte) (value >>> 8);
+    out[o + 3] = (byte) value;
+    return o + 4;
+  }
+
+
+  private static int getInt(byte[] b, int i) {
+    return b[i] << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+  }
+
+}
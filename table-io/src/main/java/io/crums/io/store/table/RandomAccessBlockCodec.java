@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.nio.ByteBuffer;
+
+import io.crums.io.IoStateException;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * A {@linkplain BlockCodec} whose encoded blocks can be read and searched without decoding
+ * them in full. A {@linkplain BlockSortedTable} caches such blocks in their (smaller) encoded
+ * form, so more of the table stays in memory.
+ */
+public interface RandomAccessBlockCodec extends BlockCodec {
+
+
+  /**
+   * Decodes a range of rows from the given encoded block, and puts them into the
+   * <code>out</code> buffer.
+   *
+   * @param src       the encoded block
+   * @param length    the number of bytes in <code>src</code>
+   * @param rowWidth  the row width
+   * @param firstRow  the index of the first row in the block
+   * @param count     the number of rows decoded
+   * @param out       relative put, with at least <code>count * rowWidth</code> remaining bytes
+   * @throws IoStateException if the encoded block is corrupt
+   */
+  void decodeRows(byte[] src, int length, int rowWidth, int firstRow, int count, ByteBuffer out)
+      throws IoStateException;
+
+
+  /**
+   * Searches the given encoded block for the row with the given <code>key</code>.
+   *
+   * @param src       the encoded block
+   * @param length    the number of bytes in <code>src</code>
+   * @param rowWidth  the row width
+   * @param key       the search key
+   * @param order     the order the block's rows are sorted in
+   * @param out       if found, the row is put here (relative put). May be <code>null</code>
+   * @return the row's index in the block, if found; -<em>insertionPoint</em> - 1, otherwise
+   * @throws IoStateException if the encoded block is corrupt
+   */
+  int search(byte[] src, int length, int rowWidth, ByteBuffer key, RowOrder order, ByteBuffer out)
+      throws IoStateException;
+
+}
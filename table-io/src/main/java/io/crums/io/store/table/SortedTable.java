@@ -10,6 +10,8 @@ import java.lang.System.Logger.Level;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.crums.io.block.SortedBlock;
 import io.crums.io.store.Sorted;
@@ -22,6 +24,14 @@ import io.crums.test.PerfProf;
 
 /**
  * Marker class for a sorted table.
+ * <p>
+ * Searches may optionally be accelerated with a {@linkplain FenceIndex fence index}
+ * (a sparse in-memory index of every <em>N</em>-th row). See {@linkplain #setFenceIndex(FenceIndex)}.
+ * Negative lookups may be short-circuited with a {@linkplain BloomFilter Bloom filter}.
+ * See {@linkplain #setBloomFilter(BloomFilter)}. If the keys are uniformly distributed (e.g.
+ * hashes), searches may instead {@linkplain #setInterpolationSearch(boolean) interpolate}
+ * the key's position.
+ * </p>
  * 
  * @see RowOrder
  * @see Table
@@ -37,6 +47,27 @@ public class SortedTable extends Table implements Sorted {
   
   
   private final RowOrder order;
+  
+  private volatile FenceIndex fenceIndex;
+  
+  private volatile BloomFilter bloomFilter;
+  
+  private volatile int pivotCacheLevels;
+  
+  private volatile PivotCache pivotCache;
+  
+  private volatile boolean interpolationSearch;
+  
+  /**
+   * { row count, first row's prefix key, last row's prefix key }. Interpolation
+   * bounds, when there's no fence index.
+   */
+  private volatile long[] prefixBounds;
+
+  /**
+   * An idle searcher {@linkplain #search(ByteBuffer)} reuses, if any.
+   */
+  private final AtomicReference<Searcher> idleSearcher = new AtomicReference<>();
 
   /**
    * Creates and returns a new instance. The instance's row count is inferred
@@ -95,6 +126,20 @@ public class SortedTable extends Table implements Sorted {
   
   
   
+  /**
+   * Creates an instance whose rows are not stored raw in the file.
+   * 
+   * @see Table#Table(FileChannel, Keystone, int)
+   */
+  protected SortedTable(FileChannel file, Keystone rowCount, int rowSize, RowOrder order)
+      throws IOException {
+    super(file, rowCount, rowSize);
+    if (order == null)
+      order = NaturalRowOrder.INSTANCE;
+    this.order = order;
+  }
+  
+  
   /**
    * Copy constructor. Stick to read-only instances. Hard to reason otherwise.
    * Resources are reference counted. Meaning: the caller agrees to <em>close</em>
@@ -103,6 +148,11 @@ public class SortedTable extends Table implements Sorted {
   public SortedTable(SortedTable copy) {
     super(copy);
     this.order = copy.order;
+    this.fenceIndex = copy.fenceIndex;
+    this.bloomFilter = copy.bloomFilter;
+    this.interpolationSearch = copy.interpolationSearch;
+    this.pivotCacheLevels = copy.pivotCacheLevels;
+    this.pivotCache = copy.pivotCache;
   }
   
 
@@ -112,24 +162,376 @@ public class SortedTable extends Table implements Sorted {
     return new SortedTable(this);
   }
   
+  
+  /**
+   * Returns a read-only view of the given range of rows, as a sorted table in its own
+   * right: row numbers are relative to <code>fromRow</code>. The view shares this instance's
+   * resources (like a {@linkplain #clone() clone}), and the caller agrees to close it when
+   * done. It has no fence index or Bloom filter. Used to partition merges by key range.
+   * 
+   * @param fromRow the first row in the view (inclusive)
+   * @param toRow   the last row in the view (exclusive)
+   */
+  public SortedTable subTable(long fromRow, long toRow) throws IOException {
+    if (fromRow < 0 || toRow < fromRow || toRow > getRowCount())
+      throw new IllegalArgumentException(
+          "fromRow / toRow: " + fromRow + " / " + toRow + "; row count is " + getRowCount());
+    checkOpen();
+    return new SubTable(this, fromRow, toRow - fromRow);
+  }
+  
+  
+  /**
+   * @see SortedTable#subTable(long, long)
+   */
+  private static class SubTable extends SortedTable {
+    
+    private final SortedTable base;
+    private final long firstRow;
+    private final long rowCount;
+    
+    SubTable(SortedTable base, long firstRow, long rowCount) {
+      super(base);
+      this.base = base;
+      this.firstRow = firstRow;
+      this.rowCount = rowCount;
+      setFenceIndex(null);
+      setBloomFilter(null);
+    }
+    
+    @Override
+    public SortedTable clone() {
+      return new SubTable(base, firstRow, rowCount);
+    }
+    
+    @Override
+    public long getRowCount() {
+      return rowCount;
+    }
+    
+    @Override
+    public void read(long row, ByteBuffer rowData) throws IOException {
+      checkRange(row, rowData == null ? 0 : rowData.remaining() / getRowWidth());
+      base.read(firstRow + row, rowData);
+    }
+    
+    @Override
+    public ByteBuffer readView(long row, int count) throws IOException {
+      checkRange(row, count);
+      return base.readView(firstRow + row, count);
+    }
+    
+    @Override
+    public void transferRows(long row, long count, WritableByteChannel target) throws IOException {
+      checkRange(row, count);
+      base.transferRows(firstRow + row, count, target);
+    }
+    
+    private void checkRange(long row, long count) throws IOException {
+      if (row < 0 || row + count > rowCount)
+        throw new IllegalArgumentException(
+            "Overflow: read request beyond end of table. Row number is " + row +
+            "; count is " + count + "; row count is " + rowCount);
+      checkOpen();
+    }
+    
+    @Override
+    public void set(long row, ByteBuffer rowData) {
+      throw readOnly();
+    }
+    
+    @Override
+    public long append(ByteBuffer rowData) {
+      throw readOnly();
+    }
+    
+    @Override
+    public long append(ByteBuffer[] rows) {
+      throw readOnly();
+    }
+    
+    @Override
+    public long appendAndCommit(ByteBuffer[] rows) {
+      throw readOnly();
+    }
+    
+    @Override
+    public void appendRows(Table source, long row, long count) {
+      throw readOnly();
+    }
+    
+    @Override
+    public long trimToSize() {
+      throw readOnly();
+    }
+    
+    @Override
+    public void truncate(long newRowCount) {
+      throw readOnly();
+    }
+    
+    @Override
+    public void mapMemory(int maxSegmentSize) {
+      throw readOnly();
+    }
+    
+    @Override
+    public void setBlockCache(BlockCache cache) {
+      throw readOnly();
+    }
+    
+    private UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("read-only view: " + this);
+    }
+  }
+  
   public final RowOrder order() {
     return order;
   }
   
+  /**
+   * Sets the fence index used to narrow searches, or <code>null</code> to search
+   * without one. Searchers already created pick up the change on their next search.
+   * 
+   * @param fenceIndex built for this table (or a copy of it)
+   * 
+   * @see FenceIndex#build(SortedTable, int)
+   * @see FenceIndex#load(java.io.File, SortedTable)
+   */
+  public void setFenceIndex(FenceIndex fenceIndex) {
+    if (fenceIndex != null && fenceIndex.getRowWidth() != getRowWidth())
+      throw new IllegalArgumentException(
+          "fence index row width " + fenceIndex.getRowWidth() + " != " + getRowWidth());
+    this.fenceIndex = fenceIndex;
+  }
+  
+  
+  /**
+   * Returns the fence index, if any.
+   */
+  public FenceIndex getFenceIndex() {
+    return fenceIndex;
+  }
+  
+  
+  /**
+   * Builds a new fence index, sets it, and returns it.
+   * 
+   * @param stride the number of rows per fence (&ge; 2). For single-read lookups, this
+   *               should be no greater than the number of rows in the searcher's buffer.
+   */
+  public FenceIndex buildFenceIndex(int stride) throws IOException {
+    FenceIndex index = FenceIndex.build(this, stride);
+    setFenceIndex(index);
+    return index;
+  }
+  
+  
+  /**
+   * Sets the Bloom filter used to skip negative lookups, or <code>null</code> for none.
+   * The filter is only consulted while its {@linkplain BloomFilter#getRowCount() row count}
+   * matches this table's.
+   * 
+   * @throws IllegalArgumentException
+   *         if the filter's {@linkplain BloomFilter#getHasher() hasher} is not this table's
+   *         order's {@linkplain RowOrder#keyHasher() key hasher} (o.w. lookups would
+   *         yield false negatives)
+   * 
+   * @see BloomFilter#build(SortedTable, double)
+   * @see BloomFilter#load(java.io.File)
+   */
+  public void setBloomFilter(BloomFilter bloomFilter) {
+    if (bloomFilter != null && !bloomFilter.getHasher().equals(order().keyHasher()))
+      throw new IllegalArgumentException(
+          "filter hasher " + bloomFilter.getHasher() + " does not match " + order() +
+          " key hasher " + order().keyHasher());
+    this.bloomFilter = bloomFilter;
+  }
+  
+  
+  /**
+   * Returns the Bloom filter, if any.
+   */
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
+  }
+  
+  
+  /**
+   * Determines whether the given <code>key</code> may be in this table. Returns
+   * <code>false</code> only if the {@linkplain #getBloomFilter() Bloom filter} rules it out.
+   */
+  public boolean mayContain(ByteBuffer key) throws IOException {
+    BloomFilter filter = bloomFilter;
+    return
+        filter == null ||
+        filter.getRowCount() != getRowCount() ||
+        filter.mayContain(key);
+  }
+  
+  
+  /**
+   * The maximum number of {@linkplain #setPivotCacheLevels(int) pivot cache levels}.
+   * (About 64K rows.)
+   */
+  public final static int MAX_PIVOT_CACHE_LEVELS = 16;
+  
+  
+  /**
+   * Sets the number of top levels of the binary search tree whose pivot rows are cached
+   * (in memory) and shared across this instance's {@linkplain Searcher}s. Searches then
+   * skip that many disk reads. The cache holds at most 2<sup><em>levels</em></sup> - 1 rows,
+   * is filled lazily, and is discarded whenever the row count changes (e.g. on append).
+   * <p>
+   * The cache is not used when a {@linkplain #setFenceIndex(FenceIndex) fence index} is set.
+   * Rows modified in place (as opposed to appended) must be followed by a call to this
+   * method, in order to clear the cache.
+   * </p>
+   * 
+   * @param levels between zero (no caching, the default) and {@linkplain #MAX_PIVOT_CACHE_LEVELS}
+   */
+  public void setPivotCacheLevels(int levels) {
+    if (levels < 0 || levels > MAX_PIVOT_CACHE_LEVELS)
+      throw new IllegalArgumentException("levels: " + levels);
+    pivotCacheLevels = levels;
+    pivotCache = null;
+  }
+  
+  
+  /**
+   * Returns the number of cached top levels of the binary search tree.
+   * 
+   * @see #setPivotCacheLevels(int)
+   */
+  public int getPivotCacheLevels() {
+    return pivotCacheLevels;
+  }
+  
+  
+  /**
+   * Turns interpolation search on or off (the default). When on, a {@linkplain Searcher}
+   * estimates the row number of the search key from its {@linkplain
+   * RowOrder#prefixKey(ByteBuffer) prefix key}, assuming the keys are uniformly distributed
+   * across the range of prefix keys (as they are, if the keys are hashes), and reads a
+   * buffer's worth of rows about the estimate. (Absent a fence index, the prefix keys of the
+   * first and last rows bound the estimate; they're read once per row count.)
+   * If the keys are indeed uniform, a lookup
+   * usually lands in 2 or 3 reads, instead of about log<sub>2</sub><em>n</em>. If they're
+   * not, searches fall back to bisection after a few probes.
+   * <p>
+   * The {@linkplain #setPivotCacheLevels(int) pivot cache} is not used when this is on.
+   * A {@linkplain #setFenceIndex(FenceIndex) fence index} is: the interpolation is then
+   * between fences.
+   * </p>
+   * 
+   * @throws UnsupportedOperationException
+   *         if turned on, and the {@linkplain #order() order} has no prefix key
+   * @see RowOrder#hasPrefixKey()
+   */
+  public void setInterpolationSearch(boolean on) {
+    if (on && !order.hasPrefixKey())
+      throw new UnsupportedOperationException("order has no prefix key: " + order);
+    interpolationSearch = on;
+  }
+  
+  
+  /**
+   * Returns the prefix keys of the first and last rows, for the given row count.
+   */
+  private long[] prefixBounds(long rowCount) throws IOException {
+    long[] bounds = prefixBounds;
+    if (bounds == null || bounds[0] != rowCount) {
+      ByteBuffer row = ByteBuffer.allocate(getRowWidth());
+      read(0, row);
+      long first = order.prefixKey(row.flip());
+      read(rowCount - 1, row.clear());
+      long last = order.prefixKey(row.flip());
+      bounds = new long[] { rowCount, first, last };
+      prefixBounds = bounds;
+    }
+    return bounds;
+  }
+  
+  
+  /**
+   * Determines whether searches interpolate.
+   * 
+   * @see #setInterpolationSearch(boolean)
+   */
+  public boolean isInterpolationSearch() {
+    return interpolationSearch;
+  }
+  
+  
+  /**
+   * Returns the pivot cache for the given row count, or <code>null</code> if not enabled.
+   */
+  private PivotCache pivotCache(long rowCount) {
+    int levels = pivotCacheLevels;
+    if (levels == 0)
+      return null;
+    PivotCache cache = pivotCache;
+    if (cache == null || cache.rowCount() != rowCount) {
+      cache = new PivotCache(rowCount, levels);
+      pivotCache = cache;
+    }
+    return cache;
+  }
+  
+  
   /**
    * Returns the row with the specified key if found. Use this only if you're not interested
-   * in adjacent rows, row number, etc.
+   * in adjacent rows, row number, etc. The searcher is reused across invocations (one at a
+   * time: concurrent invocations create their own).
    * 
    * @param key semantics are defined by {@linkplain #order()}
    * 
-   * @return the row if found; <code>null</code> o.w.
+   * @return a copy of the row if found; <code>null</code> o.w.
    */
   public ByteBuffer search(ByteBuffer key) throws IOException {
-    Searcher searcher = newSearcher(Searcher.MIN_BUFFER_ROWS);
-    return searcher.search(key) ? searcher.getHitRow() : null;
+    if (!mayContain(key))
+      return null;
+    if (!isOpen())
+      throw new IllegalStateException("closed table: " + this);
+    Searcher searcher = idleSearcher.getAndSet(null);
+    if (searcher == null)
+      searcher = newSearcher(Searcher.MIN_BUFFER_ROWS);
+    try {
+      if (!searcher.search(key))
+        return null;
+      ByteBuffer row = ByteBuffer.allocate(getRowWidth());
+      return row.put(searcher.getHitRow()).flip();
+    } finally {
+      idleSearcher.set(searcher);
+    }
+  }
+  
+  
+  /**
+   * Looks up the given keys in a single pass, and returns the rows found. Keys must
+   * be sorted.
+   * 
+   * @param sortedKeys search keys sorted in {@linkplain #order() order} (duplicates allowed)
+   * @return array of copies of the found rows (parallel to <code>sortedKeys</code>);
+   *         <code>null</code> elements for keys not found
+   *         
+   * @see Searcher#searchAll(ByteBuffer[], long[], ByteBuffer[])
+   */
+  public ByteBuffer[] searchAll(ByteBuffer[] sortedKeys) throws IOException {
+    ByteBuffer[] rows = new ByteBuffer[sortedKeys.length];
+    Searcher searcher = newSearcher(DEFAULT_BATCH_BUFFER_SIZE / getRowWidth());
+    searcher.searchAll(sortedKeys, new long[sortedKeys.length], rows);
+    return rows;
   }
   
   
+  /**
+   * Default search buffer size for {@linkplain #searchAll(ByteBuffer[]) batched} searches.
+   * Larger than the usual, since ranges of rows are resolved in single reads.
+   */
+  public final static int DEFAULT_BATCH_BUFFER_SIZE = 64 * 1024;
+  
+  
   public Searcher newSearcher(int rowsInBuffer) throws IOException {
     if (!isOpen())
       throw new IllegalStateException("closed table: " + this);
@@ -181,6 +583,12 @@ public class SortedTable extends Table implements Sorted {
   public class Searcher {
     
     public final static int MIN_BUFFER_ROWS = 4;
+    
+    /**
+     * The maximum number of interpolation probes in a search, before falling back
+     * to bisection. (On uniform keys, the expected number is about log log <em>n</em>.)
+     */
+    private final static int MAX_INTERPOLATION_PROBES = 6;
 
     private final SortedBlock block;
     private long firstRowNumberInBlock;
@@ -204,6 +612,12 @@ public class SortedTable extends Table implements Sorted {
     
     private int reads;
     
+    /**
+     * Pivot row buffer for {@linkplain #searchAll(ByteBuffer[], long[], ByteBuffer[])}.
+     * Lazily allocated.
+     */
+    private ByteBuffer pivotRow;
+    
     
     
     /**
@@ -235,6 +649,85 @@ public class SortedTable extends Table implements Sorted {
     
     
     
+    /**
+     * Galloping search for the given <code>key</code> among the rows at or after
+     * <code>fromRow</code>. Rows <code>fromRow</code>, <code>fromRow + 2</code>,
+     * <code>fromRow + 6</code>, <code>fromRow + 14</code>, .. are probed (one row per
+     * read, unless already in the buffer) until one compares greater than the key; the
+     * last bracket is then bisected. So the cost is logarithmic in the distance from
+     * <code>fromRow</code>, rather than in the table's row count: cheap when the key is near.
+     * <p>
+     * The results are reported as in {@linkplain #search(ByteBuffer)}, except that the
+     * rows before <code>fromRow</code> are assumed to compare less than the key. The
+     * buffer is left holding the last row (or rows) read.
+     * </p>
+     * 
+     * @param key     the search key
+     * @param fromRow the first row searched (&ge; 0 and &le; the row count)
+     * @return <code>true</code>, if found
+     */
+    public boolean gallop(ByteBuffer key, long fromRow) throws IOException {
+      profiler.begin();
+      boolean result = gallopImpl(key, fromRow);
+      profiler.end();
+      readOpStats.observe(reads);
+      return result;
+    }
+    
+    
+    private boolean gallopImpl(ByteBuffer key, long fromRow) throws IOException {
+      rowCount = getRowCount();
+      if (fromRow < 0 || fromRow > rowCount)
+        throw new IllegalArgumentException("fromRow: " + fromRow + "; row count is " + rowCount);
+      reads = 0;
+      excLo = fromRow - 1;
+      excHi = rowCount;
+      
+      // probe at exponentially increasing distances
+      for (long step = 1, probe = fromRow; probe < rowCount; probe = excLo + step) {
+        int comp;
+        if (isRowInBuffer(probe))
+          comp = compareToRetrievedRow(key, probe);
+        else {
+          ++reads;
+          ByteBuffer rowData = block.buffer();
+          rowData.clear().limit(getRowWidth());
+          read(probe, rowData);
+          rowData.flip();
+          firstRowNumberInBlock = probe;
+          retrievedRowCount = 1;
+          comp = order.compare(key, rowData);
+        }
+        if (comp < 0) {
+          excHi = probe;
+          break;
+        }
+        if (comp == 0) {
+          hitRowNumber = probe;
+          return true;
+        }
+        excLo = probe;
+        step <<= 1;
+      }
+      
+      // the key falls in (excLo, excHi)
+      if (excHi == excLo + 1) {
+        hitRowNumber = -excHi - 1;
+        return false;
+      }
+      if (isRowInBuffer(excLo + 1) && isRowInBuffer(excHi - 1)) {
+        int index = block.binarySearch(
+            key,
+            (int) (excLo + 1 - firstRowNumberInBlock),
+            (int) (excHi - firstRowNumberInBlock));
+        hitRowNumber = index < 0 ?
+            index - firstRowNumberInBlock : index + firstRowNumberInBlock;
+        return index >= 0;
+      }
+      return bisect(key, null);
+    }
+    
+    
     public final PerfProf getProfiler() {
       return profiler;
     }
@@ -276,12 +769,74 @@ public class SortedTable extends Table implements Sorted {
       ByteBuffer rowData = block.buffer();
       rowData.clear().limit(getRowWidth());
       
+      // narrow the search range from the fence index, if any
+      // (o.w. the top of the search tree may be cached)
+      PivotCache pivots = null;
+      final boolean interpolate = interpolationSearch;
+      long loPrefix = Long.MIN_VALUE;
+      long hiPrefix = Long.MAX_VALUE;
+      FenceIndex fences = fenceIndex;
+      if (fences != null && fences.getFenceCount() != 0 && fences.getRowCount() <= rowCount) {
+        int fence = fences.floorFence(key, order);
+        if (fence == -1)
+          excHi = 0;
+        else {
+          long fenceRow = ((long) fence) * fences.getStride();
+          fences.copyFence(fence, rowData);
+          rowData.flip();
+          if (order.compare(key, rowData) == 0) {
+            hitRowNumber = firstRowNumberInBlock = fenceRow;
+            retrievedRowCount = 1;
+            return true;
+          }
+          excLo = fenceRow;
+          if (fence + 1 < fences.getFenceCount())
+            excHi = fenceRow + fences.getStride();
+          if (interpolate) {
+            loPrefix = order.prefixKey(rowData);
+            hiPrefix = fence + 1 < fences.getFenceCount() ?
+                order.prefixKey(fences.getFence(fence + 1)) : prefixBounds(rowCount)[2];
+          }
+          rowData.clear().limit(getRowWidth());
+        }
+      } else if (interpolate) {
+        long[] bounds = prefixBounds(rowCount);
+        loPrefix = bounds[1];
+        hiPrefix = bounds[2];
+      } else
+        pivots = pivotCache(rowCount);
+      
+      if (interpolate) {
+        int outcome = interpolate(key, loPrefix, hiPrefix);
+        if (outcome != -1)
+          return outcome == 1;
+        rowData.clear().limit(getRowWidth());
+      }
+      
+      return bisect(key, pivots);
+    }
+    
+    
+    /**
+     * Bisects the search range (<code>excLo</code>, <code>excHi</code>) until it fits
+     * in the buffer, then searches the buffer.
+     * 
+     * @param pivots the cached top of the search tree, if any (may be <code>null</code>)
+     */
+    private boolean bisect(ByteBuffer key, PivotCache pivots) throws IOException {
+      ByteBuffer rowData = block.buffer();
+      rowData.clear().limit(getRowWidth());
+      
+      // the pivot's node in the (implicit) search tree
+      int node = 0;
+      
       while (true) {
         
         long range = excHi - excLo - 1;
         
-        ++reads;
         if (range <= block.cellCount()) {
+          if (range != 0)
+            ++reads;
           blockSearchProfiler.begin();
           boolean result = doBlockSearch(key, (int) range);
           blockSearchProfiler.end();
@@ -290,33 +845,107 @@ public class SortedTable extends Table implements Sorted {
         
         // pick a pivot
         long pivot = (excHi + excLo) / 2;
-        read(pivot, rowData);
-        if (rowData.hasRemaining())
-          throw new RuntimeException("assertion failure: rowData.hasRemaining(); " + rowData);
-        rowData.flip();
+        ByteBuffer pivotRow;
+        if (pivots != null && (pivotRow = pivots.get(node)) != null) {
+          // cache hit: no read
+        } else {
+          ++reads;
+          read(pivot, rowData);
+          if (rowData.hasRemaining())
+            throw new RuntimeException("assertion failure: rowData.hasRemaining(); " + rowData);
+          rowData.flip();
+          pivotRow = rowData;
+          if (pivots != null)
+            pivots.put(node, rowData);
+        }
         
-        int comp = order.compare(key, rowData);
+        int comp = order.compare(key, pivotRow);
         
-        if (comp < 0)
+        if (comp < 0) {
           excHi = pivot;
-        else if (comp > 0)
+          node = 2 * node + 1;
+        } else if (comp > 0) {
           excLo = pivot;
-        else {
+          node = 2 * node + 2;
+        } else {
           // we have a hit..
+          if (pivotRow != rowData)
+            rowData.put(pivotRow.duplicate()).flip();
           hitRowNumber = firstRowNumberInBlock = pivot;
           retrievedRowCount = 1;
           return true;
         }
+        if (pivots != null && node >= pivots.size())
+          pivots = null;
       }
-      
     }
 
+    /**
+     * Narrows the search range (<code>excLo</code>, <code>excHi</code>) by interpolating the
+     * key's row number from its prefix key. Each probe reads a buffer's worth of rows about
+     * the estimate: the search is over if the key falls among them; o.w. the probed rows
+     * bound the range, and the estimate is refined. Gives up (returns -1) after
+     * {@linkplain #MAX_INTERPOLATION_PROBES} probes.
+     * 
+     * @param loPrefix  the prefix key of (about) row <code>excLo</code>
+     * @param hiPrefix  the prefix key of (about) row <code>excHi</code>
+     * @return 1, on a hit; 0, on a miss; -1, if the range still needs to be searched
+     */
+    private int interpolate(ByteBuffer key, long loPrefix, long hiPrefix) throws IOException {
+      final long keyPrefix = order.prefixKey(key);
+      final int cells = block.cellCount();
+      for (int probes = 0; probes < MAX_INTERPOLATION_PROBES; ++probes) {
+        final long range = excHi - excLo - 1;
+        if (range <= cells)
+          return -1;
+        
+        double fraction = hiPrefix <= loPrefix ? 0.5 :
+            ((double) keyPrefix - loPrefix) / ((double) hiPrefix - loPrefix);
+        fraction = Math.max(0, Math.min(1, fraction));
+        long estimate = excLo + 1 + (long) (fraction * range);
+        long start = Math.max(excLo + 1, Math.min(estimate - cells / 2, excHi - cells));
+        
+        ++reads;
+        ByteBuffer data = block.buffer();
+        data.clear().limit(cells * getRowWidth());
+        read(start, data);
+        firstRowNumberInBlock = start;
+        retrievedRowCount = cells;
+        
+        int index = block.binarySearch(key, 0, cells);
+        if (index >= 0) {
+          hitRowNumber = start + index;
+          return 1;
+        }
+        int insertion = -index - 1;
+        if (insertion == 0) {
+          excHi = start;
+          hiPrefix = order.prefixKey(block.cell(0));
+        } else if (insertion == cells) {
+          excLo = start + cells - 1;
+          loPrefix = order.prefixKey(block.cell(cells - 1));
+        } else {
+          hitRowNumber = -(start + insertion) - 1;
+          return 0;
+        }
+      }
+      return -1;
+    }
+    
+
     private boolean doBlockSearch(ByteBuffer key, int range) throws IOException {
       if (range < 0)
         throw new RuntimeException("assertion failure: range=" + range);
       
       firstRowNumberInBlock = excLo + 1;
       
+      if (range == 0) {
+        // (the fence index already narrowed the search to an insertion point)
+        hitRowNumber = -firstRowNumberInBlock - 1;
+        retrievedRowCount = 0;
+        return false;
+      }
+      
       ByteBuffer resultData = block.buffer();
       resultData.clear().limit(range * getRowWidth());
       
@@ -333,6 +962,180 @@ public class SortedTable extends Table implements Sorted {
     }
 
 
+    /**
+     * Searches for the given <code>keys</code> in one pass. Instead of a search per key,
+     * the keys are partitioned across the pivots of a single binary search, so that
+     * the upper levels of the search are read once for the whole batch; and keys that
+     * fall in the same buffer-sized range of rows are resolved with a single (larger) read.
+     * The rows are read in ascending order.
+     * <p>
+     * On return, the buffer holds the last range of rows read. The state of the single-key
+     * {@linkplain #search(ByteBuffer) search} (e.g. {@linkplain #getHitRowNumber()}) is undefined.
+     * </p>
+     * 
+     * @param keys
+     *        the search keys, sorted in {@linkplain SortedTable#order() order}. Duplicates
+     *        are allowed
+     * @param results
+     *        (out) at least as long as <code>keys</code>. On return, each element has the
+     *        {@linkplain #getHitRowNumber()} semantics for the key at the same index
+     * @param hitRows
+     *        (out) optional (may be <code>null</code>). If not null, then on return, each
+     *        element holds a copy of the hit row for the key at the same index, or
+     *        <code>null</code> if not found
+     * @return the number of hits
+     * @throws IllegalArgumentException
+     *         if the keys are not sorted, or the output arrays are too short
+     */
+    public int searchAll(ByteBuffer[] keys, long[] results, ByteBuffer[] hitRows)
+        throws IOException {
+      
+      if (results.length < keys.length)
+        throw new IllegalArgumentException(
+            "results array too short: " + results.length + " < " + keys.length);
+      if (hitRows != null && hitRows.length < keys.length)
+        throw new IllegalArgumentException(
+            "hitRows array too short: " + hitRows.length + " < " + keys.length);
+      for (int k = 1; k < keys.length; ++k)
+        if (order.compare(keys[k - 1], keys[k]) > 0)
+          throw new IllegalArgumentException("keys not sorted at index " + k);
+      
+      profiler.begin();
+      rowCount = getRowCount();
+      reads = retrievedRowCount = 0;
+      firstRowNumberInBlock = rowCount;
+      if (pivotRow == null)
+        pivotRow = ByteBuffer.allocate(getRowWidth());
+      
+      int hits = 0;
+      
+      FenceIndex fences = fenceIndex;
+      if (fences != null && fences.getFenceCount() != 0 && fences.getRowCount() <= rowCount) {
+        // resolve the keys bracketed by each fence range separately
+        final int lastFence = fences.getFenceCount() - 1;
+        for (int k = 0; k < keys.length; ) {
+          int fence = fences.floorFence(keys[k], order);
+          int kEnd = k + 1;
+          if (fence < lastFence) {
+            ByteBuffer nextFence = fences.getFence(fence + 1);
+            while (kEnd < keys.length && order.compare(keys[kEnd], nextFence) < 0)
+              ++kEnd;
+          } else
+            kEnd = keys.length;
+          
+          long excLo, excHi;
+          if (fence == -1) {
+            excLo = -1;
+            excHi = 0;
+          } else {
+            excLo = ((long) fence) * fences.getStride() - 1;
+            excHi = fence == lastFence ? rowCount : excLo + 1 + fences.getStride();
+          }
+          hits += searchRange(keys, k, kEnd, excLo, excHi, results, hitRows);
+          k = kEnd;
+        }
+      } else
+        hits = searchRange(keys, 0, keys.length, -1L, rowCount, results, hitRows);
+      
+      profiler.end();
+      readOpStats.observe(reads);
+      return hits;
+    }
+    
+    
+    /**
+     * Resolves the keys in the index range [<code>kLo</code>, <code>kHi</code>), all of which
+     * are known to lie within the (exclusive) row range (<code>excLo</code>, <code>excHi</code>).
+     */
+    private int searchRange(
+        ByteBuffer[] keys, int kLo, int kHi, long excLo, long excHi,
+        long[] results, ByteBuffer[] hitRows) throws IOException {
+      
+      if (kLo == kHi)
+        return 0;
+      
+      final long range = excHi - excLo - 1;
+      
+      if (range <= block.cellCount()) {
+        if (range == 0) {
+          for (int k = kLo; k < kHi; ++k) {
+            results[k] = -excHi - 1;
+            if (hitRows != null)
+              hitRows[k] = null;
+          }
+          return 0;
+        }
+        
+        // one (coalesced) read for all the keys in range
+        ++reads;
+        blockSearchProfiler.begin();
+        firstRowNumberInBlock = excLo + 1;
+        ByteBuffer resultData = block.buffer();
+        resultData.clear().limit((int) range * getRowWidth());
+        read(firstRowNumberInBlock, resultData);
+        retrievedRowCount = (int) range;
+        
+        int hits = 0;
+        for (int k = kLo; k < kHi; ++k) {
+          int rowInBuffer = block.binarySearch(keys[k], 0, (int) range);
+          if (rowInBuffer < 0) {
+            results[k] = rowInBuffer - firstRowNumberInBlock;
+            if (hitRows != null)
+              hitRows[k] = null;
+          } else {
+            results[k] = rowInBuffer + firstRowNumberInBlock;
+            ++hits;
+            if (hitRows != null) {
+              ByteBuffer row = ByteBuffer.allocate(getRowWidth());
+              block.copyCellInto(rowInBuffer, row);
+              hitRows[k] = row.flip();
+            }
+          }
+        }
+        blockSearchProfiler.end();
+        return hits;
+      }
+      
+      // read the pivot and partition the keys about it
+      ++reads;
+      final long pivot = (excHi + excLo) / 2;
+      pivotRow.clear();
+      read(pivot, pivotRow);
+      pivotRow.flip();
+      
+      int eqStart = firstKeyAtOrAbove(keys, kLo, kHi, false);
+      int eqEnd = firstKeyAtOrAbove(keys, eqStart, kHi, true);
+      for (int k = eqStart; k < eqEnd; ++k) {
+        results[k] = pivot;
+        if (hitRows != null)
+          hitRows[k] = ByteBuffer.allocate(getRowWidth()).put(pivotRow.duplicate()).flip();
+      }
+      
+      int hits = eqEnd - eqStart;
+      hits += searchRange(keys, kLo, eqStart, excLo, pivot, results, hitRows);
+      hits += searchRange(keys, eqEnd, kHi, pivot, excHi, results, hitRows);
+      return hits;
+    }
+    
+    
+    /**
+     * Returns the index of the first key in the given index range that is greater than
+     * (if <code>strict</code>), or greater than or equal to, the current pivot row;
+     * <code>kHi</code> if there's no such key.
+     */
+    private int firstKeyAtOrAbove(ByteBuffer[] keys, int kLo, int kHi, boolean strict) {
+      while (kLo < kHi) {
+        int mid = (kLo + kHi) >>> 1;
+        int comp = order.compare(keys[mid], pivotRow);
+        if (comp > 0 || comp == 0 && !strict)
+          kHi = mid;
+        else
+          kLo = mid + 1;
+      }
+      return kLo;
+    }
+
+
     /**
      * Returns the row count snapshot at the time the search was started.
      */
@@ -275,6 +275,29 @@ public class SortedTableBuilder {
   }
   
   
+  /**
+   * Flushes the sorted contents to the given <code>file</code>, and returns a
+   * Bloom filter of the flushed rows' keys. The filter is meant to be
+   * {@linkplain BloomFilter#save(java.io.File) saved} beside the table, and
+   * {@linkplain SortedTable#setBloomFilter(BloomFilter) set} on the table when loaded.
+   * 
+   * @param fpp
+   *        the target false positive probability
+   *        (see {@linkplain BloomFilter#DEFAULT_FPP})
+   *        
+   * @see #flush(GatheringByteChannel, boolean)
+   */
+  public BloomFilter flush(GatheringByteChannel file, boolean clear, double fpp)
+      throws IOException {
+    RowOrder order = (RowOrder) sortedView.comparator();
+    BloomFilter filter = BloomFilter.newInstance(order, sortedView.size(), fpp);
+    for (ByteBuffer row : sortedView)
+      filter.add(row);
+    flush(file, clear);
+    return filter;
+  }
+  
+  
   private ByteBuffer allocateRow() {
     return allocateRows(1);
   }
@@ -18,6 +18,7 @@ import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.crums.io.FileUtils;
 import io.crums.io.channels.ChannelUtils;
@@ -54,6 +55,21 @@ import io.crums.util.Lists;
  * every user agrees to do the right thing: namely close their instance when they're done using
  * it.
  * </p>
+ * <h2>Memory Mapped Reads</h2>
+ * <p>
+ * By default every {@linkplain #read(long, ByteBuffer) read} is a positional read on the
+ * underlying <code>FileChannel</code>. For read-heavy tables that fit comfortably in the
+ * page cache, the per-read syscall overhead dominates. Such tables may instead be
+ * {@linkplain #mapMemory() memory mapped}, in which case reads are served from
+ * (read-only) memory mapped segments of the file, and the {@linkplain #readView(long, int)}
+ * method hands out zero-copy views of rows. Writes still go thru the file channel.
+ * </p>
+ * <h2>Block Cache</h2>
+ * <p>
+ * Alternatively, reads may go thru a {@linkplain BlockCache} (see {@linkplain
+ * #setBlockCache(BlockCache)}), an off-heap cache of file blocks that may be shared by many
+ * tables, and which, unlike a memory map, is bounded in size.
+ * </p>
  * 
  * 
  * @author Babak
@@ -62,6 +78,13 @@ public class Table implements Channel {
   
   private final static Logger LOG = System.getLogger(Table.class.getName());
   
+  /**
+   * Default maximum number of bytes in a memory mapped segment (1 GiB).
+   * 
+   * @see #mapMemory()
+   */
+  public final static int DEFAULT_MAP_SEGMENT_SIZE = 1 << 30;
+  
   protected final Object filePositionLock;
 
   private final Keystone rowCount;
@@ -69,6 +92,13 @@ public class Table implements Channel {
   private final SharedChannel sharedFile;
   private final long zeroRowFileOffset;
   private final int rowSize;
+  
+  private volatile MappedRows mappedRows;
+  
+  /**
+   * The block cache registration, if any. Shared with copies.
+   */
+  private final AtomicReference<BlockCache.Registration> cacheRegistration;
 
 
   /**
@@ -93,6 +123,7 @@ public class Table implements Channel {
     this.rowCount = rowCount;
     this.file = file;
     this.sharedFile = new SharedChannel(file);
+    this.cacheRegistration = new AtomicReference<>();
     this.zeroRowFileOffset = zeroRowFileOffset;
     this.rowSize = rowSize;
 
@@ -106,6 +137,31 @@ public class Table implements Channel {
   }
   
   
+  /**
+   * Creates an instance whose rows are <em>not</em> stored raw in the given file (they may be
+   * compressed, for example). The file's size is not validated against the row count, and
+   * there is no zero-row offset: a subclass using this constructor must override the methods
+   * that access rows in the file ({@linkplain #read(long, ByteBuffer) read}, {@linkplain
+   * #readView(long, int) readView}, {@linkplain #transferRows(long, long, WritableByteChannel)
+   * transferRows}, and the write methods).
+   * 
+   * @param file      the file channel (closed when this instance and its copies are closed)
+   * @param rowCount  the row count
+   * @param rowSize   the size of each row in bytes (&gt; 0)
+   */
+  protected Table(FileChannel file, Keystone rowCount, int rowSize) throws IOException {
+    this.filePositionLock = new Object();
+    this.rowCount = rowCount;
+    this.file = file;
+    this.sharedFile = new SharedChannel(file);
+    this.cacheRegistration = new AtomicReference<>();
+    this.zeroRowFileOffset = 0;
+    this.rowSize = rowSize;
+    checkArgs(file, rowSize);
+    checkRowCount(rowCount);
+  }
+  
+  
   /**
    * Copy constructor. Safe for read-only. Avoid write mode: hard to think thru.
    */
@@ -116,6 +172,8 @@ public class Table implements Channel {
     this.sharedFile = new SharedChannel(copy.sharedFile);
     this.zeroRowFileOffset = copy.zeroRowFileOffset;
     this.rowSize = copy.rowSize;
+    this.mappedRows = copy.mappedRows;
+    this.cacheRegistration = copy.cacheRegistration;
   }
   
   
@@ -151,6 +209,7 @@ public class Table implements Channel {
     int numRowsInBuffer = numRowsInBuffer(rowData);
     long rowOffsetInFile = rowOffset(row);
     ChannelUtils.writeRemaining(file, rowOffsetInFile, rowData);
+    invalidateCachedRows(row, numRowsInBuffer);
     long nextRow = row + numRowsInBuffer;
     if (nextRow > currentCount)
       rowCount.set(nextRow);
@@ -169,13 +228,27 @@ public class Table implements Channel {
   public long append(ByteBuffer rowData) throws IOException {
     checkOpen();
     int newRows = numRowsInBuffer(rowData);
-    long currentRowCount = rowCount.get();
-    long rowOffsetInFile = rowOffset(currentRowCount);
-    ChannelUtils.writeRemaining(file, rowOffsetInFile, rowData);
-    long newRowCount = rowCount.increment(newRows);
-    if (newRowCount != currentRowCount + newRows)
-      throw new IOException("sanity check failure: " + newRowCount + " != " + currentRowCount + " + " + newRows);
-    return currentRowCount;
+    // (the lock guards the read-modify-write on the row count against concurrent appenders)
+    synchronized (filePositionLock) {
+      long currentRowCount = rowCount.get();
+      long rowOffsetInFile = rowOffset(currentRowCount);
+      ChannelUtils.writeRemaining(file, rowOffsetInFile, rowData);
+      long newRowCount = rowCount.increment(newRows);
+      if (newRowCount != currentRowCount + newRows)
+        throw new IOException("sanity check failure: " + newRowCount + " != " + currentRowCount + " + " + newRows);
+      return currentRowCount;
+    }
+  }
+  
+  
+  /**
+   * Writes one or more rows starting at the given row number, without touching the row
+   * count. Package-private, for {@linkplain ConcurrentAppender}.
+   */
+  void writeRows(long row, ByteBuffer rowData) throws IOException {
+    checkOpen();
+    numRowsInBuffer(rowData);
+    ChannelUtils.writeRemaining(file, rowOffset(row), rowData);
   }
   
   
@@ -211,6 +284,47 @@ public class Table implements Channel {
   
   
   
+  /**
+   * Appends one or more rows durably and returns the index (row number) of the first row
+   * appended. The rows are written in a single gathering write and forced to storage
+   * <em>before</em> the row count is committed. So if there's a crash, the row count never
+   * covers rows that weren't written.
+   * <p>
+   * If the row count keystone is written to the table's file (the usual case), each
+   * invocation costs 2 syncs, regardless of the number of rows appended: the keystone's
+   * first sync also covers the rows, and its second commits the count. O.w., the rows
+   * are synced first, and then the count is committed as usual (3 syncs in all). Either
+   * way, once this method returns, the appended rows survive a crash.
+   * </p>
+   * 
+   * @param rows
+   *        non-zero length array of row buffers. The total number of remaining bytes
+   *        must be an exact, non-zero multiple of the table's {@linkplain #getRowWidth() rowWidth}.
+   * 
+   * @see GroupCommitAppender
+   */
+  public long appendAndCommit(ByteBuffer[] rows) throws IOException {
+    long newRows = numRowsInBuffers(rows);
+
+    checkOpen();
+    synchronized (filePositionLock) {
+      long firstRowNumber = rowCount.get();
+      file.position(rowOffset(firstRowNumber));
+      ChannelUtils.writeRemaining(file, rows);
+      long newRowCount;
+      if (rowCount.isWrittenTo(file))
+        newRowCount = rowCount.increment(newRows);
+      else {
+        file.force(false);
+        newRowCount = rowCount.increment(newRows);
+      }
+      if (newRowCount != firstRowNumber + newRows)
+        throw new IOException("sanity check failure: " + newRowCount + " != " + firstRowNumber + " + " + newRows);
+      return firstRowNumber;
+    }
+  }
+  
+  
   public void flush() throws IOException {
     checkOpen();
     file.force(false);
@@ -237,9 +351,176 @@ public class Table implements Channel {
           "Overflow: read request beyond end of table. " + "Row number is " + row +
           "; number of rows to copy into rawData buffer is " + rows +
           "; current row count is " + rowCount.get());
-    long fileOffset = rowOffset(row);
     checkOpen();
-    ChannelUtils.readRemaining(file, fileOffset, rowData);
+    MappedRows mapped = mappedRows;
+    BlockCache.Registration cacheReg;
+    if (mapped != null)
+      mapped.read(row, rowData);
+    else if ((cacheReg = cacheRegistration.get()) != null)
+      cacheReg.cache.read(
+          cacheReg, file, zeroRowFileOffset, row * rowSize, rowCount.get() * rowSize, rowData);
+    else
+      ChannelUtils.readRemaining(file, rowOffset(row), rowData);
+  }
+  
+  
+  /**
+   * Returns a read-only view of the given block of rows. If the instance is
+   * {@linkplain #isMemoryMapped() memory mapped}, and the rows do not straddle mapped
+   * segments, then the returned buffer is a zero-copy view directly onto the memory map;
+   * otherwise, the rows are read into a newly allocated buffer.
+   * <p>
+   * Note a zero-copy view reflects subsequent {@linkplain #set(long, ByteBuffer) set}s
+   * to the same rows. Also, it should not be accessed after the table is
+   * {@linkplain #truncate(long) truncated}.
+   * </p>
+   * 
+   * @param row
+   *          the zero-based row number
+   * @param count
+   *          the number of rows (&ge; 1)
+   * @return a read-only buffer with <code>count * getRowWidth()</code> remaining bytes
+   */
+  public ByteBuffer readView(long row, int count) throws IOException {
+    if (count < 1)
+      throw new IllegalArgumentException("count: " + count);
+    if (row < 0)
+      throw new IllegalArgumentException("row: " + row);
+    if (row + count > rowCount.get())
+      throw new IllegalArgumentException(
+          "Overflow: read request beyond end of table. Row number is " + row +
+          "; count is " + count + "; current row count is " + rowCount.get());
+    checkOpen();
+    MappedRows mapped = mappedRows;
+    if (mapped != null) {
+      ByteBuffer view = mapped.view(row, count);
+      if (view != null)
+        return view;
+    }
+    ByteBuffer rows = ByteBuffer.allocate(count * rowSize);
+    read(row, rows);
+    return rows.flip().asReadOnlyBuffer();
+  }
+  
+  
+  /**
+   * Turns on memory mapped reads using segments of at most {@linkplain #DEFAULT_MAP_SEGMENT_SIZE}
+   * bytes.
+   * 
+   * @see #mapMemory(int)
+   */
+  public void mapMemory() throws IOException {
+    mapMemory(DEFAULT_MAP_SEGMENT_SIZE);
+  }
+  
+  
+  /**
+   * Turns on memory mapped reads. The file is mapped lazily, in read-only segments,
+   * each containing a whole number of rows. As the table grows, the tail segment is
+   * remapped on demand. If the instance is already mapped, the existing mapping is
+   * replaced.
+   * <p>
+   * The setting is per instance: {@linkplain #clone() clone}s made <em>after</em>
+   * this method is invoked share the mapping; those made before, don't.
+   * </p>
+   * 
+   * @param maxSegmentSize
+   *          the maximum number of bytes in each mapped segment; must be at least
+   *          the {@linkplain #getRowWidth() row width}
+   *          
+   * @see #unmapMemory()
+   */
+  public void mapMemory(int maxSegmentSize) throws IOException {
+    checkOpen();
+    mappedRows = new MappedRows(file, zeroRowFileOffset, rowSize, maxSegmentSize);
+  }
+  
+  
+  /**
+   * Turns off memory mapped reads. Views already handed out by {@linkplain #readView(long, int)}
+   * remain valid.
+   */
+  public void unmapMemory() {
+    mappedRows = null;
+  }
+  
+  
+  /**
+   * Routes reads thru the given block cache, or if <code>null</code>, turns off cached reads.
+   * A {@linkplain #isMemoryMapped() memory map}, if any, takes precedence. Unlike the memory
+   * map, the setting is shared by this instance and all its copies, whether made before or
+   * after this method is invoked.
+   * <p>
+   * The cache is kept consistent with writes made thru this instance and its copies.
+   * Writes made to the file otherwise (e.g. via another instance on the same file) are not
+   * seen thru the cache.
+   * </p>
+   * 
+   * @param cache the cache, e.g. {@linkplain BlockCache#getShared()}; or <code>null</code>
+   */
+  public void setBlockCache(BlockCache cache) {
+    BlockCache.Registration old;
+    synchronized (cacheRegistration) {
+      old = cacheRegistration.get();
+      if (old == null ? cache == null : old.cache == cache)
+        return;
+      cacheRegistration.set(cache == null ? null : cache.register());
+    }
+    if (old != null)
+      old.cache.release(old);
+  }
+  
+  
+  /**
+   * Pins the {@linkplain #setBlockCache(BlockCache) block cache}'s blocks covering the given
+   * rows: once read, they're never evicted, until {@linkplain #unpinRows(long, long) unpinned}.
+   * Pins are counted. They're dropped when the table switches caches, or its file is closed.
+   * Does nothing if there's no block cache.
+   *
+   * @param row   the first row
+   * @param count the number of rows
+   */
+  public void pinRows(long row, long count) {
+    pinImpl(row, count, true);
+  }
+
+
+  /**
+   * Unpins the block cache's blocks covering the given rows (the inverse of
+   * {@linkplain #pinRows(long, long)}).
+   */
+  public void unpinRows(long row, long count) {
+    pinImpl(row, count, false);
+  }
+
+
+  private void pinImpl(long row, long count, boolean pin) {
+    if (row < 0 || count < 0)
+      throw new IllegalArgumentException("row / count: " + row + " / " + count);
+    BlockCache.Registration cacheReg = cacheRegistration.get();
+    if (cacheReg != null)
+      cacheReg.cache.pin(cacheReg, row * rowSize, count * rowSize, pin);
+  }
+
+
+  /**
+   * Returns the block cache reads go thru, if any; <code>null</code>, otherwise.
+   * 
+   * @see #setBlockCache(BlockCache)
+   */
+  public final BlockCache getBlockCache() {
+    BlockCache.Registration cacheReg = cacheRegistration.get();
+    return cacheReg == null ? null : cacheReg.cache;
+  }
+  
+  
+  /**
+   * Determines whether reads are served from a memory map.
+   * 
+   * @see #mapMemory(int)
+   */
+  public final boolean isMemoryMapped() {
+    return mappedRows != null;
   }
   
   
@@ -284,13 +565,11 @@ public class Table implements Channel {
     if (source.getRowWidth() != getRowWidth())
       throw new IllegalArgumentException(
           "row width mismatch. Expected " + rowSize + "; actual was " + source.getRowWidth());
-    long offset = source.rowOffset(row);
-    long blockLength = count * rowSize;
-    
     checkOpen();
     synchronized (filePositionLock) {
       file.position(rowOffset(getRowCount()));
-      ChannelUtils.transferBytes(source.file, file, offset, blockLength);
+      // (the source may not store its rows raw: let it do the transfer)
+      source.transferRows(row, count, file);
       rowCount.increment(count);
     }
   }
@@ -339,6 +618,12 @@ public class Table implements Channel {
   
   public long trimToSize() throws IOException {
     long size = rowOffset(getRowCount());
+    MappedRows mapped = mappedRows;
+    if (mapped != null && size < file.size())
+      mapped.clear();
+    BlockCache.Registration cacheReg = cacheRegistration.get();
+    if (cacheReg != null)
+      cacheReg.cache.invalidate(cacheReg, size - zeroRowFileOffset, Long.MAX_VALUE);
     file.truncate(size);
     return size;
   }
@@ -418,14 +703,38 @@ public class Table implements Channel {
   @Override
   public void close() throws IOException {
     rowCount.commit();
+    mappedRows = null;
     sharedFile.close();
+    BlockCache.Registration cacheReg = cacheRegistration.get();
+    if (cacheReg != null && !file.isOpen())
+      cacheReg.cache.release(cacheReg);
   }
   
 
 
-  private long rowOffset(long row) {
+  final long rowOffset(long row) {
     return zeroRowFileOffset + row * rowSize;
   }
+  
+  
+  /**
+   * Invalidates the {@linkplain #setBlockCache(BlockCache) block cache}'s blocks, if any,
+   * overlapping the given rows. Invoked after the rows are written to the file otherwise
+   * than thru this instance's write methods (e.g. by {@linkplain AsyncTable}).
+   */
+  final void invalidateCachedRows(long row, long count) {
+    BlockCache.Registration cacheReg = cacheRegistration.get();
+    if (cacheReg != null)
+      cacheReg.cache.invalidate(cacheReg, row * rowSize, count * rowSize);
+  }
+
+
+  /**
+   * Returns the keystone holding the row count. Package-private, for {@linkplain AsyncTable}.
+   */
+  final Keystone rowCountKeystone() {
+    return rowCount;
+  }
 
 
   private int numRowsInBuffer(ByteBuffer buffer) {
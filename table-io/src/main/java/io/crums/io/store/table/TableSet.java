@@ -6,11 +6,16 @@ package io.crums.io.store.table;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import io.crums.io.store.Sorted;
 import io.crums.io.store.table.SortedTable.Searcher;
 import io.crums.io.store.table.iter.TableSetIterator;
+import io.crums.io.store.table.iter.TableSetSpliterator;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.util.CollectionUtils;
 import io.crums.util.TaskStack;
@@ -90,6 +95,147 @@ public class TableSet implements Sorted, Closeable {
   }
   
   
+  /**
+   * Returns a parallel stream of the rows in this set, in ascending order. The set is
+   * {@linkplain #partition(int) partitioned} into (at most) <code>ranges</code> key ranges,
+   * which the stream's {@linkplain TableSetSpliterator spliterator} splits across threads.
+   * The caller agrees to {@linkplain Stream#close() close} the stream when done: closing it
+   * releases the partitions. I/O errors during traversal are thrown as
+   * {@linkplain java.io.UncheckedIOException UncheckedIOException}s.
+   * 
+   * @param ranges the (maximum) number of key ranges (&ge; 1). Typically, a small multiple of
+   *               the number of threads
+   */
+  public Stream<ByteBuffer> stream(int ranges) throws IOException {
+    List<TableSet> parts = partition(ranges);
+    return StreamSupport.stream(new TableSetSpliterator(parts), true)
+        .onClose(() -> new TaskStack().pushClose(parts).close());
+  }
+  
+  
+  /**
+   * Splits this set into (at most) <code>ranges</code> key-disjoint sets, in ascending key order.
+   * The split points are picked by {@linkplain #pickSplitters(SortedTable[], int) sampling} the
+   * tables' rows, so the partitions are about equal in row count; each splitter is then located
+   * in every table, which cuts every table into the same key ranges. Each partition is a stack
+   * of {@linkplain SortedTable#subTable(long, long) sub-table} views (in the same order of
+   * precedence), and can be iterated independently of the others: concatenating their
+   * iterations yields this set's.
+   * <p>
+   * The caller agrees to close every returned partition when done. (Closing a partition
+   * does not close this set's tables.)
+   * </p>
+   * 
+   * @param ranges the (maximum) number of key ranges (&ge; 1). Fewer are returned if the keys
+   *               are too few, or too skewed
+   */
+  public List<TableSet> partition(int ranges) throws IOException {
+    if (ranges < 1)
+      throw new IllegalArgumentException("ranges: " + ranges);
+    
+    ByteBuffer[] splitters = pickSplitters(tables, ranges);
+    final int count = splitters.length + 1;
+    
+    // cuts[t][r] is the first row in table t in key range r
+    long[][] cuts = new long[tables.length][count + 1];
+    for (int t = 0; t < tables.length; ++t) {
+      SortedTable table = tables[t];
+      if (table.getRowCount() != 0) {
+        Searcher searcher = getSearcher(table);
+        for (int i = 0; i < splitters.length; ++i)
+          cuts[t][i + 1] = searcher.search(splitters[i]) ?
+              searcher.getHitRowNumber() : -searcher.getHitRowNumber() - 1;
+      }
+      cuts[t][count] = table.getRowCount();
+    }
+    
+    List<TableSet> parts = new ArrayList<>(count);
+    TaskStack onFail = new TaskStack();
+    try {
+      for (int r = 0; r < count; ++r) {
+        List<SortedTable> views = new ArrayList<>(tables.length);
+        for (int t = 0; t < tables.length; ++t) {
+          long from = cuts[t][r];
+          long to = cuts[t][r + 1];
+          if (to > from) {
+            SortedTable view = tables[t].subTable(from, to);
+            onFail.pushClose(view);
+            views.add(view);
+          }
+        }
+        parts.add(newPartition(views.toArray(new SortedTable[views.size()])));
+      }
+    } catch (IOException | RuntimeException x) {
+      onFail.close();
+      throw x;
+    }
+    return parts;
+  }
+  
+  
+  /**
+   * Returns a new set of the given partition <code>views</code> (in increasing order of
+   * precedence; possibly empty). Subclasses override this to carry over their settings.
+   * 
+   * @see #partition(int)
+   */
+  protected TableSet newPartition(SortedTable[] views) throws IOException {
+    return views.length == 0 ? new TableSet(order, rowWidth) : new TableSet(views, false);
+  }
+  
+  
+  /**
+   * The number of rows sampled per key range, when picking splitters.
+   * 
+   * @see #pickSplitters(SortedTable[], int)
+   */
+  public final static int SAMPLES_PER_RANGE = 32;
+  
+  
+  /**
+   * Samples the given tables (in proportion to their sizes) and returns the keys that split
+   * their rows into about equal sized key ranges. The returned splitters are in ascending order,
+   * with no 2 equal; there are fewer than <code>ranges - 1</code> if the keys are too few, or too
+   * skewed.
+   * 
+   * @param tables  non-empty array of tables with the same row width and order
+   * @param ranges  the (maximum) number of key ranges (&ge; 1)
+   */
+  public static ByteBuffer[] pickSplitters(SortedTable[] tables, int ranges) throws IOException {
+    if (ranges < 1)
+      throw new IllegalArgumentException("ranges: " + ranges);
+    if (ranges == 1 || tables.length == 0)
+      return new ByteBuffer[0];
+    final RowOrder order = tables[0].order();
+    long totalRows = 0;
+    for (SortedTable table : tables)
+      totalRows += table.getRowCount();
+    final long stride = Math.max(1, totalRows / (((long) ranges) * SAMPLES_PER_RANGE));
+
+    List<ByteBuffer> samples = new ArrayList<>();
+    for (SortedTable table : tables) {
+      final long count = table.getRowCount();
+      for (long row = stride / 2; row < count; row += stride) {
+        ByteBuffer sample = ByteBuffer.allocate(table.getRowWidth());
+        table.read(row, sample);
+        samples.add(sample.flip());
+      }
+    }
+    samples.sort(order);
+
+    List<ByteBuffer> splitters = new ArrayList<>(ranges - 1);
+    for (int r = 1; r < ranges; ++r) {
+      int index = (int) (((long) r) * samples.size() / ranges);
+      if (index == 0 || index >= samples.size())
+        continue;
+      ByteBuffer splitter = samples.get(index);
+      if (splitters.isEmpty() || order.compare(splitters.get(splitters.size() - 1), splitter) < 0)
+        splitters.add(splitter);
+    }
+    return splitters.toArray(new ByteBuffer[splitters.size()]);
+  }
+  
+  
   public TableSet append(SortedTable table) throws IOException {
     SortedTable[] set = appendImpl(table);
     return new TableSet(set, false);
@@ -161,8 +307,15 @@ public class TableSet implements Sorted, Closeable {
   }
   
   
+  /**
+   * Returns the row with the given key from the top-most table that contains it, or
+   * <code>null</code> if not found. Tables whose {@linkplain SortedTable#getBloomFilter()
+   * Bloom filter} rules out the key are skipped without being searched.
+   */
   public ByteBuffer getRow(ByteBuffer key) throws IOException {
     for (int i = tables.length; i-- > 0; ) {
+      if (!tables[i].mayContain(key))
+        continue;
       Searcher searcher = getSearcher(tables[i]);
       if (searcher.search(key)) {
         return searcher.getHitRow();
@@ -172,6 +325,64 @@ public class TableSet implements Sorted, Closeable {
   }
   
   
+  /**
+   * Batched version of {@linkplain #getRow(ByteBuffer)}. The keys are looked up
+   * table by table (top-down), each table {@linkplain SortedTable.Searcher#searchAll(ByteBuffer[], long[], ByteBuffer[])
+   * searched} in a single pass for the keys not yet found (and not ruled out by its Bloom filter).
+   * 
+   * @param sortedKeys the search keys, sorted in {@linkplain #order() order} (duplicates allowed)
+   * 
+   * @return array of rows parallel to <code>sortedKeys</code>; <code>null</code> elements
+   *         for keys not found
+   */
+  public ByteBuffer[] getRows(ByteBuffer[] sortedKeys) throws IOException {
+    final int count = sortedKeys.length;
+    ByteBuffer[] rows = new ByteBuffer[count];
+    
+    // indices of the keys not yet found
+    int[] pending = new int[count];
+    for (int k = 0; k < count; ++k)
+      pending[k] = k;
+    int pendingCount = count;
+    
+    int[] probes = new int[count];
+    ByteBuffer[] probeKeys = new ByteBuffer[count];
+    long[] results = new long[count];
+    ByteBuffer[] hitRows = new ByteBuffer[count];
+    
+    for (int i = tables.length; i-- > 0 && pendingCount > 0; ) {
+      SortedTable table = tables[i];
+      
+      int probeCount = 0;
+      for (int p = 0; p < pendingCount; ++p) {
+        int k = pending[p];
+        if (table.mayContain(sortedKeys[k])) {
+          probes[probeCount] = k;
+          probeKeys[probeCount++] = sortedKeys[k];
+        }
+      }
+      if (probeCount == 0)
+        continue;
+      
+      ByteBuffer[] keys = probeCount == count ? probeKeys : Arrays.copyOf(probeKeys, probeCount);
+      int hits = getBatchSearcher(table).searchAll(keys, results, hitRows);
+      if (hits == 0)
+        continue;
+      
+      for (int p = 0; p < probeCount; ++p)
+        if (hitRows[p] != null)
+          rows[probes[p]] = hitRows[p];
+      
+      int remaining = 0;
+      for (int p = 0; p < pendingCount; ++p)
+        if (rows[pending[p]] == null)
+          pending[remaining++] = pending[p];
+      pendingCount = remaining;
+    }
+    return rows;
+  }
+  
+  
   public List<SortedTable> tables() {
     return CollectionUtils.asReadOnlyList(tables);
   }
@@ -188,6 +399,14 @@ public class TableSet implements Sorted, Closeable {
   protected Searcher getSearcher(SortedTable table) throws IOException {
     return table.newSearcher(DEFAULT_SEARCH_BUFFER_SIZE / getRowWidth());
   }
+  
+  
+  /**
+   * Returns a searcher for {@linkplain #getRows(ByteBuffer[]) batched} lookups.
+   */
+  protected Searcher getBatchSearcher(SortedTable table) throws IOException {
+    return table.newSearcher(SortedTable.DEFAULT_BATCH_BUFFER_SIZE / getRowWidth());
+  }
 
 
   /**
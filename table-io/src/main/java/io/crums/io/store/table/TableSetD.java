@@ -62,6 +62,17 @@ public class TableSetD extends TableSet {
   }
   
 
+  @Override
+  public ByteBuffer[] getRows(ByteBuffer[] sortedKeys) throws IOException {
+    ByteBuffer[] rows = super.getRows(sortedKeys);
+    if (hasDc())
+      for (int k = rows.length; k-- > 0; )
+        if (rows[k] != null && deleteCodec.isDeleted(rows[k]))
+          rows[k] = null;
+    return rows;
+  }
+  
+
   @Override
   public TableSetIterator iterator() throws IOException {
     return hasDc() ? new TableSetDIterator(this) : new TableSetIterator(this);
@@ -80,6 +91,14 @@ public class TableSetD extends TableSet {
   }
 
 
+  @Override
+  protected TableSetD newPartition(SortedTable[] views) throws IOException {
+    return views.length == 0 ?
+        new TableSetD(order(), getRowWidth(), deleteCodec) :
+        new TableSetD(views, deleteCodec, false);
+  }
+
+
   /**
    * May be <code>null</code>
    */
@@ -7,16 +7,41 @@ package io.crums.io.store.table;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.crums.io.FileUtils;
 import io.crums.io.block.SortedViewBlock;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.merge.ListMergeSort;
 import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.TaskStack;
 
 /**
+ * Sorts tables. If a table fits in the memory buffer, it's sorted in memory; otherwise,
+ * it's sorted externally:
+ * <ol>
+ * <li>Memory buffer-sized runs of the table are sorted in memory and spilled to
+ * run files (next to the output file).</li>
+ * <li>The run files are then merged, at most {@linkplain #getMaxMergeFanIn() max-merge-fan-in}
+ * runs at a time, using a {@linkplain ListMergeSort}. (If there are more runs than that, then
+ * the merge takes multiple passes.)</li>
+ * </ol>
+ * <p>
+ * The run files are deleted once they're merged. Duplicate rows are preserved.
+ * </p><p>
+ * By default, in-memory sorts (including the runs of an external sort) are
+ * {@linkplain #isParallel() parallel}: the buffer is sorted in segments concurrently
+ * on the common fork/join pool, and the segments are then merged. But if the row order
+ * has a {@linkplain RowOrder#hasPrefixKey() prefix key}, then in-memory sorts are
+ * {@linkplain #isRadix() radix} sorts instead (which are usually faster still).
+ * </p>
  * 
  * @author Babak
  */
@@ -24,9 +49,20 @@ public class TableSorter {
   
   private final static Logger LOG = System.getLogger(TableSorter.class.getName());
   
+  /**
+   * The default maximum number of runs merged in a single pass.
+   */
+  public final static int DEFAULT_MAX_MERGE_FAN_IN = 64;
+
   private final ByteBuffer memoryBuffer;
   
   private final RowOrder order;
+
+  private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+
+  private boolean parallel = true;
+
+  private boolean radix = true;
   
 
   public TableSorter(ByteBuffer memoryBuffer, RowOrder order) throws IOException {
@@ -46,31 +82,218 @@ public class TableSorter {
   }
   
   
+  /**
+   * Returns the maximum number of runs merged in a single pass of an external sort.
+   */
+  public final int getMaxMergeFanIn() {
+    return maxMergeFanIn;
+  }
+
+
+  /**
+   * Sets the maximum number of runs merged in a single pass of an external sort.
+   * Each run being merged costs an open file and a small search buffer.
+   *
+   * @param maxMergeFanIn &ge; 2
+   */
+  public void setMaxMergeFanIn(int maxMergeFanIn) {
+    if (maxMergeFanIn < 2)
+      throw new IllegalArgumentException("maxMergeFanIn: " + maxMergeFanIn);
+    this.maxMergeFanIn = maxMergeFanIn;
+  }
+
+
+  /**
+   * Determines whether in-memory sorts use multiple cores. Defaults to <code>true</code>.
+   * 
+   * @see SortedViewBlock#sortCellsParallel()
+   */
+  public final boolean isParallel() {
+    return parallel;
+  }
+
+
+  /**
+   * Sets whether in-memory sorts use multiple cores. The {@linkplain #order() row order}
+   * must be thread-safe if set to <code>true</code>. (The stock row orders are.)
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+
+  /**
+   * Determines whether in-memory sorts are radix sorts, when the {@linkplain #order() row order}
+   * supports it. Defaults to <code>true</code>.
+   * 
+   * @see SortedViewBlock#sortCellsRadix()
+   */
+  public final boolean isRadix() {
+    return radix;
+  }
+
+
+  /**
+   * Sets whether in-memory sorts are radix sorts, when the {@linkplain #order() row order}
+   * supports it. If <code>false</code>, or if the order doesn't support it, then rows are
+   * comparison sorted ({@linkplain #isParallel() parallel}, or not).
+   */
+  public void setRadix(boolean radix) {
+    this.radix = radix;
+  }
+
+
+  /**
+   * Sorts the given <code>table</code> and writes the sorted rows to the <code>output</code>
+   * file. The output file contains just the rows (no header, no keystone).
+   *
+   * @param table   the table to be sorted (not modified)
+   * @param output  path to the output file (must not exist)
+   */
   public void sort(Table table, File output) throws IOException {
     if (table == null)
       throw new IllegalArgumentException("null table");
     FileUtils.assertDoesntExist(output);
-    final long size = table.getRowCount() * table.getRowWidth();
-    if (size > memoryBuffer.capacity()) {
-      throw new IllegalArgumentException(
-          "table byte size > memory buffer size (" + size +
-          " > " + memoryBuffer.capacity() + ")");
-    }
     if (table.isEmpty())
       throw new IllegalArgumentException(
           "empty table " + table + " with output path " + output);
-    memoryBuffer.clear().limit((int) size);
-    table.read(0, memoryBuffer);
-    memoryBuffer.flip();
-    SortedViewBlock blockSorter = new SortedViewBlock(memoryBuffer.slice(), table.getRowWidth(), order);
+
+    final long size = table.getRowCount() * table.getRowWidth();
+    if (size > memoryBuffer.capacity())
+      externalSort(table, output);
+    else
+      try (
+          @SuppressWarnings("resource")
+          FileChannel out = new FileOutputStream(output).getChannel()) {
+
+        sortRun(table, 0, table.getRowCount(), out);
+      }
+  }
     
     
-    try (
-        @SuppressWarnings("resource")
-        FileChannel out = new FileOutputStream(output).getChannel()) {
+  /**
+   * Sorts the given block of rows in memory and writes them to <code>out</code>.
+   */
+  private void sortRun(Table table, long firstRow, long count, GatheringByteChannel out)
+      throws IOException {
       
-      blockSorter.writeSortedCells(out);
+    final int rowWidth = table.getRowWidth();
+    memoryBuffer.clear().limit((int) (count * rowWidth));
+    table.read(firstRow, memoryBuffer);
+    memoryBuffer.flip();
+
+    if (count == 1) {
+      // (a block must have at least 2 cells)
+      ChannelUtils.writeRemaining(out, memoryBuffer);
+      return;
+    }
+
+    SortedViewBlock blockSorter =
+        new SortedViewBlock(memoryBuffer.slice(), rowWidth, order, false, parallel, radix);
+    blockSorter.writeSortedCells(out);
+  }
+
+
+  private void externalSort(Table table, File output) throws IOException {
+
+    final int rowWidth = table.getRowWidth();
+    final long rowsPerRun = memoryBuffer.capacity() / rowWidth;
+    if (rowsPerRun < 2)
+      throw new IllegalArgumentException(
+          "memory buffer too small for external sort (rowWidth=" + rowWidth + "): " + memoryBuffer);
+
+    final long rowCount = table.getRowCount();
+
+    List<File> runs = new ArrayList<>((int) ((rowCount + rowsPerRun - 1) / rowsPerRun));
+    List<File> merged = null;   // the pass in progress
+    boolean done = false;
+    try {
+
+      for (long firstRow = 0; firstRow < rowCount; firstRow += rowsPerRun) {
+        File run = runFile(output, 0, runs.size());
+        runs.add(run);
+        try (
+            @SuppressWarnings("resource")
+            FileChannel out = new FileOutputStream(run).getChannel()) {
+
+          sortRun(table, firstRow, Math.min(rowsPerRun, rowCount - firstRow), out);
+        }
+      }
+
+      LOG.log(Level.DEBUG, "sorted " + runs.size() + " runs for " + output);
+
+      for (int pass = 1; runs.size() > maxMergeFanIn; ++pass) {
+        merged = new ArrayList<>(runs.size() / maxMergeFanIn + 1);
+        for (int index = 0; index < runs.size(); index += maxMergeFanIn) {
+          List<File> group = runs.subList(index, Math.min(runs.size(), index + maxMergeFanIn));
+          File mergedRun = runFile(output, pass, merged.size());
+          merged.add(mergedRun);
+          mergeRuns(group, mergedRun, rowWidth);
+        }
+        runs = merged;
+        merged = null;
+      }
+
+      mergeRuns(runs, output, rowWidth);
+      done = true;
+
+    } finally {
+      deleteAll(runs);
+      if (merged != null)
+        deleteAll(merged);
+      if (!done && output.exists() && !output.delete())
+        LOG.log(Level.WARNING, "failed to delete partial output " + output);
     }
   }
 
+
+  /**
+   * Merges the given sorted runs into the <code>target</code> file. On return, the
+   * runs are deleted.
+   */
+  private void mergeRuns(List<File> runs, File target, int rowWidth) throws IOException {
+    if (runs.size() == 1) {
+      if (!runs.get(0).renameTo(target))
+        throw new IOException("failed to rename " + runs.get(0) + " to " + target);
+      return;
+    }
+
+    try (TaskStack closer = new TaskStack()) {
+
+      SortedTable[] sources = new SortedTable[runs.size()];
+      for (int index = 0; index < sources.length; ++index) {
+        sources[index] = openRun(runs.get(index), "r", rowWidth);
+        closer.pushClose(sources[index]);
+      }
+
+      SortedTable out = openRun(target, "rw", rowWidth);
+      closer.pushClose(out);
+
+      new ListMergeSort(out, sources).mergeToTarget();
+
+    } finally {
+      deleteAll(runs);
+    }
+  }
+
+
+  @SuppressWarnings("resource")
+  private SortedTable openRun(File file, String mode, int rowWidth) throws IOException {
+    return new SortedTable(new RandomAccessFile(file, mode).getChannel(), rowWidth, order);
+  }
+
+
+  private File runFile(File output, int pass, int index) throws IOException {
+    File run = new File(output.getParentFile(), output.getName() + ".run-" + pass + "-" + index);
+    FileUtils.assertDoesntExist(run);
+    return run;
+  }
+
+
+  private void deleteAll(List<File> files) {
+    for (File file : files)
+      if (file.exists() && !file.delete())
+        LOG.log(Level.WARNING, "failed to delete run file " + file);
+  }
+
 }
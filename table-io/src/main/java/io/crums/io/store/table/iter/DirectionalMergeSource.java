@@ -67,6 +67,20 @@ public class DirectionalMergeSource extends PrecedenceMergeSource {
     return direction.effectiveComp(super.compareRowWithOther(otherRow));
   }
 
+  /**
+   * Galloping is forward only.
+   * 
+   * @throws IllegalStateException if the {@linkplain #getDirection() direction}
+   *         is <code>REVERSE</code>
+   */
+  @Override
+  public long gallop(ByteBuffer key) throws IOException {
+    if (direction == REVERSE)
+      throw new IllegalStateException("gallop in reverse: " + this);
+    return super.gallop(key);
+  }
+
+
   /**
    * The semantics of {@linkplain BaseMergeSource#advanceRow()} and
    * {@linkplain BaseMergeSource#rewindRow()} are reversed iff the
@@ -5,11 +5,11 @@ package io.crums.io.store.table.iter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import io.crums.io.store.table.merge.MergeHeap;
+
 /**
  * A nexus view over multiple <code>RowIterator</code> instances.
  * 
@@ -17,7 +17,10 @@ import java.util.List;
  */
 public class MergeRowIterator extends RowIterator {
   
-  private final List<PrecedenceRowIterator> subs;
+  /**
+   * Sub iterators with a next row, heap-ordered. The top is the one whose next row is returned next.
+   */
+  private final MergeHeap<PrecedenceRowIterator> subs;
   
   private final Direction direction;
   private final int rowWidth;
@@ -31,7 +34,7 @@ public class MergeRowIterator extends RowIterator {
     if (rowOrder == null)
       throw new IllegalArgumentException("null rowOrder");
     
-    this.subs = new ArrayList<>(subs.size());
+    this.subs = new MergeHeap<>(Comparator.naturalOrder(), subs.size());
     this.direction = subs.get(0).getDirection();
     this.rowWidth = subs.get(0).getRowWidth();
     
@@ -43,9 +46,9 @@ public class MergeRowIterator extends RowIterator {
       if (pIter.getRowWidth() != rowWidth)
         throw new IllegalArgumentException(
             "rowWidth mistmatch at [" + i + "]: expected " + rowWidth + " but actual was " + pIter.getRowWidth());
-      this.subs.add(pIter);
+      if (pIter.hasNext())
+        this.subs.add(pIter);
     }
-    Collections.sort(this.subs);
   }
 
 
@@ -54,41 +57,39 @@ public class MergeRowIterator extends RowIterator {
     if (subs.isEmpty())
       return null;
     
-    final PrecedenceRowIterator top = subs.get(0);
+    final PrecedenceRowIterator top = subs.top();
     final ByteBuffer next = top.next();
+    advanced(top);
     
-    if (!top.hasNext()) {
-      subs.remove(0);
-      if (subs.isEmpty())
-        return next;
-    } else if (subs.size() == 1)
-      return next;
-    
-    Collections.sort(subs);
     // skip over the overridden (overwritten at the API level) rows, if any..
-    do {
-      // invariant: subs is sorted
-      PrecedenceRowIterator newTop = subs.get(0);
+    while (!subs.isEmpty()) {
+      // invariant: subs is heap-ordered
+      PrecedenceRowIterator newTop = subs.top();
       
       // compare the about-to-be-returned row with the next row
       // of any sub iterator, and if any match, skip those
       if (top.getRowOrder().compare(next, newTop.peek()) == 0) {
         // skip over the overridden row
         newTop.next();
-        
-        // sort the iterators (unless we're removing the newTop--in which case,
-        // they remain sorted)
-        if (newTop.hasNext())
-          Collections.sort(subs);
-        else
-          subs.remove(0);
+        advanced(newTop);
       } else
         break;
-    
-    } while (!subs.isEmpty());
+    }
     
     return next;
   }
+  
+  
+  /**
+   * Re-positions the given top sub iterator in the heap after it's been advanced,
+   * or if it has no more rows, removes it.
+   */
+  private void advanced(PrecedenceRowIterator top) throws IOException {
+    if (top.hasNext())
+      subs.updateTop();
+    else
+      subs.removeTop();
+  }
 
 
   @Override
@@ -10,12 +10,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import io.crums.io.store.NotSortedException;
 import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.merge.MergeHeap;
 
 /**
  * 
@@ -23,12 +26,27 @@ import io.crums.io.store.table.SortedTable.Searcher;
  */
 public class TableSetIterator extends RowIterator {
   
-  protected final ArrayList<DirectionalMergeSource> activeSources;
+  /**
+   * Unfinished sources. Ordered in reverse, so that the top of the heap is the greatest
+   * source: the one whose row is returned next.
+   */
+  protected final MergeHeap<DirectionalMergeSource> activeSources;
   protected final List<DirectionalMergeSource> sources;
   
   private final int rowWidth;
 
   private Direction direction = FORWARD;
+  
+  /**
+   * The source on a run, if any: its rows before {@linkplain #runEnd} compare less than
+   * every other source's current row, so they're returned without touching the heap.
+   */
+  private DirectionalMergeSource runSource;
+  private long runEnd;
+  /**
+   * The number of consecutive rows returned from the top source (before galloping).
+   */
+  private int wins;
 
 
   public TableSetIterator(TableSet tableSet) throws IOException {
@@ -43,13 +61,29 @@ public class TableSetIterator extends RowIterator {
         all.add(new DirectionalMergeSource(newSearcher(stack, i), i));
       this.sources = Collections.unmodifiableList(all);
     }
-    this.activeSources = new ArrayList<>(stack.size());
+    this.activeSources = new MergeHeap<>(Comparator.reverseOrder(), stack.size());
     this.rowWidth = tableSet.getRowWidth();
+    setReadAhead(DEFAULT_MAX_READ_AHEAD_BYTES, null);
   }
   
 
   private final static int SEARCH_BUFFER_SIZE = 8 * 1024;
   
+  /**
+   * The number of consecutive rows a source must win (be on top for) before its run is
+   * measured by a {@linkplain DirectionalMergeSource#gallop(ByteBuffer) galloping} search.
+   * On interleaved tables, the sources mostly take turns, and the (extra) searches would
+   * not pay.
+   */
+  public final static int MIN_GALLOP = 8;
+  
+  /**
+   * Default maximum read-ahead window size, per table: 1MB.
+   * 
+   * @see #setReadAhead(int, Executor)
+   */
+  public final static int DEFAULT_MAX_READ_AHEAD_BYTES = 1024 * 1024;
+  
   protected Searcher newSearcher(List<SortedTable> stack, int index) throws IOException {
     SortedTable table = stack.get(index);
     int bufferRowCount = (int) Math.min(
@@ -58,6 +92,50 @@ public class TableSetIterator extends RowIterator {
   }
   
   
+  /**
+   * Sets the read-ahead parameters for scans. Once a table's rows are visited sequentially
+   * (past the search buffer), they are read in windows that start at the search buffer's size
+   * and double with each read, up to <code>maxBytes</code> per table. Defaults to
+   * {@linkplain #DEFAULT_MAX_READ_AHEAD_BYTES} with no prefetcher.
+   * 
+   * @param maxBytes
+   *        the maximum window size per table; zero, for no read-ahead
+   * @param prefetcher
+   *        optional (may be <code>null</code>). If provided, the next window of each table
+   *        is read on this executor while the current one is consumed (double buffering)
+   *        
+   * @see io.crums.io.store.table.merge.BaseMergeSource#setReadAhead(int, int, Executor)
+   */
+  public void setReadAhead(int maxBytes, Executor prefetcher) {
+    if (maxBytes < 0)
+      throw new IllegalArgumentException("maxBytes: " + maxBytes);
+    int maxRows = maxBytes / rowWidth;
+    int minRows = Math.max(1, SEARCH_BUFFER_SIZE / rowWidth);
+    for (DirectionalMergeSource source : sources)
+      source.setReadAhead(minRows, maxRows, prefetcher);
+  }
+  
+  
+  /**
+   * Positions the iteration at the beginning of the set: the first row, if
+   * <code>direction</code> is {@linkplain Direction#FORWARD FORWARD}; the last,
+   * if {@linkplain Direction#REVERSE REVERSE}. Used for full scans.
+   */
+  public void init(Direction direction) throws IOException {
+    if (direction == null)
+      throw new IllegalArgumentException("null direction");
+    this.direction = direction;
+    activeSources.clear();
+    runSource = null;
+    wins = 0;
+    for (DirectionalMergeSource source : sources) {
+      source.setDirection(direction);
+      source.setRow(direction == FORWARD ? 0 : source.rowCount() - 1);
+      activeSources.add(source);
+    }
+  }
+  
+  
   public void init(ByteBuffer key, Direction direction) throws IOException {
     if (direction == null)
       throw new IllegalArgumentException("null direction");
@@ -65,12 +143,13 @@ public class TableSetIterator extends RowIterator {
       throw new IllegalArgumentException("key: " + key);
     this.direction = direction;
     activeSources.clear();
+    runSource = null;
+    wins = 0;
     for (DirectionalMergeSource source : sources) {
       source.setDirection(direction);
       if (source.setRow(key))
         activeSources.add(source);
     }
-    Collections.sort(activeSources);
   }
   
 
@@ -108,36 +187,38 @@ public class TableSetIterator extends RowIterator {
   
   protected ByteBuffer nextImpl(ByteBuffer out) throws IOException {
     ByteBuffer next = out;
-    // invariant: sources is sorted and none of its elements is finished
+    // invariant: activeSources is heap-ordered and none of its elements is finished
     if (activeSources.isEmpty())
       return null;
 
-    // the source index
-    int index = activeSources.size() - 1;
-    
-    DirectionalMergeSource top = activeSources.get(index);
+    DirectionalMergeSource top = activeSources.top();
     
     // copy the current top row into *next*
     next.clear();
     top.copyRowInto(next);
     next.flip();
     
+    // if top is on a run, its next row is still less than the other sources' rows:
+    // top stays on top, and overrides nothing
+    if (top == runSource && top.rowNumber() + 1 < runEnd) {
+      top.advanceRow();
+      return next;
+    }
+    runSource = null;
+    
     // advance the row number of the top row, and if finished, discard top
-    if (!top.advanceRow())
-      activeSources.remove(index);
+    advanceTop(top);
     
     // now make sure none of the lower precedence sources is positioned at a
     // row that was overridden by top..
     
-    
-    // work backwards (in order of decreasing source precedence)
-    // and skip over source rows that compare equal. the 1st source's current
-    // row that compares greater than to-be-returned next row, breaks the
-    // iteration (since we then know that all subsequent sources must
-    // also compare greater (by virtue of how MergeSources are ordered)) 
-    while (index-- > 0) {
-      // index >= 0
-      int comp = activeSources.get(index).compareOtherWithRow(next);
+    // the sources are visited in order of decreasing precedence (among those
+    // positioned at equal rows): the 1st source whose current row compares
+    // greater than the to-be-returned next row, breaks the loop (since all
+    // the other sources must then also compare greater)
+    while (!activeSources.isEmpty()) {
+      DirectionalMergeSource source = activeSources.top();
+      int comp = source.compareOtherWithRow(next);
       
       if (comp < 0)
         break;
@@ -145,22 +226,39 @@ public class TableSetIterator extends RowIterator {
       // sanity check
       if (comp > 0)
         // TODO: more detailed logging by consistently overriding toString()
-        throw new NotSortedException("assertion failed at index [" + index + "]. this: " + this);
+        throw new NotSortedException("assertion failed at source " + source + ". this: " + this);
       
       // comp == 0
-      // advance the row number of this source, and if finished, discard it
-      if (!activeSources.get(index).advanceRow())
-        // we're iterating backward, so the following remove
-        // doesn't affect the index position of to-be-visited sources
-        // at the lower indices
-        activeSources.remove(index);
+      advanceTop(source);
     }
-    // maintain the post-condition invariant
-    Collections.sort(activeSources);
+    
+    // if top keeps winning, gallop ahead to the end of its run
+    if (activeSources.size() > 1 && activeSources.top() == top) {
+      if (++wins >= MIN_GALLOP && direction == FORWARD) {
+        wins = 0;
+        runEnd = top.gallop(activeSources.next().row());
+        if (runEnd > top.rowNumber() + 1)
+          runSource = top;
+      }
+    } else
+      wins = 0;
+    
     return next;
     
   }
   
+  
+  /**
+   * Advances the row number of the <code>top</code> source and either re-positions
+   * it in the heap, or if finished, removes it.
+   */
+  private void advanceTop(DirectionalMergeSource top) throws IOException {
+    if (top.advanceRow())
+      activeSources.updateTop();
+    else
+      activeSources.removeTop();
+  }
+  
 
   
   
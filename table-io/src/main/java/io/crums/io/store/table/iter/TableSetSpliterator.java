@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.iter;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.TableSet;
+
+/**
+ * A {@linkplain Spliterator} over the rows of a list of key-disjoint {@linkplain TableSet}s,
+ * in ascending order. It splits on partition boundaries, so each split is scanned by its own
+ * {@linkplain TableSetIterator}s, independently of the others.
+ * 
+ * @see TableSet#partition(int)
+ * @see TableSet#stream(int)
+ */
+public class TableSetSpliterator implements Spliterator<ByteBuffer> {
+  
+  private final List<TableSet> parts;
+  /**
+   * Index of the next (or current) partition.
+   */
+  private int index;
+  /**
+   * Index of the partition past the last covered by this instance.
+   */
+  private final int end;
+  /**
+   * The iterator over the current partition; <code>null</code>, if not started.
+   */
+  private TableSetIterator iter;
+  
+  
+  /**
+   * Creates a new instance.
+   * 
+   * @param parts non-empty list of key-disjoint sets, in ascending key order
+   *              (e.g. from {@linkplain TableSet#partition(int)})
+   */
+  public TableSetSpliterator(List<TableSet> parts) {
+    this(parts, 0, parts.size());
+    if (parts.isEmpty())
+      throw new IllegalArgumentException("empty parts list");
+  }
+  
+  
+  private TableSetSpliterator(List<TableSet> parts, int index, int end) {
+    this.parts = parts;
+    this.index = index;
+    this.end = end;
+  }
+  
+
+  @Override
+  public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+    try {
+      while (index < end) {
+        if (iter == null) {
+          iter = parts.get(index).iterator();
+          iter.init(Direction.FORWARD);
+        }
+        ByteBuffer row = iter.next();
+        if (row != null) {
+          action.accept(row);
+          return true;
+        }
+        iter = null;
+        ++index;
+      }
+      return false;
+    } catch (IOException iox) {
+      throw new UncheckedIOException("on partition " + index + ": " + parts.get(index), iox);
+    }
+  }
+  
+
+  /**
+   * Splits off the first half of the remaining partitions, unless there is only one,
+   * or the scan has already started.
+   */
+  @Override
+  public Spliterator<ByteBuffer> trySplit() {
+    if (iter != null || end - index < 2)
+      return null;
+    int mid = (index + end) >>> 1;
+    TableSetSpliterator prefix = new TableSetSpliterator(parts, index, mid);
+    index = mid;
+    return prefix;
+  }
+  
+
+  /**
+   * Returns the total row count of the remaining partitions' tables: an upper bound,
+   * since rows in lower tables may be overridden.
+   */
+  @Override
+  public long estimateSize() {
+    long size = 0;
+    try {
+      for (int i = index; i < end; ++i)
+        for (SortedTable table : parts.get(i).tables())
+          size += table.getRowCount();
+    } catch (IOException iox) {
+      throw new UncheckedIOException("on estimating size: " + this, iox);
+    }
+    return size;
+  }
+  
+
+  @Override
+  public int characteristics() {
+    return ORDERED | SORTED | DISTINCT | NONNULL;
+  }
+  
+
+  @Override
+  public Comparator<? super ByteBuffer> getComparator() {
+    return parts.get(0).order();
+  }
+
+}
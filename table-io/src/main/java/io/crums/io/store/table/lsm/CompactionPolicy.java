@@ -0,0 +1,28 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import io.crums.io.store.table.SortedTable;
+
+/**
+ * Picks the tables to merge in a {@linkplain Compactor compaction}. Since tables in a
+ * {@linkplain io.crums.io.store.table.TableSet TableSet} override the tables below them,
+ * only a contiguous range of the stack may be merged.
+ */
+public interface CompactionPolicy {
+
+  /**
+   * Selects a contiguous range of tables to merge.
+   *
+   * @param tables the stack of tables, in increasing order of precedence (bottom to top)
+   * @return <code>{ fromIndex, toIndex }</code> (exclusive), spanning at least 2 tables;
+   *         or <code>null</code>, if nothing should be merged
+   */
+  int[] selectRange(List<SortedTable> tables) throws IOException;
+
+}
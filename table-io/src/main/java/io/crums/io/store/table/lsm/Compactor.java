@@ -0,0 +1,356 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.TableSetD;
+import io.crums.io.store.table.del.DeleteCodec;
+import io.crums.io.store.table.merge.SetMergeSort;
+import io.crums.io.store.table.merge.SetMergeSortD;
+
+/**
+ * Maintains a {@linkplain TableSet} by compacting it in the background. New tables are
+ * {@linkplain #append(SortedTable) append}ed to the top of the stack; whenever the
+ * {@linkplain CompactionPolicy policy} picks a range of tables to merge, the range is merged
+ * on the executor (using a {@linkplain SetMergeSort}, or a {@linkplain SetMergeSortD} if the
+ * set is a {@linkplain TableSetD} with a delete codec), and the resulting table atomically
+ * replaces the range in a new {@linkplain #getTableSet() table set}. Tables appended while a
+ * merge is in progress are preserved.
+ * <p>
+ * At most one merge runs at a time. Readers should fetch the current set via
+ * {@linkplain #getTableSet()} for each lookup (or batch of lookups). Since readers may still be
+ * using a previous set, the merged (retired) tables are not closed by this class: they are handed
+ * to the retirement callback, if any, instead.
+ * </p>
+ *
+ * @see SizeTieredPolicy
+ */
+public class Compactor implements Closeable {
+
+  private final static Logger LOG = System.getLogger(Compactor.class.getName());
+
+  private final Object lock = new Object();
+
+  private final CompactionPolicy policy;
+  private final TableFactory factory;
+  private final Executor executor;
+  private final Consumer<List<SortedTable>> retirementCallback;
+
+  private volatile TableSet tableSet;
+
+  private double bloomFilterFpp;
+  private boolean autoCompact = true;
+
+  /**
+   * In-progress compaction, if any. Guarded by <code>lock</code>.
+   */
+  private CompletableFuture<Boolean> pending;
+  private boolean closed;
+
+  private long compactionCount;
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param tableSet            the initial table set
+   * @param policy              picks the tables to merge
+   * @param factory             creates the merge target tables
+   * @param executor            runs the merges
+   * @param retirementCallback  optional (may be <code>null</code>). Invoked (on the executor)
+   *                            with the tables retired by each compaction, once they've been
+   *                            swapped out
+   */
+  public Compactor(
+      TableSet tableSet, CompactionPolicy policy, TableFactory factory, Executor executor,
+      Consumer<List<SortedTable>> retirementCallback) {
+
+    this.tableSet = tableSet;
+    this.policy = policy;
+    this.factory = factory;
+    this.executor = executor;
+    this.retirementCallback = retirementCallback;
+
+    if (tableSet == null)
+      throw new IllegalArgumentException("null tableSet");
+    if (policy == null)
+      throw new IllegalArgumentException("null policy");
+    if (factory == null)
+      throw new IllegalArgumentException("null factory");
+    if (executor == null)
+      throw new IllegalArgumentException("null executor");
+  }
+
+
+  /**
+   * Returns the current table set.
+   */
+  public TableSet getTableSet() {
+    return tableSet;
+  }
+
+
+  /**
+   * Returns the number of completed compactions.
+   */
+  public long getCompactionCount() {
+    synchronized (lock) {
+      return compactionCount;
+    }
+  }
+
+
+  /**
+   * Sets the false positive probability of the Bloom filters built for merged tables;
+   * zero (the default) for none.
+   *
+   * @see io.crums.io.store.table.merge.BaseMergeSort#setBloomFilterFpp(double)
+   */
+  public void setBloomFilterFpp(double fpp) {
+    if (fpp != 0 && !(fpp > 0 && fpp < 1))
+      throw new IllegalArgumentException("fpp: " + fpp);
+    synchronized (lock) {
+      this.bloomFilterFpp = fpp;
+    }
+  }
+
+
+  /**
+   * Sets whether {@linkplain #append(SortedTable) appends} trigger compactions.
+   * Defaults to <code>true</code>.
+   */
+  public void setAutoCompact(boolean autoCompact) {
+    synchronized (lock) {
+      this.autoCompact = autoCompact;
+    }
+  }
+
+
+  /**
+   * Appends the given table to the top of the stack and, if auto-compacting,
+   * schedules a compaction if the policy calls for one.
+   *
+   * @return the new table set
+   */
+  public TableSet append(SortedTable table) throws IOException {
+    TableSet set;
+    boolean compact;
+    synchronized (lock) {
+      checkOpen();
+      set = tableSet.append(table);
+      tableSet = set;
+      compact = autoCompact;
+    }
+    if (compact)
+      compact();
+    return set;
+  }
+
+
+  /**
+   * Schedules a compaction, if the policy calls for one. If a compaction is already
+   * in progress, that compaction's future is returned (on completion, it schedules
+   * another round if the policy calls for it).
+   *
+   * @return a future that completes with <code>true</code> if a merge was swapped in;
+   *         <code>false</code> if there was nothing to merge
+   */
+  public CompletableFuture<Boolean> compact() {
+    synchronized (lock) {
+      if (pending != null)
+        return pending;
+      if (closed)
+        return CompletableFuture.completedFuture(false);
+
+      int[] range;
+      try {
+        range = checkRange(policy.selectRange(tableSet.tables()));
+      } catch (IOException iox) {
+        return CompletableFuture.failedFuture(iox);
+      }
+      if (range == null)
+        return CompletableFuture.completedFuture(false);
+
+      final TableSet snapshot = tableSet;
+      final double fpp = bloomFilterFpp;
+      CompletableFuture<Boolean> future = new CompletableFuture<>();
+      pending = future;
+      try {
+        executor.execute(() -> runCompaction(snapshot, range[0], range[1], fpp, future));
+      } catch (RuntimeException rx) {
+        pending = null;
+        future.completeExceptionally(rx);
+      }
+      return future;
+    }
+  }
+
+
+  private int[] checkRange(int[] range) throws IOException {
+    if (range == null)
+      return null;
+    if (range.length != 2 || range[0] < 0 || range[1] > tableSet.tables().size() ||
+        range[1] - range[0] < 2)
+      throw new IllegalStateException(
+          "policy " + policy + " selected illegal range " + Arrays.toString(range) +
+          " of " + tableSet.tables().size() + " tables");
+    return range;
+  }
+
+
+  private void runCompaction(
+      TableSet snapshot, int from, int to, double fpp, CompletableFuture<Boolean> future) {
+
+    List<SortedTable> retired = null;
+    Throwable error = null;
+    try {
+      retired = mergeAndSwap(snapshot, from, to, fpp);
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "compaction of tables [" + from + ", " + to + ") failed: " + t, t);
+      error = t;
+    }
+
+    boolean again;
+    synchronized (lock) {
+      pending = null;
+      if (retired != null)
+        ++compactionCount;
+      again = retired != null && autoCompact && !closed;
+    }
+
+    if (retired != null && retirementCallback != null) {
+      try {
+        retirementCallback.accept(retired);
+      } catch (RuntimeException rx) {
+        LOG.log(Level.WARNING, "retirement callback failed: " + rx, rx);
+      }
+    }
+
+    if (error != null)
+      future.completeExceptionally(error);
+    else
+      future.complete(retired != null);
+
+    if (again)
+      compact();
+  }
+
+
+  /**
+   * Merges the tables in the given range of the snapshot and swaps in the result.
+   *
+   * @return the retired tables, or <code>null</code> if closed in the meantime
+   */
+  private List<SortedTable> mergeAndSwap(TableSet snapshot, int from, int to, double fpp)
+      throws IOException {
+
+    List<SortedTable> tables = snapshot.tables();
+    SortedTable[] sources = tables.subList(from, to).toArray(new SortedTable[to - from]);
+
+    DeleteCodec deleteCodec =
+        snapshot instanceof TableSetD ? ((TableSetD) snapshot).getDeleteCodec() : null;
+
+    SortedTable target = factory.newTable(snapshot.getRowWidth(), snapshot.order());
+    try {
+      SetMergeSort merge;
+      if (deleteCodec == null)
+        merge = new SetMergeSort(target, sources);
+      else {
+        // deletes need only be preserved if they may override rows below the range
+        TableSet backSet = from == 0 ?
+            null :
+            new TableSetD(tables.subList(0, from).toArray(new SortedTable[from]), deleteCodec);
+        merge = new SetMergeSortD(target, sources, deleteCodec, backSet);
+      }
+      if (fpp != 0)
+        merge.setBloomFilterFpp(fpp);
+      merge.mergeToTarget();
+
+      synchronized (lock) {
+        if (closed) {
+          factory.discard(target);
+          return null;
+        }
+        tableSet = swap(tableSet, from, to, sources, target, deleteCodec);
+      }
+    } catch (IOException | RuntimeException x) {
+      factory.discard(target);
+      throw x;
+    }
+
+    LOG.log(Level.DEBUG, "merged tables [" + from + ", " + to + ") into " + target);
+    return List.of(sources);
+  }
+
+
+  /**
+   * Returns a new table set with the given range replaced by the <code>target</code>.
+   * Tables appended to the current set since the snapshot are preserved.
+   */
+  private TableSet swap(
+      TableSet current, int from, int to, SortedTable[] sources, SortedTable target,
+      DeleteCodec deleteCodec) throws IOException {
+
+    List<SortedTable> tables = current.tables();
+    for (int i = from; i < to; ++i)
+      if (tables.get(i) != sources[i - from])
+        throw new IllegalStateException(
+            "table set modified concurrently at index " + i + ": " + current);
+
+    ArrayList<SortedTable> swapped = new ArrayList<>(tables.size() - (to - from) + 1);
+    swapped.addAll(tables.subList(0, from));
+    if (target.getRowCount() != 0)
+      swapped.add(target);
+    else
+      factory.discard(target);
+    swapped.addAll(tables.subList(to, tables.size()));
+
+    final boolean d = current instanceof TableSetD;
+    if (swapped.isEmpty())
+      return d ?
+          new TableSetD(current.order(), current.getRowWidth(), deleteCodec) :
+          new TableSet(current.order(), current.getRowWidth());
+
+    SortedTable[] array = swapped.toArray(new SortedTable[swapped.size()]);
+    return d ? new TableSetD(array, deleteCodec) : new TableSet(array);
+  }
+
+
+  private void checkOpen() {
+    if (closed)
+      throw new IllegalStateException("closed: " + this);
+  }
+
+
+  /**
+   * Stops scheduling compactions. A merge in progress is allowed to finish, but its result
+   * is discarded. The current table set is <em>not</em> closed.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+    }
+  }
+
+
+  @Override
+  public String toString() {
+    return "[Compactor: " + policy + ", tables=" + tableSet.tables().size() + "]";
+  }
+
+}
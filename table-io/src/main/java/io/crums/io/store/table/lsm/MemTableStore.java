@@ -0,0 +1,427 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.crums.io.FileUtils;
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.Table;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Write-optimized front end to a {@linkplain Compactor}-managed {@linkplain TableSet}.
+ * Rows are {@linkplain #put(ByteBuffer) put} into a concurrent, in-memory memtable after
+ * first being appended to a write-ahead log (WAL). The WAL is a {@linkplain Table} of the
+ * same fixed-width rows, so each put costs an append (forced to storage on {@linkplain #sync()}). When the memtable fills up,
+ * it's frozen (still readable) and a new memtable and WAL take its place; the frozen memtable
+ * is then flushed to a new {@linkplain SortedTable} (created by the {@linkplain TableFactory}),
+ * which is {@linkplain Compactor#append(SortedTable) appended} to the table set. Only then is
+ * its WAL deleted. If a flush fails, the frozen memtable stays readable and its WAL is kept
+ * (so its rows are replayed on reopen). Later memtables are then not flushed either (a table
+ * flushed after it would rank above it, though older): they too stay frozen, until the next
+ * {@linkplain #flush()} retries them, oldest first.
+ * <p>
+ * On construction, any WAL files left in the WAL directory (e.g. after a crash) are replayed
+ * into the memtable, in order. (Keeping track of the flushed tables themselves, e.g. in a
+ * manifest, is the responsibility of the table factory / caller: a WAL is deleted once its
+ * table has been appended.)
+ * </p>
+ * <h2>Lookups</h2>
+ * <p>
+ * {@linkplain #getRow(ByteBuffer)} consults the memtable, then the frozen memtables (newest
+ * first), and finally the table set.
+ * </p>
+ */
+public class MemTableStore implements Closeable {
+
+  private final static Logger LOG = System.getLogger(MemTableStore.class.getName());
+
+  /**
+   * WAL file name prefix. Files are named {@code wal-<seq>}.
+   */
+  public final static String WAL_PREFIX = "wal-";
+
+  public final static int DEFAULT_MAX_MEMTABLE_ROWS = 64 * 1024;
+
+  /**
+   * Maximum number of rows written per gathering write on flush.
+   */
+  private final static int FLUSH_BATCH_ROWS = 1024;
+
+
+  /**
+   * A memtable and the WAL files that back it.
+   */
+  private static class MemTable {
+
+    final ConcurrentSkipListMap<ByteBuffer, ByteBuffer> rows;
+    final List<File> walFiles = new ArrayList<>();
+    final AtomicLong size = new AtomicLong();
+
+    MemTable(RowOrder order) {
+      rows = new ConcurrentSkipListMap<>(order);
+    }
+
+    void put(ByteBuffer row) {
+      if (rows.put(row, row) == null)
+        size.incrementAndGet();
+    }
+
+    ByteBuffer get(ByteBuffer key) {
+      ByteBuffer row = rows.get(key);
+      return row == null ? null : row.asReadOnlyBuffer();
+    }
+  }
+
+
+  private final Object writeLock = new Object();
+
+  private final File walDir;
+  private final Compactor compactor;
+  private final TableFactory factory;
+  private final Executor flushExecutor;
+  private final int maxMemRows;
+  private final int rowWidth;
+  private final RowOrder order;
+
+  private volatile MemTable memTable;
+  private Table wal;
+  private long nextWalSeq;
+
+  /**
+   * Frozen memtables not yet flushed, newest first. Copy-on-write.
+   */
+  private volatile List<MemTable> frozen = Collections.emptyList();
+
+  /**
+   * Tail of the chain of flushes: flushes are appended to the table set in order.
+   */
+  private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+
+  /**
+   * The most recent flush failure, if any. Set, it stops further flushes until
+   * the next {@linkplain #flush()}.
+   */
+  private volatile Throwable flushFailure;
+
+  private boolean closed;
+
+
+  /**
+   * Creates a new instance, replaying any existing WAL files in <code>walDir</code>.
+   *
+   * @param walDir        the directory WAL files are kept in (created if it doesn't exist)
+   * @param compactor     manages the table set flushed tables are appended to
+   * @param factory       creates the flushed tables
+   * @param flushExecutor runs the flushes
+   * @param maxMemRows    the number of rows in a memtable that triggers a flush (&ge; 1)
+   */
+  public MemTableStore(
+      File walDir, Compactor compactor, TableFactory factory, Executor flushExecutor,
+      int maxMemRows) throws IOException {
+
+    this.walDir = walDir;
+    this.compactor = compactor;
+    this.factory = factory;
+    this.flushExecutor = flushExecutor;
+    this.maxMemRows = maxMemRows;
+
+    if (compactor == null)
+      throw new IllegalArgumentException("null compactor");
+    if (factory == null)
+      throw new IllegalArgumentException("null factory");
+    if (flushExecutor == null)
+      throw new IllegalArgumentException("null flushExecutor");
+    if (maxMemRows < 1)
+      throw new IllegalArgumentException("maxMemRows: " + maxMemRows);
+
+    TableSet set = compactor.getTableSet();
+    this.rowWidth = set.getRowWidth();
+    this.order = set.order();
+
+    FileUtils.ensureDir(walDir);
+    this.memTable = new MemTable(order);
+    replay();
+    openNewWal();
+  }
+
+
+  private void replay() throws IOException {
+    File[] walFiles = walDir.listFiles(
+        (dir, name) -> name.startsWith(WAL_PREFIX) && walSeq(name) >= 0);
+    Arrays.sort(walFiles, (a, b) -> Long.compare(walSeq(a.getName()), walSeq(b.getName())));
+
+    ByteBuffer buffer = ByteBuffer.allocate(FLUSH_BATCH_ROWS * rowWidth);
+    for (File walFile : walFiles) {
+      try (Table log = Table.createInstance(walFile, rowWidth, true)) {
+        final long count = log.getRowCount();
+        for (long row = 0; row < count; ) {
+          int batch = (int) Math.min(FLUSH_BATCH_ROWS, count - row);
+          buffer.clear().limit(batch * rowWidth);
+          log.read(row, buffer);
+          for (int index = 0; index < batch; ++index)
+            memTable.put(copy(buffer.slice(index * rowWidth, rowWidth)));
+          row += batch;
+        }
+        LOG.log(Level.INFO, "replayed " + count + " rows from " + walFile);
+      }
+      memTable.walFiles.add(walFile);
+      nextWalSeq = Math.max(nextWalSeq, walSeq(walFile.getName()) + 1);
+    }
+  }
+
+
+  private static long walSeq(String name) {
+    try {
+      return Long.parseLong(name.substring(WAL_PREFIX.length()));
+    } catch (NumberFormatException nfx) {
+      return -1;
+    }
+  }
+
+
+  private void openNewWal() throws IOException {
+    File walFile = new File(walDir, WAL_PREFIX + nextWalSeq++);
+    FileUtils.assertDoesntExist(walFile);
+    wal = Table.createInstance(walFile, rowWidth);
+    memTable.walFiles.add(walFile);
+  }
+
+
+  private ByteBuffer copy(ByteBuffer row) {
+    ByteBuffer copy = ByteBuffer.allocate(rowWidth);
+    copy.put(row.duplicate()).flip();
+    return copy;
+  }
+
+
+  public final int getRowWidth() {
+    return rowWidth;
+  }
+
+
+  public final RowOrder order() {
+    return order;
+  }
+
+
+  /**
+   * Puts the given row. On return, the row is written to the WAL, but not necessarily
+   * forced to storage: see {@linkplain #sync()}. If the memtable is then full, a flush is
+   * scheduled.
+   *
+   * @param row the row's remaining bytes (not modified)
+   */
+  public void put(ByteBuffer row) throws IOException {
+    if (row.remaining() != rowWidth)
+      throw new IllegalArgumentException(
+          "row does not contain required remaining bytes (rowWidth=" + rowWidth + "): " + row);
+
+    ByteBuffer copy = copy(row);
+    synchronized (writeLock) {
+      checkOpen();
+      wal.append(copy.duplicate());
+      memTable.put(copy);
+      if (memTable.size.get() >= maxMemRows)
+        rotate();
+    }
+  }
+
+
+  /**
+   * Forces the rows put so far to storage.
+   */
+  public void sync() throws IOException {
+    synchronized (writeLock) {
+      checkOpen();
+      wal.flush();
+    }
+  }
+
+
+  /**
+   * Returns the row with the given key, if found; <code>null</code>, o.w.
+   */
+  public ByteBuffer getRow(ByteBuffer key) throws IOException {
+    // read the memtable before the frozen list: if the memtable is frozen in between,
+    // it's then in the list. (Likewise, a frozen memtable is only removed from the list
+    // after its table is appended to the table set, which is read last.)
+    ByteBuffer row = memTable.get(key);
+    if (row != null)
+      return row;
+    for (MemTable table : frozen) {
+      row = table.get(key);
+      if (row != null)
+        return row;
+    }
+    return compactor.getTableSet().getRow(key);
+  }
+
+
+  /**
+   * Returns the number of rows in the (unfrozen) memtable.
+   */
+  public long getMemTableSize() {
+    return memTable.size.get();
+  }
+
+
+  /**
+   * Freezes the memtable (if not empty) and schedules it to be flushed. If a previous
+   * flush failed, the memtables left frozen are first retried, oldest first.
+   *
+   * @return a future that completes when all the memtables frozen so far are flushed;
+   *         exceptionally, if any flush has failed
+   * @see #getFlushFailure()
+   */
+  public CompletableFuture<Void> flush() throws IOException {
+    synchronized (writeLock) {
+      checkOpen();
+      if (flushFailure != null) {
+        lastFlush = lastFlush.handle((none, x) -> {
+          flushFailure = null;
+          return none;
+        });
+        for (int count = frozen.size(); count-- > 0; )
+          scheduleFlush();
+      }
+      if (memTable.size.get() != 0)
+        rotate();
+      return lastFlush.thenRun(() -> {
+        Throwable failure = flushFailure;
+        if (failure != null)
+          throw new CompletionException("memtable flush failed: " + failure.getMessage(), failure);
+      });
+    }
+  }
+
+
+  /**
+   * Returns the most recent flush failure; <code>null</code>, if none.
+   */
+  public Throwable getFlushFailure() {
+    return flushFailure;
+  }
+
+
+  /**
+   * Freezes the current memtable, starts a new one, and schedules the flush.
+   * Invoked under the write lock.
+   */
+  private void rotate() throws IOException {
+    MemTable full = memTable;
+    wal.close();
+    wal = null;
+
+    List<MemTable> newFrozen = new ArrayList<>(frozen.size() + 1);
+    newFrozen.add(full);
+    newFrozen.addAll(frozen);
+    frozen = Collections.unmodifiableList(newFrozen);
+
+    memTable = new MemTable(order);
+    openNewWal();
+    scheduleFlush();
+  }
+
+
+  /**
+   * Chains a flush of the oldest frozen memtable. Invoked under the write lock.
+   */
+  private void scheduleFlush() {
+    lastFlush = lastFlush
+        .handle((none, x) -> {
+          if (x != null)
+            flushFailure = x;
+          return none;
+        })
+        .thenRunAsync(this::flushOldest, flushExecutor);
+  }
+
+
+  /**
+   * Flushes the oldest frozen memtable, if any, unless a previous flush failed. Flushes
+   * run one at a time, in the order they're chained.
+   */
+  private void flushOldest() {
+    List<MemTable> snapshot = frozen;
+    if (flushFailure != null || snapshot.isEmpty())
+      return;
+    final MemTable full = snapshot.get(snapshot.size() - 1);
+    try {
+      SortedTable table = factory.newTable(rowWidth, order);
+      try {
+        ByteBuffer[] batch = new ByteBuffer[FLUSH_BATCH_ROWS];
+        int count = 0;
+        for (ByteBuffer row : full.rows.values()) {
+          batch[count++] = row.duplicate();
+          if (count == batch.length) {
+            table.append(batch);
+            count = 0;
+          }
+        }
+        if (count != 0)
+          table.append(Arrays.copyOf(batch, count));
+        table.flush();
+      } catch (IOException | RuntimeException x) {
+        factory.discard(table);
+        throw x;
+      }
+
+      compactor.append(table);
+
+      synchronized (writeLock) {
+        List<MemTable> newFrozen = new ArrayList<>(frozen);
+        newFrozen.remove(full);
+        frozen = Collections.unmodifiableList(newFrozen);
+      }
+      for (File walFile : full.walFiles)
+        if (!walFile.delete())
+          LOG.log(Level.WARNING, "failed to delete flushed WAL " + walFile);
+
+    } catch (IOException | RuntimeException x) {
+      LOG.log(Level.ERROR, "failed to flush memtable (WAL " + full.walFiles + "): " + x, x);
+      flushFailure = x;
+    }
+  }
+
+
+  private void checkOpen() {
+    if (closed)
+      throw new IllegalStateException("closed: " + this);
+  }
+
+
+  /**
+   * Closes the current WAL. Frozen memtables already scheduled are still flushed; the rows
+   * in the current memtable are recovered from its WAL the next time the store is opened.
+   * Neither the compactor nor its table set is closed.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (writeLock) {
+      if (closed)
+        return;
+      closed = true;
+      wal.close();
+    }
+  }
+
+}
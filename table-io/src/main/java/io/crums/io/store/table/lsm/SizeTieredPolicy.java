@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import io.crums.io.store.table.SortedTable;
+
+/**
+ * Size-tiered compaction policy. Starting from the top of the stack, a run of tables is
+ * grown downward as long as the next table is no larger than <em>sizeRatio</em> times the
+ * combined size of the run. The run is merged once it spans {@linkplain #getMinMergeCount()
+ * minMergeCount} tables (or if the stack grows beyond {@linkplain #getMaxTableCount()
+ * maxTableCount} tables). This keeps table sizes roughly geometric down the stack, and so the
+ * number of tables (the read amplification) logarithmic in the total number of rows.
+ */
+public class SizeTieredPolicy implements CompactionPolicy {
+
+  public final static int DEFAULT_MIN_MERGE_COUNT = 4;
+  public final static int DEFAULT_MAX_MERGE_COUNT = 32;
+  public final static int DEFAULT_MAX_TABLE_COUNT = 24;
+  public final static double DEFAULT_SIZE_RATIO = 1.5;
+
+  private final int minMergeCount;
+  private final int maxMergeCount;
+  private final int maxTableCount;
+  private final double sizeRatio;
+
+
+  /**
+   * Creates an instance with default settings.
+   */
+  public SizeTieredPolicy() {
+    this(DEFAULT_MIN_MERGE_COUNT, DEFAULT_MAX_MERGE_COUNT, DEFAULT_MAX_TABLE_COUNT, DEFAULT_SIZE_RATIO);
+  }
+
+
+  /**
+   * @param minMergeCount the minimum number of tables in a merge (&ge; 2)
+   * @param maxMergeCount the maximum number of tables in a merge (&ge; <code>minMergeCount</code>)
+   * @param maxTableCount the number of tables beyond which the top tables are merged
+   *                      regardless of their size (&ge; <code>minMergeCount</code>)
+   * @param sizeRatio     the maximum ratio of the next table's size to the combined size of
+   *                      the run above it (&gt; 0)
+   */
+  public SizeTieredPolicy(int minMergeCount, int maxMergeCount, int maxTableCount, double sizeRatio) {
+    this.minMergeCount = minMergeCount;
+    this.maxMergeCount = maxMergeCount;
+    this.maxTableCount = maxTableCount;
+    this.sizeRatio = sizeRatio;
+
+    if (minMergeCount < 2)
+      throw new IllegalArgumentException("minMergeCount: " + minMergeCount);
+    if (maxMergeCount < minMergeCount)
+      throw new IllegalArgumentException(
+          "maxMergeCount (" + maxMergeCount + ") < minMergeCount (" + minMergeCount + ")");
+    if (maxTableCount < minMergeCount)
+      throw new IllegalArgumentException(
+          "maxTableCount (" + maxTableCount + ") < minMergeCount (" + minMergeCount + ")");
+    if (!(sizeRatio > 0))
+      throw new IllegalArgumentException("sizeRatio: " + sizeRatio);
+  }
+
+
+  @Override
+  public int[] selectRange(List<SortedTable> tables) throws IOException {
+    final int count = tables.size();
+    if (count < minMergeCount)
+      return null;
+
+    final int top = count - 1;
+    long runSize = tables.get(top).getRowCount();
+    int from = top;
+    while (from > 0 && top + 1 - from < maxMergeCount) {
+      long next = tables.get(from - 1).getRowCount();
+      if (next > sizeRatio * runSize)
+        break;
+      runSize += next;
+      --from;
+    }
+
+    int runLength = count - from;
+    if (runLength >= minMergeCount)
+      return new int[] { from, count };
+
+    if (count > maxTableCount)
+      return new int[] { Math.max(0, count - Math.max(runLength, minMergeCount)), count };
+
+    return null;
+  }
+
+
+  public final int getMinMergeCount() {
+    return minMergeCount;
+  }
+
+
+  public final int getMaxMergeCount() {
+    return maxMergeCount;
+  }
+
+
+  public final int getMaxTableCount() {
+    return maxTableCount;
+  }
+
+
+  public final double getSizeRatio() {
+    return sizeRatio;
+  }
+
+
+  @Override
+  public String toString() {
+    return
+        "[SizeTieredPolicy: minMerge=" + minMergeCount + ", maxMerge=" + maxMergeCount +
+        ", maxTables=" + maxTableCount + ", ratio=" + sizeRatio + "]";
+  }
+
+}
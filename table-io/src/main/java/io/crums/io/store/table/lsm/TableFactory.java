@@ -0,0 +1,37 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import java.io.IOException;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * Creates the new (empty) tables written to by compactions and flushes.
+ * Typically each new table is backed by a new file.
+ *
+ * @see Compactor
+ */
+public interface TableFactory {
+
+  /**
+   * Creates and returns a new, empty table.
+   *
+   * @param rowWidth  the row width
+   * @param order     the row order
+   */
+  SortedTable newTable(int rowWidth, RowOrder order) throws IOException;
+
+
+  /**
+   * Discards a table created by this factory that was never put into service
+   * (e.g. the target of a failed merge). The default implementation just closes it.
+   */
+  default void discard(SortedTable table) throws IOException {
+    table.close();
+  }
+
+}
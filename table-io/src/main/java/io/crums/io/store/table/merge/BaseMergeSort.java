@@ -5,8 +5,9 @@ package io.crums.io.store.table.merge;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 
+import io.crums.io.store.table.BloomFilter;
 import io.crums.io.store.table.SortedTable;
 
 /**
@@ -26,9 +27,12 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
   protected final SortedTable target;
   
   /**
-   * Sorted list of merge sources.
+   * Merge sources ordered in a heap. Since merge sources are ordered in reverse
+   * (see {@linkplain BaseMergeSource}), the heap's order is the reverse of theirs:
+   * its {@linkplain MergeHeap#top() top} is the greatest merge source (the one whose
+   * row is written next), and its {@linkplain MergeHeap#next() next}, the next greatest.
    */
-  protected final ArrayList<M> sources;
+  protected final MergeHeap<M> sources;
   /**
    * For bookkeeping only. Unused. Once the entire contents of a
    * source has been written to the target, the source is placed
@@ -41,6 +45,10 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
   
   private boolean abort;
   
+  private double bloomFilterFpp;
+  
+  private long runCount;
+  
   
   public BaseMergeSort(
       SortedTable target, SortedTable[] sources, int searchBufferRowsPerTable)
@@ -62,7 +70,7 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
     if (sources.length < 2)
       throw new IllegalArgumentException("too few tables in array: " + sources.length);
     
-    this.sources = new ArrayList<>(sources.length);
+    this.sources = new MergeHeap<>(Comparator.reverseOrder(), sources.length);
     for (int i = 0; i < sources.length; ++i) {
       if (target.getRowWidth() != sources[i].getRowWidth())
         throw new IllegalArgumentException(
@@ -78,7 +86,6 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
       this.sources.add(mergeSource);
     }
 
-    Collections.sort(this.sources);
     finishedSources = new ArrayList<>(sources.length);
   }
   
@@ -112,6 +119,30 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
   }
 
 
+  /**
+   * Sets the false positive probability of the {@linkplain BloomFilter} built for the
+   * target once the merge completes. The filter is built by scanning the target,
+   * and is {@linkplain SortedTable#setBloomFilter(BloomFilter) set} on it; the caller
+   * may then {@linkplain BloomFilter#save(java.io.File) save} it beside the target.
+   * 
+   * @param fpp between 0 and 1 (exclusive); or zero, for no filter (the default)
+   */
+  public void setBloomFilterFpp(double fpp) {
+    if (fpp != 0 && !(fpp > 0 && fpp < 1))
+      throw new IllegalArgumentException("fpp: " + fpp);
+    this.bloomFilterFpp = fpp;
+  }
+  
+  
+  /**
+   * Returns the false positive probability of the target's Bloom filter; zero, if
+   * none is built.
+   */
+  public final double getBloomFilterFpp() {
+    return bloomFilterFpp;
+  }
+
+
   public final SortedTable getTarget() {
     return target;
   }
@@ -167,34 +198,60 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
     }
     
     while (sources.size() > 1 && !abort) {
-      // assumed invariant: sources are sorted
+      // assumed invariant: sources are heap-ordered
       processTop();
     }
     
     if (!abort && !sources.isEmpty()) {
-      M last = sources.get(0);
-      target.appendRows(
-          last.table(), last.rowNumber(), last.rowCount() - last.rowNumber());
+      M last = sources.top();
+      copyRun(last, last.rowCount() - last.rowNumber());
     }
     
+    if (!abort && bloomFilterFpp != 0)
+      target.setBloomFilter(BloomFilter.build(target, bloomFilterFpp));
+    
     endTime = System.currentTimeMillis();
   }
   
   
   /**
-   * Processes the top of the <code>MergeSource</code> stack. If any of the merge
+   * Appends the run of <code>count</code> rows starting at the given <code>source</code>'s
+   * current row to the target, in a single block transfer (see
+   * {@linkplain SortedTable#appendRows(io.crums.io.store.table.Table, long, long) appendRows}):
+   * the rows are not staged through the source's search buffer. The source's row number is
+   * not advanced.
+   */
+  protected void copyRun(M source, long count) throws IOException {
+    target.appendRows(source.table(), source.rowNumber(), count);
+    ++runCount;
+  }
+  
+  
+  /**
+   * Returns the number of runs {@linkplain #copyRun(BaseMergeSource, long) copied} to the
+   * target so far. The fewer (and longer) the runs, the closer the merge runs to sequential
+   * disk speed.
+   */
+  public final long getRunCount() {
+    return runCount;
+  }
+  
+  
+  /**
+   * Processes the top of the <code>MergeSource</code> heap. If any of the merge
    * {@linkplain #sources} is {@linkplain BaseMergeSource#finished() finished}
-   * then that it should be removed from the {@linkplain sources} list and
-   * placed in the {@linkplain #finishedSources} list.
+   * then that it should be removed from the {@linkplain #sources} heap and
+   * placed in the {@linkplain #finishedSources} list. Merge sources whose rows
+   * are advanced must be {@linkplain MergeHeap#updateTop() re-positioned} in the heap.
    * <h4>Pre-condition</h4>
    * <ul><li>
-   * {@linkplain #sources} is sorted
+   * {@linkplain #sources} is heap-ordered
    * </li><li>
    * {@linkplain #sources} has at least 2 elements
    * </li></ul>
    * <h4>Post-condition</h4>
    * <ul><li>
-   * {@linkplain #sources} is sorted
+   * {@linkplain #sources} is heap-ordered
    * </li><li>
    * {@linkplain #sources} contains no {@linkplain BaseMergeSource#finished() finished}
    * instances.
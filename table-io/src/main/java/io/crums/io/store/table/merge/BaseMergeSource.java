@@ -6,9 +6,11 @@ package io.crums.io.store.table.merge;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.order.RowOrder;
 
 /**
  * <p>
@@ -54,21 +56,23 @@ import io.crums.io.store.table.SortedTable.Searcher;
  * <p>
  * Each merge source's cursor is initialized to its table's first row (row number zero).
  * Merge sources are ordered based on the comparing the the row each points to with that
- * of another. The ordering is actually in reverse, in order to more efficiently
- * support tail end removal of merge sources from lists (an optimization, likely not worth the
- * extra cognitive load it introduces). The diagram above exactly depicts this ordering. The
- * tail end of the list of merge sources points to the next row to be written out to the
- * output table. So you can view this ordering of merge sources as a kind of stack with the
- * tail end of the list representing what must be worked on next.
+ * of another. The ordering is actually in reverse (a historical artifact), so the sources
+ * are kept in a {@linkplain MergeHeap} in that reversed order: the heap's
+ * {@linkplain MergeHeap#top() top} points to the next row to be written out to the output
+ * table. The diagram above draws the sources in this order, right to left, with the heap's
+ * top on the far right.
  * </p><p>
- * Let's call the tail merge source (far right) in the list the <em>top</em> merge source,
- * and the one immediately to the left of it, the <em>next</em> merge source.
+ * Let's call the heap's top the <em>top</em> merge source, and the least of the rest (the
+ * heap's {@linkplain MergeHeap#next() next}, drawn immediately to the left of it), the
+ * <em>next</em> merge source.
  * </p><p>
  * The first step in the merge is to compute the index of the <em>next</em>'s row in <em>top</em>.
  * This is the row number in <em>top</em> where where <em>next</em>'s current row would have
  * found itself if it had been solely merged into <em>top</em>'s table. In our example,
- * the index evaluates to 2. Note this calculation is <strong>O</strong>(log n). Next, all the rows between the <em>top</em>s current row number
- * and the index are block-transfered to the output file.
+ * the index evaluates to 2. Note this calculation gallops from <em>top</em>'s current row,
+ * so it's <strong>O</strong>(log d), where d is the distance to the index. Next, all the rows
+ * between the <em>top</em>s current row number and the index are block-transfered to the
+ * output file.
  * </p>
  * <pre>
  * {@code
@@ -88,7 +92,8 @@ import io.crums.io.store.table.SortedTable.Searcher;
  * output (far right column). 
  * </p><p>
  * Next the top merge source's cursor (row number) is set to the index noted in the previous
- * step and the merge sources are resorted:
+ * step and its position in the heap is restored (<strong>O</strong>(log k) comparisons, for
+ * k sources):
  * </p>
  * <pre>{@code
  * 
@@ -104,8 +109,8 @@ import io.crums.io.store.table.SortedTable.Searcher;
  * </pre>
  * <p>
  * The above 2 steps are repeated until the <em>top</em>'s cursor points beyond its last
- * row. In that event, the top merge source is removed from the list. Processing then resumes
- * until there is but one merge source remaining in the list. The next few steps, are
+ * row. In that event, the top merge source is removed from the heap. Processing then resumes
+ * until there is but one merge source remaining in the heap. The next few steps, are
  * depicted below..
  * </p>
  * <pre>{@code
@@ -132,8 +137,8 @@ import io.crums.io.store.table.SortedTable.Searcher;
  * }
  * </pre>
  * <p>
- * Finally, when there's only one merge source remaining in the list of merge sources,
- * the remaining rows in that merge source are appended to the output file.
+ * Finally, when there's only one merge source remaining in the heap, the remaining rows in
+ * that merge source are appended to the output file.
  * </p>
  * <h2>Don't access concurrently</h2>
  * <p>
@@ -151,7 +156,14 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
   private final Searcher searcher;
   private final long rowCount;
   private final ByteBuffer row;
+  private final RowOrder order;
+  /**
+   * Whether the order has a prefix key, cached in {@linkplain #rowPrefix} on every row change.
+   */
+  private final boolean prefixed;
+  private long rowPrefix;
   private long rowCursor;
+  private ReadAhead readAhead;
   
   public BaseMergeSource(SortedTable.Searcher searcher) throws IOException {
     this(searcher, 0);
@@ -168,6 +180,8 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
       throw new IllegalArgumentException("empty table: " + searcher.getTable());
 
     this.row = ByteBuffer.allocate(searcher.getTable().getRowWidth());
+    this.order = searcher.getTable().order();
+    this.prefixed = order.hasPrefixKey();
     setRow(initRowNumber);
   }
   
@@ -180,6 +194,29 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
     return searcher.getTable();
   }
   
+  
+  /**
+   * Turns on adaptive read-ahead for rows not in the {@linkplain #searcher() searcher}'s
+   * buffer. Once the row number is stepped sequentially (in either direction), rows are read
+   * in windows that start at <code>minRows</code> and double on every window read in the same
+   * run, up to <code>maxRows</code>. Off, by default.
+   * 
+   * @param minRows
+   *        the initial window size (&ge; 1)
+   * @param maxRows
+   *        the maximum window size (&ge; <code>minRows</code>), or zero to turn read-ahead off
+   * @param prefetcher
+   *        optional (may be <code>null</code>). If provided, then the next window is read on
+   *        this executor while the current one is consumed
+   */
+  public void setReadAhead(int minRows, int maxRows, Executor prefetcher) {
+    if (maxRows == 0)
+      readAhead = null;
+    else
+      readAhead = new ReadAhead(
+          table(), rowCount, Math.min(minRows, maxRows), maxRows, prefetcher);
+  }
+  
   /**
    * Indicates the current row number. If in the range [0, {@linkplain #rowCount() rowCount} - 1],
    * then the contents of that row number is given by {@linkplain #row()}.
@@ -208,12 +245,18 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
     }
     row.clear();
     // if the row is already loaded in the search buffer
-    if (searcher.isRowInBuffer(rowNum))
+    if (searcher.isRowInBuffer(rowNum)) {
       searcher.copyRowInto(rowNum, row);
-    // o.w. hit the file system
-    else
+      if (readAhead != null)
+        readAhead.skipRow(rowNum);
+    }
+    // o.w. if it's read ahead (or it's time to read ahead), we're done
+    else if (readAhead == null || !readAhead.copyRow(rowNum, row))
+      // o.w. hit the file system
       searcher.getTable().read(rowNum, row);
     row.flip();
+    if (prefixed)
+      rowPrefix = order.prefixKey(row);
     rowCursor = rowNum;
   }
   
@@ -245,6 +288,45 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
     return !finished();
   }
   
+  /**
+   * Returns the number of the first row at or after the current row that compares greater
+   * than or equal to the given <code>key</code>; {@linkplain #rowCount()}, if there is none.
+   * The current row is not changed. Found by a {@linkplain Searcher#gallop(ByteBuffer, long)
+   * galloping} search from the current row: so the cost is logarithmic in the distance
+   * jumped, not in the table's size.
+   * <p>
+   * Forward only: the rows are assumed to be visited in ascending order.
+   * </p>
+   * 
+   * @throws IllegalStateException if {@linkplain #finished()}
+   * @see #advanceTo(ByteBuffer)
+   */
+  public long gallop(ByteBuffer key) throws IOException {
+    if (finished())
+      throw new IllegalStateException("finished: " + this);
+    long rowNum = searcher.gallop(key, rowCursor) ?
+        searcher.getHitRowNumber() : -searcher.getHitRowNumber() - 1;
+    // (the table may have grown since the snapshot)
+    return Math.min(rowNum, rowCount);
+  }
+  
+  /**
+   * Advances to the first row that compares greater than or equal to the given
+   * <code>key</code> (typically, another source's current row), skipping the rows
+   * in between. Unlike stepping through them with {@linkplain #advanceRow()}, the
+   * skipped rows are not read.
+   * 
+   * @return <code>true</code>, if advanced to an existing row; <code>false</code>, if
+   *         advanced past the last row, i.e. if <code>finished()</code>
+   * @see #gallop(ByteBuffer)
+   */
+  public boolean advanceTo(ByteBuffer key) throws IOException {
+    if (finished())
+      return false;
+    setRow(gallop(key));
+    return !finished();
+  }
+  
   /**
    * Returns the snapshot row count. (If there are concurrent additions to the
    * underlying table, those will be ignored.)
@@ -313,8 +395,10 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
     } else if (other.finished())
       return this.finished() ? 0 : 1;
     // the above is dead code
+    else if (prefixed && other.prefixed)
+      return -order.compareRows(this.row, this.rowPrefix, other.row, other.rowPrefix);
     else
-      return -table().order().compare(this.row, other.row);
+      return -order.compare(this.row, other.row);
   }
   
 
@@ -332,7 +416,7 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
    * 
    */
   public int compareRowWithOther(ByteBuffer otherRow) {
-    return table().order().compare(this.row, otherRow);
+    return order.compare(this.row, otherRow);
   }
   
   /**
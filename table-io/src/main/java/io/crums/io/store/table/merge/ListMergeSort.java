@@ -5,7 +5,6 @@ package io.crums.io.store.table.merge;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
 
 import io.crums.io.IoStateException;
 import io.crums.io.store.NotSortedException;
@@ -52,16 +51,16 @@ public class ListMergeSort extends BaseMergeSort<ListMergeSource> {
   @Override
   protected void processTop() throws IOException {
     
-    // invariant: sources is sorted
-    ListMergeSource top = sources.get(sources.size() - 1);
-    ListMergeSource next = sources.get(sources.size() - 2);
+    // invariant: sources is heap-ordered
+    ListMergeSource top = sources.top();
+    ListMergeSource next = sources.next();
     
     final long blockEndRowNumber; // exclusive
     
     // search for next.row() in top..
     
     // if found
-    if (top.searcher().search(next.row())) {
+    if (top.searcher().gallop(next.row(), top.rowNumber())) {
       
       // next.row() was found in the top merge source..
       long rowNumberCursor = top.searcher().getHitRowNumber();  // +
@@ -114,21 +113,21 @@ public class ListMergeSort extends BaseMergeSort<ListMergeSource> {
     if (count < 1)
       throw new IoStateException("assertion failure: count=" + count);
     
-    target.appendRows(top.table(), top.rowNumber(), count);
+    copyRun(top, count);
     
     // advance top's row number to the end of the block we just copied
     top.setRow(blockEndRowNumber);
     
     if (top.finished()) {
       
-      sources.remove(sources.size() - 1);
+      sources.removeTop();
       finishedSources.add(top);
     
     } else {
       int comp = top.compareTo(next);
       if (comp < 0)
-        // sort the sources
-        Collections.sort(sources);
+        // re-position top in the heap
+        sources.updateTop();
       else if (comp == 0)
         ++compZeroEdgeCase;
       else
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Indexed binary heap for k-way merges. The {@linkplain #top() top} is the least
+ * element in the heap's order; the {@linkplain #next() next} is the least of the rest.
+ * Unlike a {@linkplain java.util.PriorityQueue}, the elements are expected to be mutable:
+ * when the top (or next) element's sort key changes (e.g. a merge source's cursor is
+ * advanced), its position is restored with {@linkplain #updateTop()} (or
+ * {@linkplain #updateNext()}) in O(log k) comparisons, instead of re-sorting a list of
+ * k elements.
+ * <p>
+ * Not thread-safe.
+ * </p>
+ *
+ * @param <T> the element type
+ */
+public class MergeHeap<T> {
+
+  private final Comparator<? super T> order;
+  private Object[] heap;
+  private int size;
+
+  /**
+   * Index of the element last returned by {@linkplain #next()}; -1 if the heap
+   * has since been modified. (Once a merge source is mutated, it may no longer be
+   * comparable, so its position can't be recomputed.)
+   */
+  private int nextIndex = -1;
+
+
+  /**
+   * Creates an empty instance.
+   *
+   * @param order           the heap order (the least element is on top)
+   * @param initialCapacity the expected maximum number of elements
+   */
+  public MergeHeap(Comparator<? super T> order, int initialCapacity) {
+    if (order == null)
+      throw new IllegalArgumentException("null order");
+    if (initialCapacity < 0)
+      throw new IllegalArgumentException("initialCapacity: " + initialCapacity);
+    this.order = order;
+    this.heap = new Object[Math.max(2, initialCapacity)];
+  }
+
+
+  public final int size() {
+    return size;
+  }
+
+
+  public final boolean isEmpty() {
+    return size == 0;
+  }
+
+
+  public void clear() {
+    nextIndex = -1;
+    Arrays.fill(heap, 0, size, null);
+    size = 0;
+  }
+
+
+  /**
+   * Adds the given element.
+   */
+  public void add(T element) {
+    if (element == null)
+      throw new IllegalArgumentException("null element");
+    if (size == heap.length)
+      heap = Arrays.copyOf(heap, 2 * size);
+    nextIndex = -1;
+    heap[size] = element;
+    siftUp(size++);
+  }
+
+
+  /**
+   * Returns the least element.
+   *
+   * @throws IllegalStateException if empty
+   */
+  public T top() {
+    if (size == 0)
+      throw new IllegalStateException("empty heap");
+    return get(0);
+  }
+
+
+  /**
+   * Returns the least element after the {@linkplain #top() top}.
+   *
+   * @throws IllegalStateException if there are fewer than 2 elements
+   */
+  public T next() {
+    if (size < 2)
+      throw new IllegalStateException("fewer than 2 elements: " + size);
+    nextIndex = size == 2 || order.compare(get(1), get(2)) <= 0 ? 1 : 2;
+    return get(nextIndex);
+  }
+
+
+  /**
+   * Restores the heap order after the top element's sort key changed.
+   */
+  public void updateTop() {
+    if (size == 0)
+      throw new IllegalStateException("empty heap");
+    nextIndex = -1;
+    siftDown(0);
+  }
+
+
+  /**
+   * Restores the heap order after the {@linkplain #next() next} element's sort key
+   * changed. The key may only have moved later in the heap order (as when a merge source
+   * advances), so that the top remains on top.
+   *
+   * @throws IllegalStateException if the heap was modified since {@linkplain #next()}
+   *         was last invoked
+   */
+  public void updateNext() {
+    siftDown(lastNextIndex());
+    nextIndex = -1;
+  }
+
+
+  /**
+   * Removes and returns the top element.
+   */
+  public T removeTop() {
+    if (size == 0)
+      throw new IllegalStateException("empty heap");
+    return removeAt(0);
+  }
+
+
+  /**
+   * Removes and returns the element last returned by {@linkplain #next()}.
+   *
+   * @throws IllegalStateException if the heap was modified since {@linkplain #next()}
+   *         was last invoked
+   */
+  public T removeNext() {
+    return removeAt(lastNextIndex());
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private T get(int index) {
+    return (T) heap[index];
+  }
+
+
+  private int lastNextIndex() {
+    if (nextIndex == -1)
+      throw new IllegalStateException("heap modified since next() was invoked");
+    return nextIndex;
+  }
+
+
+  private T removeAt(int index) {
+    nextIndex = -1;
+    T removed = get(index);
+    int last = --size;
+    if (index != last) {
+      heap[index] = heap[last];
+      heap[last] = null;
+      siftDown(index);
+      siftUp(index);
+    } else
+      heap[last] = null;
+    return removed;
+  }
+
+
+  private void siftUp(int index) {
+    T element = get(index);
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      T p = get(parent);
+      if (order.compare(element, p) >= 0)
+        break;
+      heap[index] = p;
+      index = parent;
+    }
+    heap[index] = element;
+  }
+
+
+  private void siftDown(int index) {
+    T element = get(index);
+    final int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      T c = get(child);
+      int right = child + 1;
+      if (right < size && order.compare(get(right), c) < 0)
+        c = get(child = right);
+      if (order.compare(element, c) <= 0)
+        break;
+      heap[index] = c;
+      index = child;
+    }
+    heap[index] = element;
+  }
+
+
+  @Override
+  public String toString() {
+    return "MergeHeap" + Arrays.toString(Arrays.copyOf(heap, size));
+  }
+
+}
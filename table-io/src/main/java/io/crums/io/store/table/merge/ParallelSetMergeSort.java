@@ -0,0 +1,422 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import io.crums.io.store.table.BloomFilter;
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.del.DeleteCodec;
+
+/**
+ * A {@linkplain SetMergeSort} partitioned by key range, and run concurrently. The sources
+ * are sampled to pick <em>splitter</em> keys; each splitter is then located in every source
+ * with a {@linkplain Searcher}, which cuts every source into the same key ranges. The key ranges
+ * are merged concurrently, each into its own segment file, and the segments are then appended to
+ * the target, in order, with {@linkplain SortedTable#appendRows(io.crums.io.store.table.Table,
+ * long, long) appendRows}.
+ * <p>
+ * Since every row with a given key falls in the same key range in every source, and since the
+ * sources keep their relative order in every range's merge, the precedence semantics are those
+ * of a <code>SetMergeSort</code>. Each range is merged by a merge made by a {@linkplain
+ * MergeFactory}: so, for example, a {@linkplain SetMergeSortD} handles deletes. (As in the
+ * sequential merge, when only one source has rows in a range, those rows are copied as-is.)
+ * </p>
+ */
+public class ParallelSetMergeSort {
+
+  private final static Logger LOG = System.getLogger(ParallelSetMergeSort.class.getName());
+
+  /**
+   * Creates the merge for a key range.
+   */
+  @FunctionalInterface
+  public interface MergeFactory {
+
+    /**
+     * Returns a new merge of the given <code>sources</code> (in increasing order of
+     * precedence) to the given <code>target</code>.
+     */
+    BaseMergeSort<?> newMerge(SortedTable target, SortedTable[] sources) throws IOException;
+  }
+
+
+  /**
+   * Returns a factory for {@linkplain SetMergeSortD}s with the given delete codec and
+   * back-set.
+   *
+   * @see SetMergeSortD#SetMergeSortD(SortedTable, SortedTable[], DeleteCodec, TableSet)
+   */
+  public static MergeFactory withDeletes(DeleteCodec deleteCodec, TableSet backSet) {
+    if (deleteCodec == null)
+      throw new IllegalArgumentException("null deleteCodec");
+    return (target, sources) -> new SetMergeSortD(target, sources, deleteCodec, backSet);
+  }
+
+
+  /**
+   * The number of rows sampled per key range, when picking splitters.
+   */
+  public final static int SAMPLES_PER_RANGE = TableSet.SAMPLES_PER_RANGE;
+
+
+  private final SortedTable target;
+  private final SortedTable[] sources;
+  private final File workDir;
+  private final ExecutorService executor;
+  private final int ranges;
+  private final MergeFactory factory;
+
+  private double bloomFilterFpp;
+
+  private long startTime;
+  private long endTime;
+  private int rangeCount;
+  /**
+   * Set on failure: key range merges not yet started are skipped.
+   */
+  private volatile boolean failed;
+
+
+  /**
+   * Creates a new instance using {@linkplain SetMergeSort}s.
+   *
+   * @see #ParallelSetMergeSort(SortedTable, SortedTable[], File, ExecutorService, int, MergeFactory)
+   */
+  public ParallelSetMergeSort(
+      SortedTable target, SortedTable[] sources,
+      File workDir, ExecutorService executor, int ranges)
+          throws IOException {
+    this(target, sources, workDir, executor, ranges, SetMergeSort::new);
+  }
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param target
+   *        the target of the merge
+   * @param sources
+   *        the source tables ordered in increasing order of precedence (see
+   *        {@linkplain SetMergeSort#SetMergeSort(SortedTable, SortedTable[])})
+   * @param workDir
+   *        existing directory the segment files are written to (and deleted from)
+   * @param executor
+   *        the key ranges are merged on this executor
+   * @param ranges
+   *        the (maximum) number of key ranges (&ge; 1). Typically, a small multiple of the
+   *        number of threads
+   * @param factory
+   *        creates the merge for each key range
+   */
+  public ParallelSetMergeSort(
+      SortedTable target, SortedTable[] sources,
+      File workDir, ExecutorService executor, int ranges, MergeFactory factory)
+          throws IOException {
+    this.target = target;
+    this.sources = sources == null ? null : sources.clone();
+    this.workDir = workDir;
+    this.executor = executor;
+    this.ranges = ranges;
+    this.factory = factory;
+
+    if (target == null)
+      throw new IllegalArgumentException("null target");
+    if (sources == null)
+      throw new IllegalArgumentException("null merge tables array");
+    if (!target.isOpen())
+      throw new IllegalArgumentException("target not open");
+    if (sources.length < 2)
+      throw new IllegalArgumentException("too few tables in array: " + sources.length);
+    for (int i = 0; i < sources.length; ++i) {
+      if (target.getRowWidth() != sources[i].getRowWidth())
+        throw new IllegalArgumentException(
+            "source / target row width mismatch: " +
+            sources[i].getRowWidth() + " / " + target.getRowWidth() +
+            "  -- at index " + i);
+      if (!target.order().equals(sources[i].order()))
+        throw new IllegalArgumentException(
+            "source / target order mismatch: " +
+            sources[i].order() + " / " + target.order() +
+            "  -- at index " + i);
+    }
+    if (workDir == null || !workDir.isDirectory())
+      throw new IllegalArgumentException("not a directory: " + workDir);
+    if (executor == null)
+      throw new IllegalArgumentException("null executor");
+    if (ranges < 1)
+      throw new IllegalArgumentException("ranges: " + ranges);
+    if (factory == null)
+      throw new IllegalArgumentException("null factory");
+  }
+
+
+  /**
+   * Sets the false positive probability of the {@linkplain BloomFilter} built for the
+   * target once the merge completes.
+   *
+   * @see BaseMergeSort#setBloomFilterFpp(double)
+   */
+  public void setBloomFilterFpp(double fpp) {
+    if (fpp != 0 && !(fpp > 0 && fpp < 1))
+      throw new IllegalArgumentException("fpp: " + fpp);
+    this.bloomFilterFpp = fpp;
+  }
+
+
+  public final SortedTable getTarget() {
+    return target;
+  }
+
+
+  /**
+   * Returns the number of key ranges merged (known once {@linkplain #mergeToTarget()} is
+   * invoked). Fewer than requested, if the keys are too few, or too skewed.
+   */
+  public final int getRangeCount() {
+    return rangeCount;
+  }
+
+
+  /**
+   * Returns the total time elapsed for the {@linkplain #mergeToTarget()} merge;
+   * zero, if not started.
+   */
+  public final long getTimeTaken() {
+    if (startTime == 0)
+      return 0;
+    long endMillis = endTime == 0 ? System.currentTimeMillis() : endTime;
+    return endMillis - startTime;
+  }
+
+
+  /**
+   * Merges the sources to the target table. Blocks until done.
+   */
+  public void mergeToTarget() throws IOException {
+    synchronized (this) {
+      if (startTime != 0)
+        throw new IllegalStateException("already run");
+      startTime = System.currentTimeMillis();
+    }
+
+    ByteBuffer[] splitters = pickSplitters();
+    rangeCount = splitters.length + 1;
+    long[][] cuts = locateSplitters(splitters);
+
+    List<Future<Segment>> segments = new ArrayList<>(rangeCount);
+    try {
+      for (int r = 0; r < rangeCount; ++r) {
+        final int range = r;
+        segments.add(executor.submit(() -> mergeRange(range, cuts)));
+      }
+
+      // append the segments to the target, in order
+      for (int r = 0; r < segments.size(); ++r) {
+        Segment segment = await(segments.get(r));
+        segments.set(r, null);
+        try {
+          if (segment.table != null && segment.table.getRowCount() != 0)
+            target.appendRows(segment.table, 0, segment.table.getRowCount());
+        } finally {
+          segment.close();
+        }
+      }
+    } catch (IOException | RuntimeException | Error x) {
+      failed = true;
+      // (the consumed segments are already closed)
+      for (Future<Segment> future : segments)
+        if (future != null)
+          discard(future);
+      throw x;
+    }
+
+    if (bloomFilterFpp != 0)
+      target.setBloomFilter(BloomFilter.build(target, bloomFilterFpp));
+
+    endTime = System.currentTimeMillis();
+  }
+
+
+  /**
+   * Samples the sources (in proportion to their sizes) and returns the splitter keys,
+   * in ascending order, and with no 2 equal.
+   */
+  private ByteBuffer[] pickSplitters() throws IOException {
+    return TableSet.pickSplitters(sources, ranges);
+  }
+
+
+  /**
+   * Returns the row numbers at which each source is cut: <code>cuts[s][r]</code> is
+   * the first row in source <code>s</code> that belongs to key range <code>r</code>
+   * (and <code>cuts[s][rangeCount]</code>, its row count).
+   */
+  private long[][] locateSplitters(ByteBuffer[] splitters) throws IOException {
+    long[][] cuts = new long[sources.length][splitters.length + 2];
+    for (int s = 0; s < sources.length; ++s) {
+      SortedTable source = sources[s];
+      Searcher searcher = source.newSearcher(BaseMergeSort.DEFAULT_ROWS_PER_SEARCH_BUFFER);
+      for (int i = 0; i < splitters.length; ++i) {
+        long hit = searcher.search(splitters[i]) ?
+            searcher.getHitRowNumber() : -searcher.getHitRowNumber() - 1;
+        cuts[s][i + 1] = hit;
+      }
+      cuts[s][splitters.length + 1] = source.getRowCount();
+    }
+    return cuts;
+  }
+
+
+  /**
+   * Merges the given key range (invoked on the executor).
+   */
+  private Segment mergeRange(int range, long[][] cuts) throws IOException {
+    List<SortedTable> views = new ArrayList<>(sources.length);
+    if (failed)
+      return new Segment(null, null, views);
+    try {
+      for (int s = 0; s < sources.length; ++s) {
+        long from = cuts[s][range];
+        long to = cuts[s][range + 1];
+        if (to > from)
+          views.add(sources[s].subTable(from, to));
+      }
+      switch (views.size()) {
+      case 0:
+        return new Segment(null, null, views);
+      case 1:
+        // (nothing to merge: the rows are appended as-is)
+        return new Segment(views.get(0), null, views);
+      }
+
+      File file = File.createTempFile("range-" + range + "-", ".seg", workDir);
+      SortedTable segmentTable;
+      try {
+        @SuppressWarnings("resource")
+        FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+        segmentTable = new SortedTable(ch, target.getRowWidth(), target.order());
+      } catch (IOException x) {
+        deleteQuietly(file);
+        throw x;
+      }
+      try {
+        factory.newMerge(segmentTable, views.toArray(new SortedTable[views.size()])).mergeToTarget();
+      } catch (IOException | RuntimeException x) {
+        closeQuietly(segmentTable);
+        deleteQuietly(file);
+        throw x;
+      }
+      return new Segment(segmentTable, file, views);
+
+    } catch (IOException | RuntimeException x) {
+      for (SortedTable view : views)
+        closeQuietly(view);
+      throw x;
+    }
+  }
+
+
+  private Segment await(Future<Segment> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while awaiting key range merge", ix);
+    } catch (ExecutionException xx) {
+      Throwable cause = xx.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException("on key range merge: " + cause, cause);
+    }
+  }
+
+
+  /**
+   * Waits for the given key range merge to finish, and cleans up after it. (The merge is
+   * neither cancelled nor interrupted: a cancelled merge that is already running still
+   * finishes, orphaning its segment; and an interrupt during channel I/O closes the
+   * channel, which the range's views share with the sources. Merges not yet started
+   * are skipped, instead.)
+   */
+  private void discard(Future<Segment> future) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        future.get().close();
+        break;
+      } catch (InterruptedException ix) {
+        interrupted = true;
+      } catch (Exception x) {
+        // (the range merge failed: it cleaned up after itself)
+        break;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+
+  private static void deleteQuietly(File file) {
+    if (!file.delete())
+      LOG.log(Level.WARNING, "failed to delete segment file " + file);
+  }
+
+
+  private static void closeQuietly(SortedTable table) {
+    try {
+      table.close();
+    } catch (IOException iox) {
+      LOG.log(Level.WARNING, "on closing " + table + ": " + iox);
+    }
+  }
+
+
+  /**
+   * A merged key range, and the resources to release once it's appended to the target.
+   */
+  private static class Segment {
+
+    final SortedTable table;
+    final File file;
+    final List<SortedTable> views;
+
+    Segment(SortedTable table, File file, List<SortedTable> views) {
+      this.table = table;
+      this.file = file;
+      this.views = views;
+    }
+
+    void close() {
+      if (file != null) {
+        closeQuietly(table);
+        deleteQuietly(file);
+      }
+      for (SortedTable view : views)
+        closeQuietly(view);
+    }
+  }
+
+}
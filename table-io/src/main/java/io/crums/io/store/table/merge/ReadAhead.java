@@ -0,0 +1,240 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import io.crums.io.store.table.Table;
+
+/**
+ * Adaptive read-ahead for a {@linkplain BaseMergeSource}'s row cursor. Row requests are
+ * watched for sequential access (in either direction). Once a second consecutive row is
+ * requested, a window of rows in that direction is read in a single call; each subsequent
+ * window read during the same sequential run is twice as large, up to a maximum. A random
+ * (non-sequential) request resets the window size. Window buffers are sized to the window,
+ * and replaced by larger ones as the window grows.
+ * <p>
+ * If a prefetch executor is given, windows are double-buffered: as soon as a window is
+ * loaded, the next one is read in the background while the current window is consumed.
+ * </p>
+ * <p>
+ * Not thread-safe (the background reads only touch the buffer not in use).
+ * </p>
+ */
+class ReadAhead {
+
+  /**
+   * A loaded block of contiguous rows.
+   */
+  private static class Window {
+    final ByteBuffer buffer;
+    long firstRow;
+    int rows;
+
+    Window(int capacityRows, int rowWidth) {
+      buffer = ByteBuffer.allocateDirect(capacityRows * rowWidth);
+    }
+
+    int capacityRows(int rowWidth) {
+      return buffer.capacity() / rowWidth;
+    }
+
+    boolean contains(long rowNumber) {
+      return rowNumber >= firstRow && rowNumber < firstRow + rows;
+    }
+  }
+
+
+  private final Table table;
+  private final long rowCount;
+  private final int rowWidth;
+  private final int minRows;
+  private final int maxRows;
+  private final Executor prefetcher;
+
+  private Window current;
+  private Window spare;
+  private CompletableFuture<Window> pending;
+
+  private long lastRow = -2;
+  private int direction;
+  private int windowRows;
+
+
+  /**
+   * @param table       the table read from
+   * @param rowCount    the (snapshot) number of rows in the table
+   * @param minRows     the initial window size (&ge; 1)
+   * @param maxRows     the maximum window size (&ge; <code>minRows</code>)
+   * @param prefetcher  optional executor the next window is read on (may be <code>null</code>)
+   */
+  ReadAhead(Table table, long rowCount, int minRows, int maxRows, Executor prefetcher) {
+    if (minRows < 1 || maxRows < minRows)
+      throw new IllegalArgumentException("minRows / maxRows: " + minRows + " / " + maxRows);
+    this.table = table;
+    this.rowCount = rowCount;
+    this.rowWidth = table.getRowWidth();
+    this.minRows = minRows;
+    this.maxRows = maxRows;
+    this.prefetcher = prefetcher;
+  }
+
+
+  /**
+   * Notes the given row was requested, but served from elsewhere (e.g. from the
+   * searcher's buffer). Keeps track of sequential access, as in
+   * {@linkplain #copyRow(long, ByteBuffer)}.
+   */
+  void skipRow(long rowNumber) {
+    final long step = rowNumber - lastRow;
+    final boolean sequential = (step == 1 || step == -1) && (direction == 0 || step == direction);
+    lastRow = rowNumber;
+    if (sequential)
+      direction = (int) step;
+    else if (current == null || !current.contains(rowNumber)) {
+      cancelPending();
+      direction = 0;
+      windowRows = 0;
+    }
+  }
+
+
+  /**
+   * Copies the given row into the <code>out</code> buffer, if it's read ahead (or if it's
+   * time to read ahead).
+   *
+   * @return <code>true</code> if copied; <code>false</code> if the row should be read
+   *         directly
+   */
+  boolean copyRow(long rowNumber, ByteBuffer out) throws IOException {
+    final long step = rowNumber - lastRow;
+    final boolean sequential = (step == 1 || step == -1) && (direction == 0 || step == direction);
+    lastRow = rowNumber;
+
+    if (current != null && current.contains(rowNumber)) {
+      copy(current, rowNumber, out);
+      return true;
+    }
+
+    if (!sequential) {
+      // random access: start over
+      cancelPending();
+      direction = 0;
+      windowRows = 0;
+      return false;
+    }
+    direction = (int) step;
+
+    if (pending != null) {
+      Window prefetched = join(pending);
+      pending = null;
+      if (prefetched.contains(rowNumber)) {
+        spare = current;
+        current = prefetched;
+        prefetchNext();
+        copy(current, rowNumber, out);
+        return true;
+      }
+      spare = prefetched;
+    }
+
+    windowRows = windowRows == 0 ? minRows : Math.min(maxRows, 2 * windowRows);
+    Window window = windowFor(spare, windowRows);
+    spare = current;
+    load(window, rowNumber, windowRows, direction);
+    current = window;
+    prefetchNext();
+    copy(current, rowNumber, out);
+    return true;
+  }
+
+
+  private void prefetchNext() {
+    if (prefetcher == null)
+      return;
+    long nextStart = direction > 0 ? current.firstRow + current.rows : current.firstRow - 1;
+    if (nextStart < 0 || nextStart >= rowCount)
+      return;
+    windowRows = Math.min(maxRows, 2 * windowRows);
+    final int rows = windowRows;
+    final int dir = direction;
+    final Window window = windowFor(spare, rows);
+    spare = null;
+    pending = CompletableFuture.supplyAsync(() -> {
+      try {
+        load(window, nextStart, rows, dir);
+        return window;
+      } catch (IOException iox) {
+        throw new UncheckedIOException(iox);
+      }
+    }, prefetcher);
+  }
+
+
+  /**
+   * Returns the given <code>window</code>, if it's large enough for the given number
+   * of rows; o.w., a new one.
+   */
+  private Window windowFor(Window window, int rows) {
+    return window != null && window.capacityRows(rowWidth) >= rows ?
+        window : new Window(rows, rowWidth);
+  }
+
+
+  /**
+   * Loads a window of (up to) <code>rows</code> rows starting at <code>startRow</code> in
+   * the given direction.
+   */
+  private void load(Window window, long startRow, int rows, int dir) throws IOException {
+    long first;
+    int count;
+    if (dir > 0) {
+      first = startRow;
+      count = (int) Math.min(rows, rowCount - startRow);
+    } else {
+      first = Math.max(0, startRow - rows + 1);
+      count = (int) (startRow + 1 - first);
+    }
+    window.buffer.clear().limit(count * rowWidth);
+    table.read(first, window.buffer);
+    window.firstRow = first;
+    window.rows = count;
+  }
+
+
+  private void copy(Window window, long rowNumber, ByteBuffer out) {
+    int offset = (int) (rowNumber - window.firstRow) * rowWidth;
+    out.put(out.position(), window.buffer, offset, rowWidth);
+    out.position(out.position() + rowWidth);
+  }
+
+
+  private void cancelPending() {
+    if (pending != null) {
+      // wait for it, so the buffer can be reused (a failed read-ahead is moot)
+      try {
+        spare = pending.join();
+      } catch (CompletionException ignore) {  }
+      pending = null;
+    }
+  }
+
+
+  private Window join(CompletableFuture<Window> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException cx) {
+      if (cx.getCause() instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cx.getCause()).getCause();
+      throw cx;
+    }
+  }
+
+}
@@ -5,7 +5,6 @@ package io.crums.io.store.table.merge;
 
 
 import java.io.IOException;
-import java.util.Collections;
 
 import io.crums.io.IoStateException;
 import io.crums.io.store.table.SortedTable;
@@ -65,26 +64,27 @@ public class SetMergeSort extends BaseMergeSort<PrecedenceMergeSource> {
   @Override
   protected void processTop() throws IOException {
     
-    // invariant: sources is sorted
-    PrecedenceMergeSource top = sources.get(sources.size() - 1);
-    PrecedenceMergeSource next = sources.get(sources.size() - 2);
+    // invariant: sources is heap-ordered
+    PrecedenceMergeSource top = sources.top();
+    PrecedenceMergeSource next = sources.next();
     
     long blockEndRowNumber;
     long postTopRowNumber;
     
-    // see if *top* contains *next*s current row: if so, advance next and re-sort,
-    // and soon-come-back!
+    // see if *top* contains *next*s current row (galloping from top's current row):
+    // if so, advance next and re-sort, and soon-come-back!
     
-    if (top.searcher().search(next.row())) {
+    if (top.searcher().gallop(next.row(), top.rowNumber())) {
       
       // if top overrides next's row..
       if (top.precedence() > next.precedence()) {
         // skip next's row and if it's then finished, removed it
         next.setRow(next.rowNumber() + 1);
         if (next.finished()) {
-          sources.remove(sources.size() - 2);
+          sources.removeNext();
           finishedSources.add(next);
-        }
+        } else
+          sources.updateNext();
         // we wont be block copying
         blockEndRowNumber = postTopRowNumber = 0;
         
@@ -113,20 +113,19 @@ public class SetMergeSort extends BaseMergeSort<PrecedenceMergeSource> {
       if (count < 1)
         throw new IoStateException("assertion failure: count=" + count);
       
-      target.appendRows(top.table(), top.rowNumber(), count);
+      copyRun(top, count);
       
       top.setRow(postTopRowNumber);
       
       // if top is finished
       if (top.finished()) {
-        sources.remove(sources.size() - 1);
+        sources.removeTop();
         finishedSources.add(top);
-      }
+      } else
+        // re-position top in the heap
+        // to satisfy the required post-condition for this method
+        sources.updateTop();
     }
-    
-    // Sort the sources (we messed with sources)
-    // and satisfy the required post-condition for this method
-    Collections.sort(sources);
   }
   
 
@@ -51,6 +51,46 @@ public final class CompoundOrder extends RowOrder {
   }
   
   
+  /**
+   * Returns <code>true</code> iff the first (highest precedence) order has a prefix key.
+   */
+  @Override
+  public boolean hasPrefixKey() {
+    return orders[orders.length - 1].hasPrefixKey();
+  }
+  
+  
+  /**
+   * Exact only if there is but one order, and its prefix key is exact.
+   */
+  @Override
+  public boolean isPrefixKeyExact() {
+    return orders.length == 1 && orders[0].isPrefixKeyExact();
+  }
+  
+  
+  /**
+   * Returns the first (highest precedence) order's prefix key.
+   */
+  @Override
+  public long prefixKey(ByteBuffer row) {
+    return orders[orders.length - 1].prefixKey(row);
+  }
+  
+  
+  /**
+   * Returns the compound of the component orders' hashers, if they're all region-based;
+   * <code>null</code>, o.w.
+   */
+  @Override
+  public KeyHasher keyHasher() {
+    KeyHasher[] hashers = new KeyHasher[orders.length];
+    for (int i = orders.length; i-- > 0; )
+      hashers[i] = orders[i].keyHasher();
+    return KeyHasher.compound(hashers);
+  }
+  
+  
   @Override
   public boolean equals(Object other) {
     if (other == this)
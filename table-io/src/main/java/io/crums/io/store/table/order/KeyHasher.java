@@ -0,0 +1,188 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.order;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hashes the <em>examined region</em> (the key) of a row, consistent with a
+ * {@linkplain RowOrder}'s equality semantics: if 2 rows compare equal under the
+ * order, then they hash to the same value. (The converse needn't hold.)
+ * <p>
+ * The key is either one or more fixed byte regions at absolute offsets in the row
+ * (consistent with the orders in {@linkplain RowOrders}), or the remaining bytes of
+ * the buffer (consistent with {@linkplain NaturalRowOrder}).
+ * </p>
+ *
+ * @see RowOrder#keyHasher()
+ */
+public final class KeyHasher {
+
+  private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+  private final static long FNV_PRIME = 0x100000001b3L;
+
+  private final static int[] NO_REGIONS = { };
+
+  /**
+   * Hashes the remaining bytes of a buffer (relative to its position).
+   */
+  public final static KeyHasher NATURAL = new KeyHasher(NO_REGIONS, NO_REGIONS);
+
+
+  /**
+   * Returns an instance hashing the given absolute region of a row.
+   *
+   * @param offset  region offset (&ge; 0)
+   * @param width   region width (&ge; 1)
+   */
+  public static KeyHasher forRegion(int offset, int width) {
+    return forRegions(new int[] { offset }, new int[] { width });
+  }
+
+
+  /**
+   * Returns an instance hashing the given absolute regions of a row.
+   *
+   * @param offsets region offsets (&ge; 0). If empty, then {@linkplain #NATURAL} is returned.
+   * @param widths  region widths (&ge; 1)
+   */
+  public static KeyHasher forRegions(int[] offsets, int[] widths) {
+    if (offsets.length != widths.length)
+      throw new IllegalArgumentException(
+          "offsets / widths length mismatch: " + offsets.length + " / " + widths.length);
+    if (offsets.length == 0)
+      return NATURAL;
+    for (int index = 0; index < offsets.length; ++index)
+      if (offsets[index] < 0 || widths[index] < 1)
+        throw new IllegalArgumentException(
+            "region [" + offsets[index] + ", +" + widths[index] + "] at index " + index);
+    return new KeyHasher(offsets.clone(), widths.clone());
+  }
+
+
+  /**
+   * Returns an instance hashing the regions of all the given hashers, or <code>null</code>
+   * if any of them is <code>null</code> or {@linkplain #isNatural() natural}.
+   */
+  public static KeyHasher compound(KeyHasher... hashers) {
+    int count = 0;
+    for (KeyHasher hasher : hashers) {
+      if (hasher == null || hasher.isNatural())
+        return null;
+      count += hasher.offsets.length;
+    }
+    int[] offsets = new int[count];
+    int[] widths = new int[count];
+    int index = 0;
+    for (KeyHasher hasher : hashers)
+      for (int r = 0; r < hasher.offsets.length; ++r, ++index) {
+        offsets[index] = hasher.offsets[r];
+        widths[index] = hasher.widths[r];
+      }
+    return new KeyHasher(offsets, widths);
+  }
+
+
+  private final int[] offsets;
+  private final int[] widths;
+
+
+  private KeyHasher(int[] offsets, int[] widths) {
+    this.offsets = offsets;
+    this.widths = widths;
+  }
+
+
+  /**
+   * Returns <code>true</code> iff this instance hashes the remaining bytes of a buffer.
+   */
+  public boolean isNatural() {
+    return offsets.length == 0;
+  }
+
+
+  /**
+   * Returns the number of hashed regions (zero, if {@linkplain #isNatural() natural}).
+   */
+  public int regionCount() {
+    return offsets.length;
+  }
+
+
+  public int regionOffset(int index) {
+    return offsets[index];
+  }
+
+
+  public int regionWidth(int index) {
+    return widths[index];
+  }
+
+
+  /**
+   * Returns the 64-bit hash of the given row's (or key's) examined region.
+   * The state of the argument is not modified.
+   */
+  public long hash(ByteBuffer row) {
+    long h = FNV_OFFSET;
+    if (offsets.length == 0)
+      h = hashBytes(row, row.position(), row.limit(), h);
+    else
+      for (int index = 0; index < offsets.length; ++index)
+        h = hashBytes(row, offsets[index], offsets[index] + widths[index], h);
+    return mix(h);
+  }
+
+
+  private static long hashBytes(ByteBuffer buffer, int index, int end, long h) {
+    for (; index < end; ++index)
+      h = (h ^ (buffer.get(index) & 0xff)) * FNV_PRIME;
+    return h;
+  }
+
+
+  /**
+   * Final avalanche step (from MurmurHash3's fmix64). FNV alone is weak in the
+   * high bits for short keys.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this)
+      return true;
+    else if (other instanceof KeyHasher) {
+      KeyHasher hasher = (KeyHasher) other;
+      return Arrays.equals(offsets, hasher.offsets) && Arrays.equals(widths, hasher.widths);
+    } else
+      return false;
+  }
+
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(offsets) * 31 + Arrays.hashCode(widths);
+  }
+
+
+  @Override
+  public String toString() {
+    if (isNatural())
+      return "[KeyHasher: NATURAL]";
+    StringBuilder string = new StringBuilder("[KeyHasher:");
+    for (int index = 0; index < offsets.length; ++index)
+      string.append(' ').append(offsets[index]).append('+').append(widths[index]);
+    return string.append(']').toString();
+  }
+
+}
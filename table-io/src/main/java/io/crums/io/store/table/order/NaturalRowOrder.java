@@ -23,4 +23,30 @@ public final class NaturalRowOrder extends RowOrder {
     return rowA.compareTo(rowB);
   }
 
+  @Override
+  public boolean hasPrefixKey() {
+    return true;
+  }
+
+  /**
+   * Returns the first (up to) 8 remaining bytes, mapped so that signed <code>long</code>
+   * comparison agrees with {@linkplain ByteBuffer#compareTo(ByteBuffer)} (which compares
+   * bytes as signed). Missing bytes (in buffers with fewer than 8 remaining) are zero, which
+   * ties with byte <code>-128</code>: such ties are resolved by comparing in full.
+   */
+  @Override
+  public long prefixKey(ByteBuffer row) {
+    final int pos = row.position();
+    final int len = Math.min(8, row.limit() - pos);
+    long key = 0;
+    for (int index = 0; index < len; ++index)
+      key |= ((row.get(pos + index) ^ 0x80) & 0xffL) << (56 - 8 * index);
+    return key ^ Long.MIN_VALUE;
+  }
+
+  @Override
+  public KeyHasher keyHasher() {
+    return KeyHasher.NATURAL;
+  }
+
 }
@@ -4,6 +4,7 @@
 package io.crums.io.store.table.order;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 
 import io.crums.util.ClassEquivalent;
@@ -54,5 +55,103 @@ public abstract class RowOrder extends ClassEquivalent implements Comparator<Byt
   public final int compare(ByteBuffer rowA, ByteBuffer rowB) {
     return compareRows(rowA, rowB);
   }
+  
+  
+  /**
+   * Returns <code>true</code> iff this order defines a {@linkplain #prefixKey(ByteBuffer)
+   * prefix key}. The base implementation returns <code>false</code>.
+   */
+  public boolean hasPrefixKey() {
+    return false;
+  }
+  
+  
+  /**
+   * Returns <code>true</code> iff the {@linkplain #prefixKey(ByteBuffer) prefix key} fully
+   * determines the order: i.e. if rows with equal prefix keys always compare equal. The
+   * base implementation returns <code>false</code>.
+   */
+  public boolean isPrefixKeyExact() {
+    return false;
+  }
+  
+  
+  /**
+   * Returns the given row's (or key's) <em>prefix key</em>: a 64-bit value whose
+   * <em>signed</em> comparison is consistent with this order. That is, if
+   * <code>prefixKey(a) &lt; prefixKey(b)</code>, then <code>compareRows(a, b) &lt; 0</code>.
+   * If the prefix keys are equal, then the rows must be compared in full, unless the
+   * prefix key is {@linkplain #isPrefixKeyExact() exact}.
+   * <p>
+   * Searches, merges and sorts use this to replace most row comparisons with a comparison
+   * of primitive <code>long</code>s. Like {@linkplain #compareRows(ByteBuffer, ByteBuffer)},
+   * the state of the argument is not modified.
+   * </p>
+   * 
+   * @throws UnsupportedOperationException
+   *         if {@linkplain #hasPrefixKey()} returns <code>false</code> (the base implementation)
+   */
+  public long prefixKey(ByteBuffer row) {
+    throw new UnsupportedOperationException("no prefix key: " + this);
+  }
+  
+  
+  /**
+   * Compares two rows whose {@linkplain #prefixKey(ByteBuffer) prefix keys} are already
+   * computed. The rows themselves are only compared if the prefix keys are equal and not
+   * {@linkplain #isPrefixKeyExact() exact}.
+   */
+  public final int compareRows(ByteBuffer rowA, long prefixA, ByteBuffer rowB, long prefixB) {
+    if (prefixA != prefixB)
+      return prefixA < prefixB ? -1 : 1;
+    return isPrefixKeyExact() ? 0 : compareRows(rowA, rowB);
+  }
+  
+  
+  /**
+   * Binary searches the given sorted array of rows for the given <code>key</code>. If this
+   * order has a {@linkplain #hasPrefixKey() prefix key}, then the key's prefix is computed
+   * once, and most comparisons are on <code>long</code>s.
+   * 
+   * @param rows      sorted in this order
+   * @param fromIndex the first index searched (inclusive)
+   * @param toIndex   the last index searched (exclusive)
+   * @return the index of a row equal to the <code>key</code>, if found;
+   *         -<em>insertionPoint</em> - 1, otherwise
+   *         
+   * @see Arrays#binarySearch(Object[], int, int, Object, Comparator)
+   */
+  public int binarySearch(ByteBuffer[] rows, int fromIndex, int toIndex, ByteBuffer key) {
+    if (!hasPrefixKey())
+      return Arrays.binarySearch(rows, fromIndex, toIndex, key, this);
+    final long keyPrefix = prefixKey(key);
+    int lo = fromIndex;
+    int hi = toIndex - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      ByteBuffer row = rows[mid];
+      int comp = compareRows(row, prefixKey(row), key, keyPrefix);
+      if (comp < 0)
+        lo = mid + 1;
+      else if (comp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -(lo + 1);
+  }
+  
+  
+  /**
+   * Returns a hasher of the examined region of rows, consistent with this
+   * order's equality semantics, or <code>null</code> if unknown. Used for building
+   * Bloom filters.
+   * <p>
+   * The base implementation returns <code>null</code>.
+   * </p>
+   */
+  public KeyHasher keyHasher() {
+    return null;
+  }
 
 }
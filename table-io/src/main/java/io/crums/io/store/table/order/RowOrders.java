@@ -58,6 +58,22 @@ public class RowOrders {
       public String toString() {
         return "[INT_ORDER, off=" + offset + "]";
       }
+      @Override
+      public KeyHasher keyHasher() {
+        return KeyHasher.forRegion(offset, 4);
+      }
+      @Override
+      public boolean hasPrefixKey() {
+        return true;
+      }
+      @Override
+      public boolean isPrefixKeyExact() {
+        return true;
+      }
+      @Override
+      public long prefixKey(ByteBuffer row) {
+        return row.getInt(offset);
+      }
     };
   }
   
@@ -82,6 +98,56 @@ public class RowOrders {
       public String toString() {
         return "[LONG_ORDER, off=" + offset + "]";
       }
+      @Override
+      public KeyHasher keyHasher() {
+        return KeyHasher.forRegion(offset, 8);
+      }
+      @Override
+      public boolean hasPrefixKey() {
+        return true;
+      }
+      @Override
+      public boolean isPrefixKeyExact() {
+        return true;
+      }
+      @Override
+      public long prefixKey(ByteBuffer row) {
+        return row.getLong(offset);
+      }
+    };
+  }
+  
+
+  /**
+   * Returns 8 byte <em>unsigned long</em> order at byte <code>offset</code>.
+   */
+  public static RowOrder unsignedLongOrderAtOffset(int offset) {
+    return new RowOrderAtOffset(offset) {
+      @Override
+      public int compareRows(ByteBuffer rowA, ByteBuffer rowB) {
+        return Long.compareUnsigned(rowA.getLong(offset), rowB.getLong(offset));
+      }
+      @Override
+      public String toString() {
+        return "[UNSIGNED_LONG_ORDER, off=" + offset + "]";
+      }
+      @Override
+      public KeyHasher keyHasher() {
+        return KeyHasher.forRegion(offset, 8);
+      }
+      @Override
+      public boolean hasPrefixKey() {
+        return true;
+      }
+      @Override
+      public boolean isPrefixKeyExact() {
+        return true;
+      }
+      @Override
+      public long prefixKey(ByteBuffer row) {
+        // flipping the sign bit maps unsigned order onto signed order
+        return row.getLong(offset) ^ Long.MIN_VALUE;
+      }
     };
   }
   
@@ -101,6 +167,22 @@ public class RowOrders {
       public String toString() {
         return "[SHORT_ORDER, off=" + offset + "]";
       }
+      @Override
+      public KeyHasher keyHasher() {
+        return KeyHasher.forRegion(offset, 2);
+      }
+      @Override
+      public boolean hasPrefixKey() {
+        return true;
+      }
+      @Override
+      public boolean isPrefixKeyExact() {
+        return true;
+      }
+      @Override
+      public long prefixKey(ByteBuffer row) {
+        return row.getShort(offset);
+      }
     };
   }
 
@@ -8,6 +8,7 @@ module io.crums.io.store {
   exports io.crums.io.store.table;
   exports io.crums.io.store.table.del;
   exports io.crums.io.store.table.iter;
+  exports io.crums.io.store.table.lsm;
   exports io.crums.io.store.table.merge;
   exports io.crums.io.store.table.order;
   
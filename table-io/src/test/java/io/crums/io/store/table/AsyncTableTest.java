@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class AsyncTableTest extends TableTestHarness {
+
+  private final static int ROW_WIDTH = 16;
+
+
+  @Test
+  public void testConcurrentAppendsAndReads() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int appends = 500;
+    File file = new File(unitTestDir(), "async");
+
+    try (AsyncTable table = AsyncTable.open(file, ROW_WIDTH, false, 32)) {
+      List<CompletableFuture<Long>> futures = new ArrayList<>();
+      for (int i = 0; i < appends; ++i) {
+        // 1 or 2 rows per append
+        int rows = 1 + (i & 1);
+        ByteBuffer data = ByteBuffer.allocate(rows * ROW_WIDTH);
+        for (int r = 0; r < rows; ++r)
+          data.putLong(r * ROW_WIDTH, i).putLong(r * ROW_WIDTH + 8, r);
+        futures.add(table.append(data));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+      final long expectedRows = appends + appends / 2;
+      assertEquals(expectedRows, table.getRowCount());
+
+      // the appends' row ranges partition the table
+      Set<Long> firstRows = new HashSet<>();
+      for (CompletableFuture<Long> future : futures)
+        assertTrue(firstRows.add(future.get()));
+
+      List<CompletableFuture<ByteBuffer>> reads = new ArrayList<>();
+      for (int i = 0; i < appends; ++i)
+        reads.add(table.read(futures.get(i).get(), ByteBuffer.allocate(ROW_WIDTH)));
+      for (int i = 0; i < appends; ++i) {
+        ByteBuffer row = reads.get(i).get();
+        assertFalse(row.hasRemaining());
+        assertEquals(i, row.getLong(0));
+        assertEquals(0, row.getLong(8));
+      }
+
+      // overwrite, then extend with a set
+      table.set(0, ByteBuffer.allocate(ROW_WIDTH).putLong(0, -1)).get();
+      table.set(expectedRows, ByteBuffer.allocate(ROW_WIDTH).putLong(0, -2)).get();
+      assertEquals(expectedRows + 1, table.getRowCount());
+
+      assertTrue(
+          table.read(expectedRows + 1, ByteBuffer.allocate(ROW_WIDTH)).isCompletedExceptionally());
+      table.flush();
+    }
+
+    try (Table table = Table.createInstance(file, ROW_WIDTH, true)) {
+      assertEquals(appends + appends / 2 + 1, table.getRowCount());
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      table.read(0, row);
+      assertEquals(-1, row.getLong(0));
+      row.clear();
+      table.read(table.getRowCount() - 1, row);
+      assertEquals(-2, row.getLong(0));
+    }
+  }
+
+
+  @Test
+  public void testWriteFailures() throws Exception {
+    initUnitTestDir(new Object() { });
+    File file = new File(unitTestDir(), "async");
+    try (AsyncTable table = AsyncTable.open(file, ROW_WIDTH)) {
+      table.append(ByteBuffer.allocate(ROW_WIDTH)).get();
+    }
+
+    // read-only instances reject writes up front
+    try (AsyncTable table = AsyncTable.open(file, ROW_WIDTH, true, 1)) {
+      for (int i = 0; i < 3; ++i) {
+        CompletableFuture<Long> append = table.append(ByteBuffer.allocate(ROW_WIDTH));
+        ExecutionException x = assertThrows(ExecutionException.class, append::get);
+        assertTrue(x.getCause() instanceof NonWritableChannelException);
+      }
+      // (no permits leaked)
+      assertFalse(table.read(0, ByteBuffer.allocate(ROW_WIDTH)).get().hasRemaining());
+    }
+
+    // a failed write fails the instance's appends, instead of leaving them pending
+    Table readOnly = Table.createInstance(file, ROW_WIDTH, true);
+    AsynchronousFileChannel channel =
+        AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try (AsyncTable table = new AsyncTable(readOnly, channel, 1)) {
+      CompletableFuture<Long> first = table.append(ByteBuffer.allocate(ROW_WIDTH));
+      assertThrows(ExecutionException.class, first::get);
+      CompletableFuture<Long> second = table.append(ByteBuffer.allocate(ROW_WIDTH));
+      assertTrue(second.isCompletedExceptionally());
+      assertEquals(1, table.getRowCount());
+    }
+  }
+
+
+  @Test
+  public void testSetInvalidatesBlockCache() throws Exception {
+    initUnitTestDir(new Object() { });
+    try (AsyncTable table = AsyncTable.open(new File(unitTestDir(), "async"), ROW_WIDTH)) {
+      for (int i = 0; i < 8; ++i)
+        table.append(ByteBuffer.allocate(ROW_WIDTH).putLong(0, i)).get();
+      BlockCache cache = new BlockCache(64, 4);
+      table.table().setBlockCache(cache);
+
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      table.table().read(1, row);
+      assertEquals(1, row.getLong(0));
+      assertEquals(1, cache.getCachedBlockCount());
+
+      table.set(1, ByteBuffer.allocate(ROW_WIDTH).putLong(0, -1)).get();
+      table.table().read(1, row.clear());
+      assertEquals(-1, row.getLong(0));
+    }
+  }
+
+
+  @Test
+  public void testBadArgs() throws IOException {
+    initUnitTestDir(new Object() { });
+    try (AsyncTable table = AsyncTable.open(new File(unitTestDir(), "async"), ROW_WIDTH)) {
+      assertTrue(table.append(ByteBuffer.allocate(ROW_WIDTH - 1)).isCompletedExceptionally());
+      assertTrue(table.set(1, ByteBuffer.allocate(ROW_WIDTH)).isCompletedExceptionally());
+    }
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.TableSetIterator;
+import io.crums.io.store.table.merge.SetMergeSort;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ */
+public class BlockSortedTableTest extends TableTestHarness {
+
+  /**
+   * Key (long), timestamp (long), and a 24 byte value (mostly zeroes).
+   */
+  private final static int ROW_WIDTH = 40;
+  private final static RowOrder ORDER = RowOrders.LONG_ORDER;
+
+
+  @Test
+  public void testCodecRoundTrip() throws IOException {
+    Random random = new Random(7);
+    for (int length : new int[] { 0, 1, 3, 4, 15, 16, 300, 5000, 70_000 }) {
+      byte[] src = new byte[length];
+      for (int i = 0; i < length; ++i)
+        src[i] = (byte) (i % 97 < 60 ? i / 40 : random.nextInt());
+      assertRoundTrip(src);
+      random.nextBytes(src);
+      assertRoundTrip(src);
+    }
+  }
+
+
+  private void assertRoundTrip(byte[] src) throws IOException {
+    BlockCodec codec = LzBlockCodec.INSTANCE;
+    byte[] encoded = new byte[codec.maxEncodedLength(src.length)];
+    int encodedLength = codec.encode(src, src.length, 1, encoded);
+    byte[] decoded = new byte[src.length];
+    codec.decode(encoded, encodedLength, 1, decoded);
+    assertArrayEquals(src, decoded);
+  }
+
+
+  @Test
+  public void testSearchAndScan() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 10_000;
+    SortedTable raw = newRawTable("raw", rowCount);
+
+    File file = new File(unitTestDir(), "bst");
+    long size = BlockSortedTable.write(raw, file, LzBlockCodec.INSTANCE, 100);
+    long rawSize = ((long) rowCount) * ROW_WIDTH;
+    log.log(System.Logger.Level.INFO, "compressed " + rawSize + " bytes to " + size);
+    assertTrue(size < rawSize / 2);
+
+    try (BlockSortedTable table = BlockSortedTable.open(file, ORDER, 8)) {
+      assertEquals(rowCount, table.getRowCount());
+      assertEquals(100, table.getBlockCount());
+
+      // full read, straddling blocks
+      ByteBuffer expected = ByteBuffer.allocate(rowCount * ROW_WIDTH);
+      raw.read(0, expected);
+      ByteBuffer actual = ByteBuffer.allocate(rowCount * ROW_WIDTH);
+      table.read(0, actual);
+      assertEquals(expected.flip(), actual.flip());
+      ByteBuffer some = ByteBuffer.allocate(250 * ROW_WIDTH);
+      table.read(4950, some);
+      assertEquals(expected.slice(4950 * ROW_WIDTH, 250 * ROW_WIDTH), some.flip());
+
+      ByteBuffer key = ByteBuffer.allocate(8);
+      for (int i = 0; i < rowCount; i += 7) {
+        ByteBuffer row = table.search(key.clear().putLong(3L * i).flip());
+        assertNotNull(row, "key " + 3L * i);
+        assertEquals(timestamp(i), row.getLong(8));
+        assertNull(table.search(key.clear().putLong(3L * i + 1).flip()));
+      }
+      assertNull(table.search(key.clear().putLong(-1).flip()));
+
+      assertThrows(UnsupportedOperationException.class,
+          () -> table.append(ByteBuffer.allocate(ROW_WIDTH)));
+    }
+    raw.close();
+  }
+
+
+  @Test
+  public void testInTableSet() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 3_000;
+    File file = new File(unitTestDir(), "bst");
+    try (SortedTable raw = newRawTable("raw", rowCount)) {
+      BlockSortedTable.write(raw, file, LzBlockCodec.INSTANCE, 64);
+    }
+
+    // a newer (raw) table overriding every 10th key, and adding the keys in between
+    long[] newKeys = new long[2 * (rowCount / 10)];
+    for (int i = 0; i < newKeys.length; i += 2) {
+      newKeys[i] = 15L * i;
+      newKeys[i + 1] = 15L * i + 1;
+    }
+    SortedTable newer = newRawTable("newer", newKeys, -1);
+
+    TableSet tableSet = new TableSet(
+        new SortedTable[] { BlockSortedTable.open(file, ORDER), newer });
+    try {
+      TableSetIterator iter = tableSet.iterator();
+      iter.init(ByteBuffer.allocate(8).putLong(0, 0), Direction.FORWARD);
+      int count = 0;
+      long lastKey = -1;
+      for (ByteBuffer row; (row = iter.next()) != null; ++count) {
+        long key = row.getLong(0);
+        assertTrue(key > lastKey);
+        lastKey = key;
+        if (key % 30 == 0 || key % 30 == 1)
+          assertEquals(-1, row.getLong(16), "key " + key);
+        else
+          assertEquals(0, row.getLong(16), "key " + key);
+      }
+      assertEquals(rowCount + rowCount / 10, count);
+    } finally {
+      tableSet.close();
+    }
+  }
+
+
+  @Test
+  public void testPrefixCodec() throws IOException {
+    for (int interval : new int[] { 1, 3, 16 }) {
+      PrefixBlockCodec codec = new PrefixBlockCodec(interval);
+      for (int rows : new int[] { 1, 2, 15, 16, 17, 100 }) {
+        ByteBuffer block = ByteBuffer.allocate(rows * ROW_WIDTH);
+        for (int i = 0; i < rows; ++i)
+          block.putLong(3L * i).putLong(timestamp(i)).putLong(i % 5).putLong(0).putLong(-i);
+        byte[] src = block.array();
+        byte[] encoded = new byte[codec.maxEncodedLength(src.length)];
+        int encodedLength = codec.encode(src, src.length, ROW_WIDTH, encoded);
+        byte[] decoded = new byte[src.length];
+        PrefixBlockCodec.INSTANCE.decode(encoded, encodedLength, ROW_WIDTH, decoded);
+        assertArrayEquals(src, decoded);
+
+        ByteBuffer some = ByteBuffer.allocate((rows / 2) * ROW_WIDTH);
+        codec.decodeRows(encoded, encodedLength, ROW_WIDTH, rows - rows / 2, rows / 2, some);
+        assertEquals(block.clear().slice((rows - rows / 2) * ROW_WIDTH, some.capacity()), some.flip());
+
+        ByteBuffer key = ByteBuffer.allocate(8);
+        ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+        for (int i = 0; i < rows; ++i) {
+          key.clear().putLong(3L * i).flip();
+          assertEquals(i, codec.search(encoded, encodedLength, ROW_WIDTH, key, ORDER, row.clear()));
+          assertEquals(timestamp(i), row.getLong(8));
+          key.clear().putLong(3L * i + 1).flip();
+          assertEquals(-i - 2, codec.search(encoded, encodedLength, ROW_WIDTH, key, ORDER, null));
+        }
+        key.clear().putLong(-1).flip();
+        assertEquals(-1, codec.search(encoded, encodedLength, ROW_WIDTH, key, ORDER, null));
+      }
+    }
+  }
+
+
+  @Test
+  public void testMergeToPrefixBlocks() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 5_000;
+    long[] evens = new long[rowCount];
+    long[] odds = new long[rowCount];
+    for (int i = 0; i < rowCount; ++i) {
+      evens[i] = 6L * i;
+      odds[i] = 6L * i + 3;
+    }
+    File file = new File(unitTestDir(), "bst");
+    long size;
+    try (SortedTable a = newRawTable("a", evens, 0);
+         SortedTable b = newRawTable("b", odds, 0)) {
+      BlockSortedTableWriter writer =
+          BlockSortedTableWriter.create(file, ROW_WIDTH, ORDER, PrefixBlockCodec.INSTANCE, 256);
+      new SetMergeSort(writer, new SortedTable[] { a, b }).mergeToTarget();
+      assertEquals(2 * rowCount, writer.getRowCount());
+      size = writer.finish();
+      writer.close();
+    }
+    long rawSize = 2L * rowCount * ROW_WIDTH;
+    log.log(System.Logger.Level.INFO, "prefix coded " + rawSize + " bytes to " + size);
+    // (only the keys' high bytes are shared, so the savings are modest)
+    assertTrue(size < rawSize * 9 / 10);
+
+    try (BlockSortedTable table = BlockSortedTable.open(file, ORDER, 4)) {
+      assertEquals(2 * rowCount, table.getRowCount());
+      ByteBuffer rows = ByteBuffer.allocate(2 * rowCount * ROW_WIDTH);
+      table.read(0, rows);
+      rows.flip();
+      for (int i = 0; i < 2 * rowCount; ++i)
+        assertEquals(3L * i, rows.getLong(i * ROW_WIDTH));
+
+      ByteBuffer key = ByteBuffer.allocate(8);
+      SortedTable.Searcher searcher = table.newSearcher(SortedTable.Searcher.MIN_BUFFER_ROWS);
+      for (int i = 0; i < 2 * rowCount; i += 11) {
+        key.clear().putLong(3L * i).flip();
+        ByteBuffer row = table.search(key);
+        assertNotNull(row, "key " + 3L * i);
+        assertEquals(timestamp(i), row.getLong(8));
+        assertTrue(searcher.search(key));
+        assertEquals(i, searcher.getHitRowNumber());
+        assertNull(table.search(key.clear().putLong(3L * i + 2).flip()));
+      }
+    }
+  }
+
+
+  /**
+   * Creates a raw sorted table with the given keys (and value field).
+   */
+  private SortedTable newRawTable(String name, long[] keys, long value) throws IOException {
+    FileChannel ch = openFile(name, false);
+    ByteBuffer rows = ByteBuffer.allocate(keys.length * ROW_WIDTH);
+    for (long key : keys)
+      rows.putLong(key).putLong(timestamp(key / 3)).putLong(value).putLong(0).putLong(key & 0xff);
+    ChannelUtils.writeRemaining(ch, rows.flip());
+    ch.position(0);
+    return new SortedTable(ch, ROW_WIDTH, ORDER);
+  }
+
+
+  /**
+   * Keys <code>3 * i</code>, value zero.
+   */
+  private SortedTable newRawTable(String name, int rowCount) throws IOException {
+    long[] keys = new long[rowCount];
+    for (int i = 0; i < rowCount; ++i)
+      keys[i] = 3L * i;
+    return newRawTable(name, keys, 0);
+  }
+
+
+  private static long timestamp(long i) {
+    return 1_700_000_000_000L + 1000L * i;
+  }
+
+}
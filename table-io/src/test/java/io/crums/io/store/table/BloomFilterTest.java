@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.block.Covenant;
+import io.crums.io.store.table.merge.SetMergeSort;
+import io.crums.io.store.table.order.KeyHasher;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ */
+public class BloomFilterTest extends TableTestHarness {
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+
+  @Test
+  public void testFlushAndReload() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowWidth = 8;
+    final int count = 10_000;
+
+    SortedTableBuilder builder = new SortedTableBuilder(rowWidth, ORDER);
+    ByteBuffer rows = ByteBuffer.allocate(count * rowWidth);
+    for (int i = 0; i < count; ++i)
+      rows.putInt(2 * i).putInt(i);
+    builder.putRows(rows.flip(), Covenant.WONT_MOD);
+
+    FileChannel file = openFile(0, false);
+    BloomFilter filter = builder.flush(file, true, BloomFilter.DEFAULT_FPP);
+    SortedTable table = new SortedTable(file, 0, rowWidth, ORDER);
+    assertEquals(count, filter.getRowCount());
+    assertEquals(count, table.getRowCount());
+
+    File sidecar = new File(unitTestDir(), "table_0.bloom");
+    filter.save(sidecar);
+    table.setBloomFilter(BloomFilter.load(sidecar));
+
+    // a filter hashing the wrong region is rejected
+    BloomFilter mismatched = BloomFilter.newInstance(KeyHasher.forRegion(4, 4), count, BloomFilter.DEFAULT_FPP);
+    assertThrows(IllegalArgumentException.class, () -> table.setBloomFilter(mismatched));
+
+    int falsePositives = assertFilter(table, count);
+    assertTrue(falsePositives < count * BloomFilter.DEFAULT_FPP * 2, "false positives: " + falsePositives);
+
+    // a stale filter is ignored
+    table.append(ByteBuffer.allocate(rowWidth).putInt(0, 2 * count + 1));
+    assertTrue(table.mayContain(ByteBuffer.allocate(4).putInt(2 * count + 1).flip()));
+    table.close();
+  }
+
+
+  @Test
+  public void testMergeAndTableSet() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowWidth = 4;
+    int[][] tableValues = {
+        { 1, 3, 5, 7, 9, 11 },
+        { 2, 6, 10, 14 },
+        { 3, 100, 200 },
+    };
+    SortedTable[] tables = new SortedTable[tableValues.length];
+    for (int t = 0; t < tables.length; ++t) {
+      tables[t] = initIntTable(rowWidth, ORDER, tableValues[t], t);
+      tables[t].setBloomFilter(BloomFilter.build(tables[t], BloomFilter.DEFAULT_FPP));
+    }
+
+    try (TableSet set = new TableSet(tables)) {
+      ByteBuffer key = ByteBuffer.allocate(rowWidth);
+      for (int[] values : tableValues)
+        for (int value : values)
+          assertEquals(value, set.getRow(key.clear().putInt(value).flip()).getInt(0));
+      for (int value : new int[] { 0, 4, 8, 12, 99, 201 })
+        assertNull(set.getRow(key.clear().putInt(value).flip()));
+
+      SortedTable target = new SortedTable(openFile("merged", false), rowWidth, ORDER);
+      SetMergeSort merge = new SetMergeSort(target, tables);
+      merge.setBloomFilterFpp(BloomFilter.DEFAULT_FPP);
+      merge.mergeToTarget();
+      assertNotNull(target.getBloomFilter());
+      assertEquals(target.getRowCount(), target.getBloomFilter().getRowCount());
+      for (int[] values : tableValues)
+        for (int value : values)
+          assertTrue(target.mayContain(key.clear().putInt(value).flip()));
+      target.close();
+    }
+  }
+
+
+  /**
+   * Asserts there are no false negatives for the even keys in the table, and returns
+   * the number of false positives for the odd keys.
+   */
+  private int assertFilter(SortedTable table, int count) throws IOException {
+    ByteBuffer key = ByteBuffer.allocate(4);
+    int falsePositives = 0;
+    for (int i = 0; i < count; ++i) {
+      key.clear().putInt(2 * i).flip();
+      assertTrue(table.mayContain(key));
+      assertNotNull(table.search(key));
+      key.clear().putInt(2 * i + 1).flip();
+      if (table.mayContain(key))
+        ++falsePositives;
+      else
+        assertNull(table.search(key));
+    }
+    return falsePositives;
+  }
+
+}
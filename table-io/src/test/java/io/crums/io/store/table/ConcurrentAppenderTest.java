@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class ConcurrentAppenderTest extends TableTestHarness {
+
+  private final static int ROW_WIDTH = 16;
+
+
+  @Test
+  public void testConcurrentAppends() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int threads = 8;
+    final int appendsPerThread = 200;
+    File file = new File(unitTestDir(), "ca");
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (Table table = Table.createInstance(file, ROW_WIDTH)) {
+      // a pre-existing row
+      table.append(ByteBuffer.allocate(ROW_WIDTH).putLong(0, -1));
+
+      ConcurrentAppender appender = new ConcurrentAppender(table);
+      List<Future<long[]>> results = new ArrayList<>();
+      for (int t = 0; t < threads; ++t) {
+        final int thread = t;
+        results.add(executor.submit(() -> {
+          long[] rowNumbers = new long[appendsPerThread];
+          for (int i = 0; i < appendsPerThread; ++i) {
+            // 1 or 2 rows per append
+            int rows = 1 + (i & 1);
+            ByteBuffer data = ByteBuffer.allocate(rows * ROW_WIDTH);
+            for (int r = 0; r < rows; ++r)
+              data.putLong(r * ROW_WIDTH, thread).putLong(r * ROW_WIDTH + 8, i);
+            rowNumbers[i] = appender.append(data);
+          }
+          return rowNumbers;
+        }));
+      }
+
+      final long total = 1 + threads * (appendsPerThread + appendsPerThread / 2);
+      // (a row is readable only once all rows before it are written)
+      List<long[]> rowNumbersPerThread = new ArrayList<>();
+      for (Future<long[]> result : results)
+        rowNumbersPerThread.add(result.get());
+
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      for (int t = 0; t < threads; ++t) {
+        long[] rowNumbers = rowNumbersPerThread.get(t);
+        for (int i = 0; i < appendsPerThread; ++i) {
+          row.clear();
+          table.read(rowNumbers[i], row);
+          assertEquals(t, row.getLong(0));
+          assertEquals(i, row.getLong(8));
+        }
+      }
+      assertEquals(total, appender.getReservedCount());
+      assertEquals(total, appender.getPublishedCount());
+      assertEquals(total, table.getRowCount());
+    } finally {
+      executor.shutdown();
+    }
+
+    try (Table table = Table.createInstance(file, ROW_WIDTH, true)) {
+      assertEquals(1 + threads * (appendsPerThread + appendsPerThread / 2), table.getRowCount());
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      table.read(0, row);
+      assertEquals(-1, row.getLong(0));
+    }
+  }
+
+}
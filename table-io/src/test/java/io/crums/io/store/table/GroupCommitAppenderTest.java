@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class GroupCommitAppenderTest extends TableTestHarness {
+
+  private final static int ROW_WIDTH = 16;
+
+
+  @Test
+  public void testConcurrentAppends() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int threads = 8;
+    final int appendsPerThread = 100;
+    File file = new File(unitTestDir(), "gc");
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (Table table = Table.createInstance(file, ROW_WIDTH)) {
+      GroupCommitAppender appender = new GroupCommitAppender(table);
+      List<Future<long[]>> results = new ArrayList<>();
+      for (int t = 0; t < threads; ++t) {
+        final int thread = t;
+        results.add(executor.submit(() -> {
+          long[] rowNumbers = new long[appendsPerThread];
+          for (int i = 0; i < appendsPerThread; ++i) {
+            ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH).putLong(thread).putLong(i).flip();
+            rowNumbers[i] = appender.append(row).get();
+          }
+          return rowNumbers;
+        }));
+      }
+
+      final int total = threads * appendsPerThread;
+      for (int t = 0; t < threads; ++t) {
+        long[] rowNumbers = results.get(t).get();
+        ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+        for (int i = 0; i < appendsPerThread; ++i) {
+          row.clear();
+          table.read(rowNumbers[i], row);
+          assertEquals(t, row.getLong(0));
+          assertEquals(i, row.getLong(8));
+        }
+      }
+      assertEquals(total, table.getRowCount());
+      assertEquals(total, appender.getAppendCount());
+      assertTrue(appender.getCommitCount() <= total);
+      log.log(System.Logger.Level.INFO,
+          total + " appends in " + appender.getCommitCount() + " group commits");
+
+      appender.close();
+      assertTrue(appender.append(ByteBuffer.allocate(ROW_WIDTH)).isCompletedExceptionally());
+    } finally {
+      executor.shutdown();
+    }
+
+    try (Table table = Table.createInstance(file, ROW_WIDTH, true)) {
+      assertEquals(threads * appendsPerThread, table.getRowCount());
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ */
+public class OffHeapTableBuilderTest extends TableTestHarness {
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+  private final static int ROW_WIDTH = 12;
+
+
+  @Test
+  public void testPutGetAndFlush() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int puts = 50_000;
+    final int keyRange = 20_000;
+
+    // small pages, to cross page boundaries
+    OffHeapTableBuilder builder = new OffHeapTableBuilder(ROW_WIDTH, ORDER, 100 * ROW_WIDTH + 5);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    Random random = new Random(puts);
+    ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+    ByteBuffer key = ByteBuffer.allocate(4);
+
+    for (int i = 0; i < puts; ++i) {
+      int k = random.nextInt(keyRange);
+      expected.put(k, i);
+      builder.putRow(row.clear().putInt(k).putInt(i).putInt(~k).flip());
+
+      // interleave lookups, so that later sorts merge into a sorted prefix
+      if (i % 9_999 == 0) {
+        assertEquals(expected.size(), builder.getRowCount());
+        ByteBuffer found = builder.getRow(key.clear().putInt(k).flip());
+        assertNotNull(found);
+        assertEquals(i, found.getInt(4));
+        assertNull(builder.getRow(key.clear().putInt(keyRange + 1).flip()));
+      }
+    }
+    assertEquals(expected.size(), builder.getRowCount());
+
+    try (FileChannel file = openFile("flushed", false)) {
+      builder.flush(file, true);
+      assertTrue(builder.isEmpty());
+
+      SortedTable table = new SortedTable(file, 0, ROW_WIDTH, ORDER);
+      assertEquals(expected.size(), table.getRowCount());
+      long index = 0;
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+        row.clear();
+        table.read(index++, row);
+        assertEquals(entry.getKey().intValue(), row.getInt(0));
+        assertEquals(entry.getValue().intValue(), row.getInt(4));
+        assertEquals(~entry.getKey(), row.getInt(8));
+      }
+    }
+  }
+
+
+  @Test
+  public void testInterleavedPutsAndGets() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int puts = 100_000;
+    final int keyRange = 3_000;
+
+    OffHeapTableBuilder builder = new OffHeapTableBuilder(ROW_WIDTH, ORDER, 100 * ROW_WIDTH);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    Random random = new Random(puts);
+    ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+    ByteBuffer key = ByteBuffer.allocate(4);
+
+    // a lookup after every put (mostly overwrites, so slots are reclaimed)
+    for (int i = 0; i < puts; ++i) {
+      int k = random.nextInt(keyRange);
+      expected.put(k, i);
+      builder.putRow(row.clear().putInt(k).putInt(i).putInt(~k).flip());
+
+      int lookup = random.nextInt(keyRange);
+      Integer value = expected.get(lookup);
+      key.clear().putInt(lookup).flip();
+      if (value == null)
+        assertFalse(builder.readRow(key, row.clear()));
+      else {
+        assertTrue(builder.readRow(key, row.clear()));
+        assertEquals(value.intValue(), row.getInt(4));
+        assertEquals(~lookup, row.getInt(8));
+      }
+    }
+    assertEquals(expected.size(), builder.getRowCount());
+
+    try (FileChannel file = openFile("flushed", false)) {
+      builder.flush(file, true);
+      SortedTable table = new SortedTable(file, 0, ROW_WIDTH, ORDER);
+      assertEquals(expected.size(), table.getRowCount());
+      long index = 0;
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+        row.clear();
+        table.read(index++, row);
+        assertEquals(entry.getKey().intValue(), row.getInt(0));
+        assertEquals(entry.getValue().intValue(), row.getInt(4));
+      }
+    }
+  }
+
+}
@@ -14,6 +14,7 @@ import java.lang.System.Logger.Level;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.jupiter.api.Test;
@@ -308,7 +309,277 @@ public class SortedTableTest extends IoTestCase {
     showSearchStats(searcher);
   }
   
-  private void showSearchStats(Searcher searcher) {
+  @Test
+  public void testFenceIndex() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 4;
+    final int stride = 16;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10_003);
+    
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    
+    SortedTable table = initIntTable(rowSize, order, values);
+    table = reload(table);
+    
+    FenceIndex fences = table.buildFenceIndex(stride);
+    assertEquals((values.length + stride - 1) / stride, fences.getFenceCount());
+    
+    Searcher searcher = table.newSearcher(stride);
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    assertTrue(searcher.getReadOpStats().getMax() <= 1);
+    
+    // save and reload the index
+    File sidecar = new File(filepath.getPath() + ".fence");
+    fences.save(sidecar);
+    table.setFenceIndex(null);
+    table.setFenceIndex(FenceIndex.load(sidecar, table));
+    assertEquals(fences.getRowCount(), table.getFenceIndex().getRowCount());
+    
+    searcher.clearProfilers();
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    assertTrue(searcher.getReadOpStats().getMax() <= 1);
+    
+    // rows appended after the index was built are still found
+    int[] moreValues = new int[values.length + 100];
+    System.arraycopy(values, 0, moreValues, 0, values.length);
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    for (int i = values.length; i < moreValues.length; ++i) {
+      moreValues[i] = moreValues[i - 1] + 3;
+      table.append(row.clear().putInt(moreValues[i]).flip());
+    }
+    testKeyResults = generateTestKeysAndExpectedResults(moreValues);
+    doSearchTest(searcher, moreValues, testKeyResults[0], testKeyResults[1]);
+  }
+  
+  
+    @Test
+  public void testPivotCache() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 4;
+    final int levels = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10_003);
+    
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    
+    SortedTable table = initIntTable(rowSize, order, values);
+    table = reload(table);
+    
+    Searcher searcher = table.newSearcher(Searcher.MIN_BUFFER_ROWS);
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    double uncachedReads = searcher.getReadOpStats().getMean();
+    
+    table.setPivotCacheLevels(levels);
+    // first pass fills the cache..
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    searcher.clearProfilers();
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    double cachedReads = searcher.getReadOpStats().getMean();
+    assertTrue(
+        cachedReads <= uncachedReads - levels + 0.5,
+        "uncached: " + uncachedReads + "; cached: " + cachedReads);
+    
+    // the cache is invalidated on append
+    int[] moreValues = new int[values.length + 100];
+    System.arraycopy(values, 0, moreValues, 0, values.length);
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    for (int i = values.length; i < moreValues.length; ++i) {
+      moreValues[i] = moreValues[i - 1] + 3;
+      table.append(row.clear().putInt(moreValues[i]).flip());
+      if (i % 10 == 0) {
+        testKeyResults = generateTestKeysAndExpectedResults(moreValues);
+        doSearchTest(
+            searcher, Arrays.copyOf(moreValues, i + 1),
+            Arrays.copyOf(testKeyResults[0], 3 * (i + 1)),
+            Arrays.copyOf(testKeyResults[1], 3 * (i + 1)));
+      }
+    }
+  }
+  
+  
+    @Test
+  public void testSearchAll() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 4;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10_003);
+    
+    // the generated keys are not quite sorted: sort them (and their expected results)
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    Integer[] sortedIndices = new Integer[testKeyResults[0].length];
+    for (int i = 0; i < sortedIndices.length; ++i)
+      sortedIndices[i] = i;
+    Arrays.sort(sortedIndices, (a, b) -> Integer.compare(testKeyResults[0][a], testKeyResults[0][b]));
+    int[] searchKeys = new int[sortedIndices.length];
+    int[] expectedResults = new int[sortedIndices.length];
+    for (int i = 0; i < sortedIndices.length; ++i) {
+      searchKeys[i] = testKeyResults[0][sortedIndices[i]];
+      expectedResults[i] = testKeyResults[1][sortedIndices[i]];
+    }
+    
+    SortedTable table = reload(initIntTable(rowSize, order, values));
+    
+    ByteBuffer[] keys = new ByteBuffer[searchKeys.length];
+    for (int i = 0; i < keys.length; ++i)
+      keys[i] = ByteBuffer.allocate(rowSize).putInt(searchKeys[i]).flip();
+    
+    for (int pass = 0; pass < 2; ++pass) {
+      if (pass == 1)
+        table.buildFenceIndex(64);
+      
+      Searcher searcher = table.newSearcher(64);
+      long[] results = new long[keys.length];
+      ByteBuffer[] rows = new ByteBuffer[keys.length];
+      int hits = searcher.searchAll(keys, results, rows);
+      int expectedHits = 0;
+      for (int i = 0; i < keys.length; ++i) {
+        assertEquals(expectedResults[i], results[i], "at index " + i);
+        if (results[i] >= 0) {
+          ++expectedHits;
+          assertEquals(searchKeys[i], rows[i].getInt(0));
+        } else
+          assertNull(rows[i]);
+      }
+      assertEquals(expectedHits, hits);
+      // far fewer reads than 1 search per key
+      assertTrue(searcher.getReadOpStats().sum() < keys.length / 4);
+    }
+    
+    // sparse keys
+    ByteBuffer[] sparse = { keys[0], keys[keys.length / 2], keys[keys.length - 1] };
+    ByteBuffer[] rows = table.searchAll(sparse);
+    ByteBuffer[] found = new ByteBuffer[sparse.length];
+    for (int i = 0; i < sparse.length; ++i)
+      found[i] = table.search(sparse[i]);
+    // (the rows returned are copies: not overwritten by later searches)
+    for (int i = 0; i < sparse.length; ++i)
+      assertEquals(rows[i], found[i]);
+    
+    // unsorted keys
+    assertThrows(IllegalArgumentException.class, () -> table.searchAll(new ByteBuffer[] { keys[1], keys[0] }));
+  }
+  
+  
+  @Test
+  public void testGallop() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 4;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10_003);
+    SortedTable table = reload(initIntTable(rowSize, order, values));
+    Searcher searcher = table.newSearcher(16);
+    ByteBuffer key = ByteBuffer.allocate(rowSize);
+    Random rand = new Random(1);
+    
+    // ascending keys, each galloping from where the last one landed (as in a merge)
+    long fromRow = 0;
+    for (int k = values[0] - 1; k <= values[values.length - 1] + 1; k += 1 + rand.nextInt(40)) {
+      key.clear().putInt(k).flip();
+      int expected = Arrays.binarySearch(values, k);
+      assertEquals(expected >= 0, searcher.gallop(key, fromRow), "key " + k);
+      assertEquals(expected, searcher.getHitRowNumber(), "key " + k);
+      if (expected >= 0)
+        assertEquals(k, searcher.getHitRow().getInt(0));
+      fromRow = expected >= 0 ? expected : -expected - 1;
+    }
+    
+    // random keys, from random rows before them
+    for (int i = 0; i < 1000; ++i) {
+      int index = rand.nextInt(values.length);
+      int k = values[index] + rand.nextInt(3) - 1;
+      key.clear().putInt(k).flip();
+      int expected = Arrays.binarySearch(values, k);
+      long insertion = expected >= 0 ? expected : -expected - 1;
+      fromRow = rand.nextInt((int) insertion + 1);
+      searcher.gallop(key, fromRow);
+      assertEquals(expected, searcher.getHitRowNumber(), "key " + k + " from row " + fromRow);
+    }
+    
+    // near keys take few reads
+    searcher.clearProfilers();
+    key.clear().putInt(values[5_002]).flip();
+    assertTrue(searcher.gallop(key, 5_000));
+    assertTrue(searcher.getReadOpStats().sum() <= 3);
+    
+    assertThrows(IllegalArgumentException.class, () -> searcher.gallop(key, values.length + 1));
+  }
+  
+  
+  @Test
+  public void testInterpolationSearch() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 4;
+    RowOrder order = RowOrders.INT_ORDER;
+    
+    // uniformly distributed keys (as if hashes)
+    Random random = new Random(11);
+    int[] values = new int[100_000];
+    for (int i = 0; i < values.length; ++i)
+      values[i] = random.nextInt();
+    Arrays.sort(values);
+    for (int i = 1; i < values.length; ++i)
+      if (values[i] <= values[i - 1])
+        values[i] = values[i - 1] + 1;
+    
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    SortedTable table = reload(initIntTable(rowSize, order, values));
+    
+    Searcher searcher = table.newSearcher(16);
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    double bisectionReads = searcher.getReadOpStats().getMean();
+    
+    table.setInterpolationSearch(true);
+    assertTrue(table.isInterpolationSearch());
+    searcher.clearProfilers();
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    double interpolatedReads = searcher.getReadOpStats().getMean();
+    log.log(Level.INFO,
+        "mean reads per search: bisection " + bisectionReads + "; interpolated " + interpolatedReads);
+    assertTrue(interpolatedReads < 3, "interpolated: " + interpolatedReads);
+    assertTrue(interpolatedReads < bisectionReads / 4);
+    
+    // with a fence index
+    table.buildFenceIndex(1024);
+    searcher.clearProfilers();
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    assertTrue(searcher.getReadOpStats().getMean() < 3);
+    table.close();
+    file.close();
+    
+    // skewed keys are still found (with more reads)
+    setup(new Object() { });
+    int[] skewed = new int[10_003];
+    for (int i = 0; i < skewed.length; ++i)
+      skewed[i] = i < skewed.length - 10 ? 2 * i : Integer.MAX_VALUE - 2 * (skewed.length - i);
+    testKeyResults = generateTestKeysAndExpectedResults(skewed);
+    table = reload(initIntTable(rowSize, order, skewed));
+    table.setInterpolationSearch(true);
+    searcher = table.newSearcher(Searcher.MIN_BUFFER_ROWS);
+    doSearchTest(searcher, skewed, testKeyResults[0], testKeyResults[1]);
+    
+    RowOrder noPrefix = new RowOrder() {
+      @Override
+      public int compareRows(ByteBuffer rowA, ByteBuffer rowB) {
+        return 0;
+      }
+    };
+    SortedTable other = new SortedTable(file, rowSize, noPrefix);
+    assertThrows(UnsupportedOperationException.class, () -> other.setInterpolationSearch(true));
+  }
+  
+  
+    private void showSearchStats(Searcher searcher) {
     log.log(Level.INFO, "Profiler stats.. (in microseconds)");
     showProf(searcher.getProfiler());
     log.log(Level.INFO, "Block search profiler stats.. (in microseconds)");
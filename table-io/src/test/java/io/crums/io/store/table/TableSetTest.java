@@ -8,14 +8,25 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
 
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.TableSetIterator;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.io.store.table.order.RowOrders;
 
@@ -118,6 +129,138 @@ public class TableSetTest extends TableTestHarness {
   }
   
   
+  @Test
+  public void testScanWithReadAhead() throws IOException {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(1);
+    final int tableCount = 4;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(0, rand, 4, 40_000 >> i);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    TableSet tableSet = new TableSet(createIntTableSet(8, tableValues, expected));
+
+    ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+    try {
+      TableSetIterator iter = tableSet.iterator();
+      // small windows, so that they grow and cap out
+      iter.setReadAhead(64 * 1024, prefetcher);
+      ByteBuffer key = ByteBuffer.allocate(4);
+
+      iter.init(key.clear().putInt(expected.firstKey()).flip(), Direction.FORWARD);
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet())
+        assertScanned(entry, iter.next());
+      assertNull(iter.next());
+
+      // reverse, from the middle (random access resets the read-ahead)
+      int middle = expected.lastKey() / 2;
+      iter.init(key.clear().putInt(middle).flip(), Direction.REVERSE);
+      for (Map.Entry<Integer, Integer> entry : expected.headMap(middle, true).descendingMap().entrySet())
+        assertScanned(entry, iter.next());
+      assertNull(iter.next());
+    } finally {
+      prefetcher.shutdown();
+      tableSet.close();
+    }
+  }
+  
+  
+  @Test
+  public void testScanWithRuns() throws IOException {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(3);
+    // time-ordered tables: each overlaps the next only a little
+    final int tableCount = 4;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(i * 18_000, rand, 3, 10_000);
+    // ..plus a few stragglers in the last table
+    tableValues[tableCount - 1][0] = 7;
+    tableValues[tableCount - 1][1] = 20_001;
+    Arrays.sort(tableValues[tableCount - 1]);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    TableSet tableSet = new TableSet(createIntTableSet(8, tableValues, expected));
+    try {
+      TableSetIterator iter = tableSet.iterator();
+      iter.init(Direction.FORWARD);
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet())
+        assertScanned(entry, iter.next());
+      assertNull(iter.next());
+      
+      // from the middle
+      int middle = expected.lastKey() / 2;
+      iter.init(ByteBuffer.allocate(4).putInt(middle).flip(), Direction.FORWARD);
+      for (Map.Entry<Integer, Integer> entry : expected.tailMap(middle, true).entrySet())
+        assertScanned(entry, iter.next());
+      assertNull(iter.next());
+      
+      // reverse (no galloping)
+      iter.init(Direction.REVERSE);
+      for (Map.Entry<Integer, Integer> entry : expected.descendingMap().entrySet())
+        assertScanned(entry, iter.next());
+      assertNull(iter.next());
+    } finally {
+      tableSet.close();
+    }
+  }
+  
+  
+  @Test
+  public void testPartitionedScan() throws IOException {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(2);
+    final int tableCount = 4;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(i * 7, rand, 5, 20_000 >> i);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    TableSet tableSet = new TableSet(createIntTableSet(8, tableValues, expected));
+    try {
+      // the partitions, iterated in order, yield the whole set
+      List<TableSet> parts = tableSet.partition(8);
+      assertTrue(parts.size() > 1 && parts.size() <= 8, "partitions: " + parts.size());
+      try {
+        Iterator<Map.Entry<Integer, Integer>> entries = expected.entrySet().iterator();
+        for (TableSet part : parts) {
+          TableSetIterator iter = part.iterator();
+          iter.init(Direction.FORWARD);
+          for (ByteBuffer row = iter.next(); row != null; row = iter.next())
+            assertScanned(entries.next(), row);
+        }
+        assertFalse(entries.hasNext());
+      } finally {
+        for (TableSet part : parts)
+          part.close();
+      }
+      
+      // parallel stream, collected in encounter order
+      List<ByteBuffer> rows;
+      try (Stream<ByteBuffer> stream = tableSet.stream(8)) {
+        rows = stream.collect(Collectors.toList());
+      }
+      assertEquals(expected.size(), rows.size());
+      int index = 0;
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet())
+        assertScanned(entry, rows.get(index++));
+      
+      // the base tables are still open
+      assertTrue(tableSet.tables().get(0).isOpen());
+      assertEquals(
+          expected.size(),
+          tableSet.stream(3).mapToInt(row -> row.getInt(0)).distinct().count());
+    } finally {
+      tableSet.close();
+    }
+  }
+  
+  
+  private void assertScanned(Map.Entry<Integer, Integer> expected, ByteBuffer row) {
+    assertNotNull(row, "key " + expected.getKey());
+    assertEquals(expected.getKey().intValue(), row.getInt(0));
+    assertEquals(expected.getValue().intValue(), guessIntTableIndexFromRow(row));
+  }
+  
+  
   private int[] generateValues(int next, Random rand, int unit, int count) {
     int[] values = new int[count];
     for (int i = 0; i < count; ++i) {
@@ -158,6 +301,29 @@ public class TableSetTest extends TableTestHarness {
       assertTrue(key.hasRemaining());
       assertEquals(expectedEntry.getValue().intValue(), guessIntTableIndexFromRow(row));
     }
+    
+    // batched lookups: all the values, and the (missing) values either side of them
+    TreeSet<Integer> sortedKeys = new TreeSet<>();
+    for (int v : expectedValuesWithTableIds.keySet()) {
+      sortedKeys.add(v - 1);
+      sortedKeys.add(v);
+      sortedKeys.add(v + 1);
+    }
+    ByteBuffer[] keys = new ByteBuffer[sortedKeys.size()];
+    int index = 0;
+    for (int v : sortedKeys)
+      keys[index++] = ByteBuffer.allocate(4).putInt(v).flip();
+    ByteBuffer[] rows = tableSet.getRows(keys);
+    for (int k = 0; k < keys.length; ++k) {
+      Integer tableId = expectedValuesWithTableIds.get(keys[k].getInt(0));
+      if (tableId == null)
+        assertNull(rows[k]);
+      else {
+        assertNotNull(rows[k], "key " + keys[k].getInt(0));
+        assertEquals(keys[k].getInt(0), rows[k].getInt(0));
+        assertEquals(tableId.intValue(), guessIntTableIndexFromRow(rows[k]));
+      }
+    }
     tableSet.close();
   }
   
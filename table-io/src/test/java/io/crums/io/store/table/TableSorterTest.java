@@ -14,6 +14,7 @@ import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 
+import io.crums.io.store.table.order.NaturalRowOrder;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.io.store.table.order.RowOrders;
 
@@ -27,6 +28,8 @@ public class TableSorterTest extends TableTestHarness {
   
   protected long beginSortNanos;
   protected long endSortNanos;
+  protected boolean parallel = true;
+  protected boolean radix = true;
 
   @Test
   public void simplest() throws IOException {
@@ -198,6 +201,165 @@ public class TableSorterTest extends TableTestHarness {
   
 
   
+  // external sorts (table bigger than memory buffer)
+  
+  @Test
+  public void testExternalSome() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = {
+        89, 23, 11, 12, 36, 9, 17, 54, 89, 3, 0
+    };
+    testImpl(values, ROW_WIDTH, 3 * ROW_WIDTH, TableSorter.DEFAULT_MAX_MERGE_FAN_IN);
+  }
+  
+  
+  @Test
+  public void testExternal16K() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = randomValues(16 * 1024 / ROW_WIDTH);
+    testImpl(values, ROW_WIDTH, 1024, TableSorter.DEFAULT_MAX_MERGE_FAN_IN);
+  }
+  
+  
+  @Test
+  public void testExternalMultiPass() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = randomValues(16 * 1024 / 8);
+    testImpl(values, 8, 256, 4);
+    for (String name : unitTestDir().list())
+      assertFalse(name.contains(".run-"), name);
+  }
+  
+  
+  @Test
+  public void testExternalFailureCleansUp() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowWidth = 8;
+    int[] values = randomValues(16 * 1024 / rowWidth);
+    File sortedFile = new File(unitTestDir(), "sorted");
+    
+    // count the comparisons in a successful sort, then fail at various points along the way
+    FailingOrder order = new FailingOrder(Long.MAX_VALUE);
+    try (Table unsorted = initIntTable(rowWidth, ORDER, values, 0)) {
+      newFailingSorter(order).sort(unsorted, sortedFile);
+    }
+    assertTrue(sortedFile.delete());
+    final long comparisons = order.count;
+    
+    for (int tenths = 1; tenths < 10; ++tenths) {
+      FailingOrder failing = new FailingOrder(comparisons * tenths / 10);
+      try (Table unsorted = initIntTable(rowWidth, ORDER, values, tenths)) {
+        assertThrows(Exception.class, () -> newFailingSorter(failing).sort(unsorted, sortedFile));
+      }
+      assertFalse(sortedFile.exists(), "tenths " + tenths);
+      for (String name : unitTestDir().list())
+        assertFalse(name.contains(".run-"), "tenths " + tenths + ": " + name);
+    }
+  }
+  
+  
+  private TableSorter newFailingSorter(RowOrder order) throws IOException {
+    TableSorter sorter = new TableSorter(ByteBuffer.allocate(256), order);
+    sorter.setMaxMergeFanIn(4);
+    sorter.setParallel(false);
+    return sorter;
+  }
+  
+  
+  /**
+   * Integer order without a prefix key that fails after a given number of comparisons.
+   */
+  private static class FailingOrder extends RowOrder {
+    
+    private final long limit;
+    private long count;
+    
+    FailingOrder(long limit) {
+      this.limit = limit;
+    }
+    
+    @Override
+    public int compareRows(ByteBuffer rowA, ByteBuffer rowB) {
+      if (++count > limit)
+        throw new IllegalStateException("comparison " + count);
+      return ORDER.compareRows(rowA, rowB);
+    }
+  }
+  
+  
+  @Test
+  public void testSequential64K() throws IOException {
+    initUnitTestDir(new Object() { });
+    parallel = false;
+    int[] values = randomValues(64 * 1024 / ROW_WIDTH);
+    testImpl(values, ROW_WIDTH);
+  }
+  
+  
+  @Test
+  public void testComparison64K() throws IOException {
+    initUnitTestDir(new Object() { });
+    radix = false;
+    int[] values = randomValues(64 * 1024 / ROW_WIDTH);
+    testImpl(values, ROW_WIDTH);
+  }
+  
+  
+  @Test
+  public void testRadixNaturalOrder() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowWidth = 12;
+    final int count = 4 * 1024;
+    // rows share long prefixes, so the (8 byte) prefix keys often tie
+    Random random = new Random(count);
+    byte[][] rows = new byte[count][rowWidth];
+    for (byte[] row : rows) {
+      for (int b = 0; b < rowWidth; ++b)
+        row[b] = (byte) (b < 6 ? random.nextInt(2) * 200 : random.nextInt());
+    }
+    File tableFile = new File(unitTestDir(), "unsorted");
+    File sortedFile = new File(unitTestDir(), "sorted");
+    try (Table unsorted = Table.createInstance(tableFile, rowWidth)) {
+      for (byte[] row : rows)
+        unsorted.append(ByteBuffer.wrap(row));
+      TableSorter sorter = new TableSorter(ByteBuffer.allocate(count * rowWidth), NaturalRowOrder.INSTANCE);
+      sorter.sort(unsorted, sortedFile);
+    }
+    
+    ByteBuffer[] expected = new ByteBuffer[count];
+    for (int i = 0; i < count; ++i)
+      expected[i] = ByteBuffer.wrap(rows[i]);
+    Arrays.sort(expected);
+    try (Table sorted = Table.newSansKeystoneInstance(
+        new RandomAccessFile(sortedFile, "r").getChannel(), rowWidth)) {
+      assertEquals(count, sorted.getRowCount());
+      ByteBuffer rowBuf = ByteBuffer.allocate(rowWidth);
+      for (int i = 0; i < count; ++i) {
+        rowBuf.clear();
+        sorted.read(i, rowBuf);
+        assertEquals(expected[i], rowBuf.flip());
+      }
+    }
+  }
+  
+  
+  @Test
+  public void testParallel1M() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = randomValues(1024 * 1024 / ROW_WIDTH);
+    testImpl(values, ROW_WIDTH);
+  }
+  
+  
+  private int[] randomValues(int count) {
+    int[] values = new int[count];
+    Random random = new Random(count);
+    for (int i = 0; i < values.length; ++i)
+      values[i] = random.nextInt();
+    return values;
+  }
+  
+  
   private void bigTestImpl(int kiloBytes) throws IOException {
     bigTestImpl(kiloBytes, ROW_WIDTH);
   }
@@ -225,10 +387,17 @@ public class TableSorterTest extends TableTestHarness {
   }
   
   protected void testImpl(int[] values, int rowWidth) throws IOException {
+    testImpl(values, rowWidth, values.length * rowWidth, TableSorter.DEFAULT_MAX_MERGE_FAN_IN);
+  }
+  
+  protected void testImpl(int[] values, int rowWidth, int memory, int fanIn) throws IOException {
     // initialize the input table with the given rows..
     // (test method returns a SortedTable, but it's lying.. its unsorted)
     Table unsorted = initIntTable(rowWidth, ORDER, values, 0);
-    TableSorter sorter = new TableSorter(ByteBuffer.allocate(values.length * rowWidth), ORDER);
+    TableSorter sorter = new TableSorter(ByteBuffer.allocate(memory), ORDER);
+    sorter.setMaxMergeFanIn(fanIn);
+    sorter.setParallel(parallel);
+    sorter.setRadix(radix);
     
     File sortedFile = new File(unitTestDir(), "sorted");
     
@@ -490,5 +490,193 @@ public class TableTest extends IoTestCase {
   }
   
 
-}
 
+  @Test
+  public void testMemoryMapped() throws IOException {
+    // boiler plate file setup..
+    setup(new Object() { });
+
+    final int rowSize = 24;
+    final int rows = 100;
+    // 7 rows per segment (doesn't divide the row count)
+    final int segmentSize = 7 * rowSize + 5;
+    
+    Table table = Table.newEmptyInstance(file, rowSize);
+    table.append(longRows(0, rows / 2, rowSize));
+    
+    table.mapMemory(segmentSize);
+    assertTrue(table.isMemoryMapped());
+    
+    // append after mapping (the tail segment must be remapped)
+    table.append(longRows(rows / 2, rows - rows / 2, rowSize));
+    assertEquals(rows, table.getRowCount());
+    
+    // read everything in one go (straddles segments)
+    ByteBuffer all = ByteBuffer.allocate(rows * rowSize);
+    table.read(0, all);
+    all.flip();
+    assertEquals(longRows(0, rows, rowSize), all);
+    
+    // read row by row, and view by view
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    for (int r = 0; r < rows; ++r) {
+      row.clear();
+      table.read(r, row);
+      row.flip();
+      ByteBuffer expected = longRows(r, 1, rowSize);
+      assertEquals(expected, row);
+      ByteBuffer view = table.readView(r, 1);
+      assertTrue(view.isReadOnly());
+      assertEquals(expected, view);
+    }
+    
+    // a multi-row view straddling a segment boundary
+    assertEquals(longRows(5, 4, rowSize), table.readView(5, 4));
+    
+    // writes are visible in the map
+    table.set(3, longRows(1000, 1, rowSize));
+    assertEquals(longRows(1000, 1, rowSize), table.readView(3, 1));
+    
+    table.truncate(rows / 3);
+    assertEquals(longRows(rows / 3 - 1, 1, rowSize), table.readView(rows / 3 - 1, 1));
+    
+    table.unmapMemory();
+    assertFalse(table.isMemoryMapped());
+    assertEquals(longRows(0, 1, rowSize), table.readView(0, 1));
+    table.close();
+  }
+  
+  
+  @Test
+  public void testBlockCache() throws IOException {
+    setup(new Object() { });
+
+    final int rowSize = 24;
+    final int rows = 100;
+    // 3 blocks of 100 bytes each (so rows straddle blocks, and only some are cached)
+    BlockCache cache = new BlockCache(100, 3);
+
+    Table table = Table.newEmptyInstance(file, rowSize);
+    table.append(longRows(0, rows, rowSize));
+    table.setBlockCache(cache);
+    assertSame(cache, table.getBlockCache());
+
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    for (int pass = 0; pass < 2; ++pass) {
+      for (int r = 0; r < 12; ++r) {
+        table.read(r, row.clear());
+        assertEquals(longRows(r, 1, rowSize), row.flip());
+      }
+    }
+    // the first 12 rows (288 bytes) lie in 3 blocks; the second pass is all hits
+    assertEquals(3, cache.getMissCount());
+    assertEquals(3, cache.getCachedBlockCount());
+    assertTrue(cache.getHitCount() > 0);
+
+    // read everything in one go: evicts
+    ByteBuffer all = ByteBuffer.allocate(rows * rowSize);
+    table.read(0, all);
+    assertEquals(longRows(0, rows, rowSize), all.flip());
+    assertTrue(cache.getEvictionCount() > 0);
+
+    // writes invalidate
+    table.read(3, row.clear());
+    table.set(3, longRows(1000, 1, rowSize));
+    table.read(3, row.clear());
+    assertEquals(longRows(1000, 1, rowSize), row.flip());
+
+    // truncate and regrow
+    table.read(rows - 1, row.clear());
+    table.truncate(rows / 2);
+    table.append(longRows(2000, rows / 2, rowSize));
+    table.read(rows - 1, row.clear());
+    assertEquals(longRows(2000 + rows / 2 - 1, 1, rowSize), row.flip());
+
+    // pinned blocks are not evicted
+    table.pinRows(0, 4);
+    assertEquals(1, cache.getPinnedBlockCount());
+    table.read(0, row.clear());
+    table.read(0, all.clear());
+    cache.clearStats();
+    table.read(0, row.clear());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+    table.unpinRows(0, 4);
+    assertEquals(0, cache.getPinnedBlockCount());
+    table.pinRows(0, 4);
+
+    // switching caches releases the blocks (and pins) in the old one
+    BlockCache other = new BlockCache(100, 3);
+    table.setBlockCache(other);
+    assertEquals(0, cache.getCachedBlockCount());
+    assertEquals(0, cache.getPinnedBlockCount());
+    table.read(3, row.clear());
+    assertEquals(longRows(1000, 1, rowSize), row.flip());
+    assertEquals(1, other.getCachedBlockCount());
+    table.setBlockCache(cache);
+    assertEquals(0, other.getCachedBlockCount());
+
+    // copies share the cache
+    Table copy = table.clone();
+    assertSame(cache, copy.getBlockCache());
+    copy.read(3, row.clear());
+    assertEquals(longRows(1000, 1, rowSize), row.flip());
+    copy.close();
+
+    // so do copies made before the cache was set: their writes invalidate
+    table.setBlockCache(null);
+    Table earlier = table.clone();
+    table.setBlockCache(cache);
+    assertSame(cache, earlier.getBlockCache());
+    table.read(3, row.clear());
+    earlier.set(3, longRows(3000, 1, rowSize));
+    table.read(3, row.clear());
+    assertEquals(longRows(3000, 1, rowSize), row.flip());
+    earlier.close();
+
+    table.close();
+    assertEquals(0, cache.getCachedBlockCount());
+  }
+  
+  
+  @Test
+  public void testAppendAndCommit() throws IOException {
+    setup(new Object() { });
+    final int rowSize = 16;
+
+    Table table = Table.newEmptyInstance(file, rowSize);
+    assertTrue(table.rowCountKeystone().isWrittenTo(file));
+    assertEquals(0, table.appendAndCommit(new ByteBuffer[] { longRows(0, 3, rowSize) }));
+    assertEquals(3, table.appendAndCommit(new ByteBuffer[] { longRows(3, 2, rowSize) }));
+    reload();
+    table = Table.loadInstance(file, rowSize);
+    assertEquals(5, table.getRowCount());
+
+    // keystone in another file
+    File ksPath = new File(filepath.getParentFile(), "count");
+    try (FileChannel ksFile = open(ksPath)) {
+      Keystone rowCount = new RollingKeystone(ksFile, 0, 0L);
+      FileChannel rowFile = open(new File(filepath.getParentFile(), "rows"));
+      table = new Table(rowCount, rowFile, 0, rowSize);
+      assertFalse(rowCount.isWrittenTo(rowFile));
+      assertEquals(0, table.appendAndCommit(new ByteBuffer[] { longRows(0, 3, rowSize) }));
+      assertEquals(3, table.appendAndCommit(new ByteBuffer[] { longRows(3, 2, rowSize) }));
+      assertEquals(5, new RollingKeystone(ksFile, 0).get());
+      ByteBuffer rows = ByteBuffer.allocate(5 * rowSize);
+      table.read(0, rows);
+      assertEquals(longRows(0, 5, rowSize), rows.flip());
+      rowFile.close();
+    }
+  }
+
+
+  private ByteBuffer longRows(long firstValue, int count, int rowSize) {
+    ByteBuffer rows = ByteBuffer.allocate(count * rowSize);
+    for (long value = firstValue; rows.hasRemaining(); ++value)
+      for (int i = rowSize / 8; i-- > 0; )
+        rows.putLong(value * 31 + i);
+    return rows.flip();
+  }
+  
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.TableTestHarness;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ */
+public class CompactorTest extends TableTestHarness {
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+  private final static int ROW_WIDTH = 8;
+
+
+  @Test
+  public void testSizeTiered() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int tableCount = 40;
+    SizeTieredPolicy policy = new SizeTieredPolicy(4, 16, 8, 1.5);
+    compactionTestImpl(tableCount, policy, false);
+  }
+
+
+  @Test
+  public void testSizeTieredConcurrentAppends() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int tableCount = 60;
+    SizeTieredPolicy policy = new SizeTieredPolicy();
+    compactionTestImpl(tableCount, policy, true);
+  }
+
+
+  @Test
+  public void testPolicy() throws IOException {
+    initUnitTestDir(new Object() { });
+    SizeTieredPolicy policy = new SizeTieredPolicy(3, 8, 6, 1.0);
+    int[][] tableValues = {
+        new int[100], new int[10], new int[5], new int[5],
+    };
+    List<SortedTable> tables = new ArrayList<>();
+    for (int t = 0; t < tableValues.length; ++t) {
+      int[] values = tableValues[t];
+      for (int i = 0; i < values.length; ++i)
+        values[i] = i;
+      tables.add(initIntTable(ROW_WIDTH, ORDER, values, t));
+    }
+    assertArrayEquals(new int[] { 1, 4 }, policy.selectRange(tables));
+    assertNull(policy.selectRange(tables.subList(0, 3)));
+    for (SortedTable table : tables)
+      table.close();
+  }
+
+
+  private void compactionTestImpl(int tableCount, SizeTieredPolicy policy, boolean concurrent)
+      throws Exception {
+
+    Random random = new Random(tableCount);
+    Map<Integer, Integer> expected = new HashMap<>();
+    List<SortedTable> retired = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger targets = new AtomicInteger();
+    TableFactory factory = (rowWidth, order) ->
+        new SortedTable(openFile("merged_" + targets.getAndIncrement(), false), rowWidth, order);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (Compactor compactor = new Compactor(
+        new TableSet(ORDER, ROW_WIDTH), policy, factory, executor, retired::addAll)) {
+
+      for (int t = 0; t < tableCount; ++t) {
+        TreeSet<Integer> values = new TreeSet<>();
+        int count = 1 + random.nextInt(64);
+        while (values.size() < count)
+          values.add(random.nextInt(4096));
+        int[] array = values.stream().mapToInt(Integer::intValue).toArray();
+        for (int v : array)
+          expected.put(v, t);
+        compactor.append(initIntTable(ROW_WIDTH, ORDER, array, t));
+        if (!concurrent)
+          drain(compactor);
+      }
+      drain(compactor);
+
+      TableSet set = compactor.getTableSet();
+      assertTrue(compactor.getCompactionCount() > 0);
+      assertTrue(
+          set.tables().size() <= policy.getMaxTableCount(),
+          "tables: " + set.tables().size());
+
+      ByteBuffer key = ByteBuffer.allocate(4);
+      for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+        ByteBuffer row = set.getRow(key.clear().putInt(entry.getKey()).flip());
+        assertNotNull(row, "key " + entry.getKey());
+        assertEquals(entry.getValue().intValue(), guessIntTableIndexFromRow(row));
+      }
+      // (rows in tables not merged together may still override one another)
+      long rows = 0;
+      for (SortedTable table : set.tables())
+        rows += table.getRowCount();
+      assertTrue(rows >= expected.size());
+
+      set.close();
+    } finally {
+      executor.shutdown();
+      for (SortedTable table : retired)
+        table.close();
+    }
+  }
+
+
+  private void drain(Compactor compactor) throws InterruptedException, ExecutionException {
+    while (compactor.compact().get());
+  }
+
+}
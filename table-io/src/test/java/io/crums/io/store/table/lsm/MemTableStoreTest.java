@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.lsm;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.TableTestHarness;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ */
+public class MemTableStoreTest extends TableTestHarness {
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+  private final static int ROW_WIDTH = 8;
+
+
+  @Test
+  public void testPutFlushAndReplay() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int maxMemRows = 100;
+    final int puts = 1000;
+    final int unflushed = 37;
+
+    File walDir = new File(unitTestDir(), "wal");
+    List<SortedTable> retired = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger tableCount = new AtomicInteger();
+    TableFactory factory = (rowWidth, order) ->
+        new SortedTable(openFile("t_" + tableCount.getAndIncrement(), false), rowWidth, order);
+
+    Random random = new Random(puts);
+    Map<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Compactor compactor = new Compactor(
+          new TableSet(ORDER, ROW_WIDTH), new SizeTieredPolicy(), factory, executor, retired::addAll);
+
+      try (MemTableStore store = new MemTableStore(walDir, compactor, factory, executor, maxMemRows)) {
+        for (int i = 0; i < puts; ++i) {
+          int key = random.nextInt(puts);
+          expected.put(key, i);
+          store.put(row.clear().putInt(key).putInt(i).flip());
+        }
+        assertAll(store, expected);
+        store.flush().get();
+        assertEquals(0, store.getMemTableSize());
+        assertEquals(1, walDir.list().length);
+        assertAll(store, expected);
+
+        for (int i = 0; i < unflushed; ++i) {
+          int key = puts + i;
+          expected.put(key, key);
+          store.put(row.clear().putInt(key).putInt(key).flip());
+        }
+      }
+
+      compactor.close();
+      compactor = new Compactor(
+          compactor.getTableSet(), new SizeTieredPolicy(), factory, executor, retired::addAll);
+
+      try (MemTableStore store = new MemTableStore(walDir, compactor, factory, executor, maxMemRows)) {
+        assertEquals(unflushed, store.getMemTableSize());
+        assertAll(store, expected);
+        store.flush().get();
+        assertEquals(1, walDir.list().length);
+        assertAll(store, expected);
+      }
+      compactor.close();
+      compactor.getTableSet().close();
+    } finally {
+      executor.shutdown();
+      for (SortedTable table : retired)
+        table.close();
+    }
+  }
+
+
+  @Test
+  public void testFlushFailureDoesNotStopLaterFlushes() throws Exception {
+    initUnitTestDir(new Object() { });
+    final int maxMemRows = 10;
+    final int sameKey = 1000;
+
+    File walDir = new File(unitTestDir(), "wal");
+    AtomicInteger tableCount = new AtomicInteger();
+    AtomicBoolean failNext = new AtomicBoolean(true);
+    TableFactory factory = (rowWidth, order) -> {
+      if (failNext.getAndSet(false))
+        throw new IOException("test failure");
+      return new SortedTable(
+          openFile("t_" + tableCount.incrementAndGet(), false), rowWidth, order);
+    };
+
+    Map<Integer, Integer> expected = new HashMap<>();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Compactor compactor = new Compactor(
+          new TableSet(ORDER, ROW_WIDTH), new SizeTieredPolicy(), factory, executor, t -> { });
+
+      try (MemTableStore store = new MemTableStore(walDir, compactor, factory, executor, maxMemRows)) {
+        // the same key, in the (failing) first memtable and in the second
+        putRows(store, expected, sameKey, 3 * maxMemRows);
+        store.sync();
+        awaitFlushFailure(store);
+        // the later memtables were not flushed over the failed one: all still readable
+        assertTrue(compactor.getTableSet().tables().isEmpty());
+        assertAll(store, expected);
+        // their WALs are kept, as is the current (empty) one's
+        assertEquals(4, walDir.list().length);
+
+        // the next flush retries them, in order
+        store.flush().get();
+        assertNull(store.getFlushFailure());
+        assertEquals(3, compactor.getTableSet().tables().size());
+        assertAll(store, expected);
+        assertEquals(1, walDir.list().length);
+      }
+
+      // fail again, and reopen: the WALs are replayed in order
+      failNext.set(true);
+      try (MemTableStore store = new MemTableStore(walDir, compactor, factory, executor, maxMemRows)) {
+        putRows(store, expected, sameKey, 3 * maxMemRows);
+        store.sync();
+        awaitFlushFailure(store);
+      }
+      try (MemTableStore store = new MemTableStore(walDir, compactor, factory, executor, maxMemRows)) {
+        assertAll(store, expected);
+        store.flush().get();
+        assertAll(store, expected);
+      }
+      compactor.close();
+      compactor.getTableSet().close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  private void awaitFlushFailure(MemTableStore store) throws InterruptedException {
+    for (int millis = 0; store.getFlushFailure() == null; ++millis) {
+      assertTrue(millis < 10_000, "timed out");
+      Thread.sleep(1);
+    }
+  }
+
+
+  /**
+   * Puts <code>count</code> rows, with <code>sameKey</code> put both first, and midway.
+   * Values increase with every call.
+   */
+  private void putRows(
+      MemTableStore store, Map<Integer, Integer> expected, int sameKey, int count)
+          throws IOException {
+    ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+    final int base = expected.size() * 100;
+    for (int i = 0; i < count; ++i) {
+      int key = i == 0 || i == count / 2 ? sameKey : i;
+      expected.put(key, base + i);
+      store.put(row.clear().putInt(key).putInt(base + i).flip());
+    }
+  }
+
+
+  private void assertAll(MemTableStore store, Map<Integer, Integer> expected) throws Exception {
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      ByteBuffer row = store.getRow(key.clear().putInt(entry.getKey()).flip());
+      assertNotNull(row, "key " + entry.getKey());
+      assertEquals(entry.getValue().intValue(), row.getInt(row.position() + 4));
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class MergeHeapTest {
+
+  /**
+   * Mutable cursor over a sorted int array, like a merge source.
+   */
+  private static class Cursor {
+    final int[] values;
+    int index;
+
+    Cursor(int[] values) {
+      this.values = values;
+    }
+
+    int value() {
+      return values[index];
+    }
+
+    boolean advance() {
+      return ++index < values.length;
+    }
+  }
+
+
+  @Test
+  public void testKWayMerge() {
+    Random random = new Random(11);
+    final int k = 40;
+    MergeHeap<Cursor> heap = new MergeHeap<>(Comparator.comparingInt(Cursor::value), 4);
+    int total = 0;
+    for (int i = 0; i < k; ++i) {
+      int[] values = random.ints(1 + random.nextInt(100), 0, 10_000).sorted().toArray();
+      total += values.length;
+      heap.add(new Cursor(values));
+    }
+    assertEquals(k, heap.size());
+
+    int count = 0;
+    int last = Integer.MIN_VALUE;
+    while (!heap.isEmpty()) {
+      if (heap.size() > 1) {
+        // next is the least of the rest
+        Cursor next = heap.next();
+        assertTrue(heap.top().value() <= next.value());
+        if (random.nextInt(4) == 0) {
+          // advance next, as when an overridden row is skipped
+          ++count;
+          if (next.advance())
+            heap.updateNext();
+          else
+            heap.removeNext();
+          continue;
+        }
+      }
+      Cursor top = heap.top();
+      assertTrue(top.value() >= last);
+      last = top.value();
+      ++count;
+      if (top.advance())
+        heap.updateTop();
+      else
+        heap.removeTop();
+    }
+    assertEquals(total, count);
+  }
+
+
+  @Test
+  public void testNextInvalidated() {
+    MergeHeap<Integer> heap = new MergeHeap<>(Comparator.naturalOrder(), 2);
+    heap.add(3);
+    heap.add(1);
+    heap.add(2);
+    assertEquals(1, heap.top());
+    assertEquals(2, heap.next());
+    heap.add(0);
+    assertThrows(IllegalStateException.class, heap::removeNext);
+    assertEquals(1, heap.next());
+    assertEquals(1, heap.removeNext());
+    assertEquals(0, heap.removeTop());
+    assertEquals(2, heap.removeTop());
+    assertEquals(3, heap.removeTop());
+    assertTrue(heap.isEmpty());
+  }
+
+}
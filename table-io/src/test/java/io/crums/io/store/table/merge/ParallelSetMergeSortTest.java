@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.TableSet;
+import io.crums.io.store.table.TableSetD;
+import io.crums.io.store.table.TableTestDHarness;
+
+/**
+ *
+ */
+public class ParallelSetMergeSortTest extends TableTestDHarness {
+
+
+  @Test
+  public void testSameAsSequential() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[][] tableValues = generateValues(new int[] { 20_000, 5_000, 12_000, 300 }, false);
+    SortedTable[] stack = createIntTableSet(tableValues, null);
+
+    SortedTable sequential = new SortedTable(openFile("seq", false), ROW_WIDTH, ORDER);
+    new SetMergeSort(sequential, stack).mergeToTarget();
+
+    SortedTable parallel = new SortedTable(openFile("par", false), ROW_WIDTH, ORDER);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ParallelSetMergeSort merge =
+          new ParallelSetMergeSort(parallel, stack, unitTestDir(), executor, 8);
+      merge.mergeToTarget();
+      assertEquals(8, merge.getRangeCount());
+    } finally {
+      executor.shutdown();
+    }
+
+    final long rows = sequential.getRowCount();
+    assertEquals(rows, parallel.getRowCount());
+    ByteBuffer expected = ByteBuffer.allocate((int) rows * ROW_WIDTH);
+    ByteBuffer actual = ByteBuffer.allocate((int) rows * ROW_WIDTH);
+    sequential.read(0, expected);
+    parallel.read(0, actual);
+    assertEquals(expected.flip(), actual.flip());
+
+    // the segment files are cleaned up
+    String[] files = unitTestDir().list();
+    for (String file : files)
+      assertFalse(file.endsWith(".seg"), file);
+
+    // the sources are still usable
+    assertEquals(tableValues[0].length, stack[0].getRowCount());
+    for (SortedTable table : stack)
+      table.close();
+    sequential.close();
+    parallel.close();
+  }
+
+
+  @Test
+  public void testWithDeletes() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[][] tableValues = generateValues(new int[] { 8_000, 3_000, 6_000 }, true);
+    Map<Integer, Integer> expected = new HashMap<>();
+    Set<Integer> deletes = new HashSet<>();
+    SortedTable[] stack = createIntTableSet(tableValues, expected, deletes);
+
+    SortedTable target = new SortedTable(openFile("par", false), ROW_WIDTH, ORDER);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      new ParallelSetMergeSort(
+          target, stack, unitTestDir(), executor, 5,
+          ParallelSetMergeSort.withDeletes(DELETE_CODEC, null))
+          .mergeToTarget();
+    } finally {
+      executor.shutdown();
+    }
+
+    ByteBuffer key = ByteBuffer.allocate(4);
+    Searcher searcher = target.newSearcher(8);
+    for (Map.Entry<Integer, Integer> expectedEntry : expected.entrySet()) {
+      key.clear().putInt(expectedEntry.getKey()).flip();
+      assertTrue(searcher.search(key));
+      assertEquals(expectedEntry.getValue().intValue(), guessIntTableIndexFromRow(searcher.getHitRow()));
+    }
+
+    TableSet tableSet = new TableSetD(target, DELETE_CODEC);
+    for (int delete : deletes) {
+      key.clear().putInt(delete).flip();
+      assertNull(tableSet.getRow(key));
+    }
+    tableSet.close();
+    for (SortedTable table : stack)
+      table.close();
+  }
+
+
+  /**
+   * Returns ascending values for each table, overlapping across tables. If
+   * <code>deletes</code>, then some values in the upper tables are deletes
+   * (encoded as <em>-value - 1</em>).
+   */
+  private int[][] generateValues(int[] counts, boolean deletes) {
+    Random random = new Random(counts.length);
+    int[][] tableValues = new int[counts.length][];
+    for (int t = 0; t < counts.length; ++t) {
+      IntGenerator gen = new IntGenerator(t, t, 3 + 40_000 / counts[t]);
+      tableValues[t] = new int[counts[t]];
+      for (int i = 0; i < counts[t]; ++i) {
+        int value = gen.next();
+        tableValues[t][i] = deletes && t > 0 && random.nextInt(5) == 0 ? -value - 1 : value;
+      }
+    }
+    return tableValues;
+  }
+
+}
@@ -163,6 +163,49 @@ public class SetMergeSortTest extends TableTestHarness {
   }
   
   
+  @Test
+  public void testRunCopies() throws IOException {
+    initUnitTestDir(new Object() { });
+    // 3 tables taking turns at 40 runs of 1000 consecutive keys;
+    // the second table also has a key in every run of the third (which overrides it)
+    final int runs = 40;
+    final int runLength = 1000;
+    int[][] tableValues = new int[3][];
+    for (int t = 0; t < 3; ++t) {
+      int tableRuns = (runs - t + 2) / 3;
+      tableValues[t] = new int[tableRuns * runLength + (t == 1 ? (runs - 1) / 3 : 0)];
+    }
+    int[] counts = new int[3];
+    for (int r = 0; r < runs; ++r) {
+      int t = r % 3;
+      if (t == 2)
+        tableValues[1][counts[1]++] = r * runLength + runLength / 2;
+      for (int k = r * runLength; k < (r + 1) * runLength; ++k)
+        tableValues[t][counts[t]++] = k;
+    }
+    for (int t = 0; t < 3; ++t)
+      java.util.Arrays.sort(tableValues[t]);
+    
+    Map<Integer, Integer> expected = new HashMap<>();
+    final int rowSize = 8;
+    SortedTable[] stack = createIntTableSet(rowSize, tableValues, expected);
+    SortedTable target = new SortedTable(openFile(3, false), rowSize, stack[0].order());
+    SetMergeSort sorter = new SetMergeSort(target, stack);
+    sorter.mergeToTarget();
+    
+    // one block copy per run
+    assertEquals(runs, sorter.getRunCount());
+    assertEquals(runs * runLength, target.getRowCount());
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    for (int k = 0; k < runs * runLength; ++k) {
+      target.read(k, row.clear());
+      row.flip();
+      assertEquals(k, row.getInt(0));
+      assertEquals(expected.get(k).intValue(), guessIntTableIndexFromRow(row));
+    }
+  }
+  
+  
   private void testWithTableProvenance(int[][] tableValues) throws IOException {
     testWithTableProvenance(tableValues, false, Integer.MAX_VALUE);
   }
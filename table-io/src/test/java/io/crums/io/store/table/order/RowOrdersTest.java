@@ -7,6 +7,10 @@ package io.crums.io.store.table.order;
 import static io.crums.io.store.table.order.RowOrders.*;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.jupiter.api.Test;
 
 /**
@@ -33,6 +37,50 @@ public class RowOrdersTest {
   }
   
   
+  @Test
+  public void testPrefixKeys() {
+    RowOrder[] orders = {
+        SHORT_ORDER,
+        intOrderAtOffset(2),
+        longOrderAtOffset(1),
+        unsignedLongOrderAtOffset(3),
+        NaturalRowOrder.INSTANCE,
+        new CompoundOrder(new RowOrder[] { SHORT_ORDER, longOrderAtOffset(4) }),
+    };
+    Random random = new Random(16);
+    // few distinct values per byte, so there are ties
+    ByteBuffer[] rows = new ByteBuffer[300];
+    for (int index = 0; index < rows.length; ++index) {
+      byte[] row = new byte[12];
+      for (int b = 0; b < row.length; ++b)
+        row[b] = (byte) (random.nextInt(3) * 127 - 127 + random.nextInt(2));
+      rows[index] = ByteBuffer.wrap(row);
+    }
+    for (RowOrder order : orders) {
+      assertTrue(order.hasPrefixKey(), order.toString());
+      for (ByteBuffer a : rows) {
+        for (ByteBuffer b : rows) {
+          int expected = Integer.signum(order.compareRows(a, b));
+          int actual = order.compareRows(a, order.prefixKey(a), b, order.prefixKey(b));
+          assertEquals(expected, Integer.signum(actual), order.toString());
+        }
+      }
+
+      ByteBuffer[] sorted = rows.clone();
+      Arrays.sort(sorted, order);
+      for (ByteBuffer key : rows) {
+        int index = order.binarySearch(sorted, 0, sorted.length, key);
+        assertTrue(index >= 0);
+        assertEquals(0, order.compareRows(key, sorted[index]));
+      }
+      ByteBuffer missing = ByteBuffer.allocate(12);
+      Arrays.fill(missing.array(), (byte) 100);
+      int insertion = -order.binarySearch(sorted, 0, sorted.length, missing) - 1;
+      assertEquals(Arrays.binarySearch(sorted, missing, order), -insertion - 1);
+    }
+  }
+  
+  
   private void assertEquivalent(Object o1, Object o2) {
     assertFalse(o1 == o2);
     assertTrue(o1.equals(o2));